@@ -0,0 +1,215 @@
+package com.dozingcatsoftware.asciicam;
+
+import java.util.Locale;
+
+/**
+ * Adjusts the camera preview quality to keep the time to convert and render each frame within
+ * the budget for a target frame rate. The knobs are the number of threads, the text size (larger
+ * text means fewer characters to compute), and the number of camera pixels sampled for each
+ * character, which determines the preview size.
+ *
+ * Quality is described by a level, where level 0 is the best quality. When frames are too slow
+ * the controller first adds threads and then moves to the next lower quality level; when frames
+ * are fast enough it moves back up and then removes threads. Decisions use the average time over
+ * a window of frames, there is a gap between the "too slow" and "fast enough" thresholds, and the
+ * averages are reset after every change, so that the settings don't oscillate. Every change, of
+ * the thread count or the level, also requires several consecutive windows to agree and a minimum
+ * time since the previous change, since a change affects the frames measured afterwards, and
+ * changing the level changes the grid or the preview size, which restarts the camera preview.
+ */
+public class AdaptiveQualityController {
+
+    /** Choices for the performanceProfile preference. */
+    public enum Profile {
+        // Always uses the best quality, as before adaptive quality existed. Thread counts still come
+        // from ThreadCountCalibrator.
+        FIXED(0, 0, 0),
+        // Keeps the best text size, and only reduces sampling to reach a lower frame rate.
+        QUALITY(10, 0, 2),
+        BALANCED(15, 0, LEVEL_TEXT_SCALES.length - 1),
+        SMOOTH(24, 0, LEVEL_TEXT_SCALES.length - 1);
+
+        final int targetFps;
+        final int minLevel;
+        final int maxLevel;
+
+        Profile(int targetFps, int minLevel, int maxLevel) {
+            this.targetFps = targetFps;
+            this.minLevel = minLevel;
+            this.maxLevel = maxLevel;
+        }
+
+        public boolean isAdaptive() {
+            return targetFps > 0;
+        }
+
+        public static Profile fromString(String name, Profile defaultProfile) {
+            if (name != null) {
+                try {
+                    return valueOf(name);
+                }
+                catch (IllegalArgumentException ignored) {}
+            }
+            return defaultProfile;
+        }
+    }
+
+    // Text size multipliers and samples per character for each quality level, best first.
+    static final float[] LEVEL_TEXT_SCALES = {1.0f, 1.0f, 1.0f, 1.25f, 1.5f, 2.0f};
+    static final int[] LEVEL_SAMPLES_PER_CELL = {16, 9, 4, 4, 4, 4};
+
+    // Number of frames averaged before making a decision.
+    static final int WINDOW_FRAMES = 15;
+    // Quality is lowered when the average frame time exceeds the budget, and raised when it's
+    // below this fraction of the budget.
+    static final float RAISE_QUALITY_FRACTION = 0.6f;
+    // Consecutive windows needed to add threads or lower the level, and to raise the level or
+    // remove threads. Raising quality is slower, since settings that are too slow cause dropped
+    // frames until they're changed again.
+    static final int LOWER_QUALITY_WINDOWS = 2;
+    static final int RAISE_QUALITY_WINDOWS = 4;
+    static final long MIN_CHANGE_INTERVAL_NANOS = 5000L * 1000 * 1000;
+
+    static volatile String lastStatus;
+
+    /**
+     * Returns a description of the settings most recently chosen by any controller, or null if
+     * none have been chosen. Shown in AsciiCamPreferences.
+     */
+    public static String getLastStatus() {
+        return lastStatus;
+    }
+
+    final int minThreads;
+    final int maxThreads;
+
+    Profile profile = Profile.FIXED;
+    volatile int level = 0;
+    volatile int numThreads;
+
+    long windowNanos = 0;
+    int windowFrames = 0;
+    double lastAverageMillis = 0;
+    // Consecutive windows that were too slow or fast enough, and when the settings last changed.
+    int slowWindows = 0;
+    int fastWindows = 0;
+    boolean settingsChanged = false;
+    long settingsChangeNanos = 0;
+
+    public AdaptiveQualityController(int minThreads, int maxThreads) {
+        this.minThreads = Math.max(1, minThreads);
+        this.maxThreads = Math.max(this.minThreads, maxThreads);
+        this.numThreads = this.maxThreads;
+    }
+
+    /** Sets the profile and resets the settings to the best quality that it allows. */
+    public synchronized void setProfile(Profile profile) {
+        if (profile == this.profile) return;
+        this.profile = profile;
+        level = profile.minLevel;
+        numThreads = maxThreads;
+        resetWindow();
+        slowWindows = fastWindows = 0;
+        settingsChanged = false;
+        updateStatus();
+    }
+
+    public synchronized Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Records the time taken to convert and render a frame, and updates the settings if needed.
+     * nowNanos is the current System.nanoTime(). Returns true if the settings changed.
+     */
+    public synchronized boolean frameProcessed(long nanos, long nowNanos) {
+        if (!profile.isAdaptive()) return false;
+        windowNanos += nanos;
+        windowFrames++;
+        if (windowFrames < WINDOW_FRAMES) return false;
+
+        lastAverageMillis = windowNanos / 1e6 / windowFrames;
+        resetWindow();
+        double budgetMillis = 1000.0 / profile.targetFps;
+        boolean updated = false;
+        if (lastAverageMillis > budgetMillis) {
+            fastWindows = 0;
+            slowWindows++;
+            if (canChangeSettings(slowWindows, LOWER_QUALITY_WINDOWS, nowNanos)) {
+                if (numThreads < maxThreads) {
+                    numThreads++;
+                    updated = true;
+                }
+                else if (level < profile.maxLevel) {
+                    level++;
+                    updated = true;
+                }
+            }
+        }
+        else if (lastAverageMillis < budgetMillis * RAISE_QUALITY_FRACTION) {
+            slowWindows = 0;
+            fastWindows++;
+            if (canChangeSettings(fastWindows, RAISE_QUALITY_WINDOWS, nowNanos)) {
+                if (level > profile.minLevel) {
+                    level--;
+                    updated = true;
+                }
+                else if (numThreads > minThreads) {
+                    numThreads--;
+                    updated = true;
+                }
+            }
+        }
+        else {
+            slowWindows = fastWindows = 0;
+        }
+        if (updated) {
+            settingsChanged(nowNanos);
+        }
+        updateStatus();
+        return updated;
+    }
+
+    boolean canChangeSettings(int windows, int requiredWindows, long nowNanos) {
+        if (windows < requiredWindows) return false;
+        return !settingsChanged || nowNanos - settingsChangeNanos >= MIN_CHANGE_INTERVAL_NANOS;
+    }
+
+    void settingsChanged(long nowNanos) {
+        settingsChanged = true;
+        settingsChangeNanos = nowNanos;
+        slowWindows = fastWindows = 0;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public float getTextSizeScale() {
+        return LEVEL_TEXT_SCALES[level];
+    }
+
+    public int getSamplesPerCell() {
+        return LEVEL_SAMPLES_PER_CELL[level];
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    void resetWindow() {
+        windowNanos = 0;
+        windowFrames = 0;
+    }
+
+    void updateStatus() {
+        String status = String.format(Locale.US,
+                "%s: level %d, text size %d%%, %d samples per character, %d threads",
+                profile.name(), level, Math.round(100 * getTextSizeScale()), getSamplesPerCell(), numThreads);
+        if (profile.isAdaptive() && lastAverageMillis > 0) {
+            status += String.format(Locale.US, ", %.1f ms per frame (target %d ms)",
+                    lastAverageMillis, 1000 / profile.targetFps);
+        }
+        lastStatus = status;
+    }
+}
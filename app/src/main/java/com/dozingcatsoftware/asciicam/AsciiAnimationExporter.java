@@ -0,0 +1,293 @@
+package com.dozingcatsoftware.asciicam;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.dozingcatsoftware.util.AnimatedGifEncoder;
+
+/**
+ * Exports a recording made by ResultRecorder as an animated GIF. Frames are rendered with the
+ * same character templates as AsciiPngWriter and compressed on a pool of worker threads, while
+ * the calling thread reads frames from the recording and writes the compressed frames in order.
+ * Only a few frames are in progress at a time, so memory use doesn't depend on the length of the
+ * recording.
+ *
+ * All frames share one global color table. Recordings that only use monochrome and ANSI modes
+ * are written with the exact 2 or 8 color palettes of those modes. Recordings with full color
+ * frames use a 6x6x6 color cube, which also contains all the monochrome and ANSI colors.
+ *
+ * The text size is the largest at which each frame's grid fits within the export size, normally
+ * the size of the preview the recording was made from. The image size is determined by the first
+ * frame. If later frames have a different number of rows or columns, they're drawn at the text
+ * size that fits their grid, and cropped or padded with the background color.
+ */
+public class AsciiAnimationExporter {
+
+    // Frames longer than this (e.g. if the preview was paused) are shortened.
+    static final int MAX_FRAME_DELAY_MILLIS = 2000;
+    static final int DEFAULT_FRAME_DELAY_MILLIS = 100;
+    // Many GIF viewers treat shorter delays as 100ms.
+    static final int MIN_FRAME_DELAY_MILLIS = 20;
+
+    AsciiRenderer renderer = new AsciiRenderer();
+    int numThreads;
+
+    /** Creates an exporter whose frames fit within maxWidth by maxHeight pixels. */
+    public AsciiAnimationExporter(int maxWidth, int maxHeight) {
+        this(maxWidth, maxHeight, Runtime.getRuntime().availableProcessors());
+    }
+
+    public AsciiAnimationExporter(int maxWidth, int maxHeight, int numThreads) {
+        this.numThreads = Math.max(numThreads, 1);
+        renderer.setMaximumImageSize(maxWidth, maxHeight);
+    }
+
+    /**
+     * The colors available for the frames of an animation. Colors are mapped to the nearest
+     * entry of a cube with levelsPerComponent values for each of red, green, and blue. For
+     * monochrome images the palette has only black and white.
+     */
+    static class Palette {
+        final boolean grayscale;
+        final int levelsPerComponent;
+        final int[] colors;
+
+        Palette(boolean grayscale, int levelsPerComponent) {
+            this.grayscale = grayscale;
+            this.levelsPerComponent = levelsPerComponent;
+            int n = levelsPerComponent;
+            int maxLevel = n - 1;
+            if (grayscale) {
+                colors = new int[n];
+                for (int i=0; i<n; i++) {
+                    int v = 255 * i / maxLevel;
+                    colors[i] = (v << 16) | (v << 8) | v;
+                }
+            }
+            else {
+                colors = new int[n * n * n];
+                for (int i=0; i<colors.length; i++) {
+                    int r = 255 * (i / (n * n)) / maxLevel;
+                    int g = 255 * ((i / n) % n) / maxLevel;
+                    int b = 255 * (i % n) / maxLevel;
+                    colors[i] = (r << 16) | (g << 8) | b;
+                }
+            }
+        }
+
+        static Palette forColorTypes(Set<AsciiConverter.ColorType> colorTypes) {
+            if (colorTypes.contains(AsciiConverter.ColorType.FULL_COLOR)) {
+                return new Palette(false, 6);
+            }
+            if (colorTypes.contains(AsciiConverter.ColorType.ANSI_COLOR)) {
+                return new Palette(false, 2);
+            }
+            return new Palette(true, 2);
+        }
+
+        int level(int component) {
+            return (component * (levelsPerComponent - 1) + 127) / 255;
+        }
+
+        int indexForColor(int color) {
+            int r = level((color >> 16) & 0xff);
+            if (grayscale) return r;
+            int g = level((color >> 8) & 0xff);
+            int b = level(color & 0xff);
+            return (r * levelsPerComponent + g) * levelsPerComponent + b;
+        }
+    }
+
+    /**
+     * Writes an animated GIF of the recording to outputFile. Returns the number of frames written.
+     */
+    public int exportGif(File recordingFile, File outputFile) throws IOException {
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFile));
+        try {
+            return exportGif(recordingFile, output);
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    public int exportGif(File recordingFile, OutputStream output) throws IOException {
+        // The palette has to be written before any frames, so first find which color types the
+        // recording uses. Reading the recording is fast compared to rendering and compressing.
+        Set<AsciiConverter.ColorType> colorTypes = EnumSet.noneOf(AsciiConverter.ColorType.class);
+        ResultRecordingReader reader = openRecording(recordingFile);
+        try {
+            AsciiConverter.Result frame;
+            while ((frame = reader.nextFrame()) != null) {
+                colorTypes.add(frame.colorType);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        if (colorTypes.isEmpty()) {
+            throw new IOException("Recording has no frames");
+        }
+        Palette palette = Palette.forColorTypes(colorTypes);
+
+        ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+        reader = openRecording(recordingFile);
+        try {
+            return encodeFrames(reader, palette, output, threadPool);
+        }
+        finally {
+            threadPool.shutdownNow();
+            reader.close();
+        }
+    }
+
+    ResultRecordingReader openRecording(File file) throws IOException {
+        return new ResultRecordingReader(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    static class PendingFrame {
+        final Future<byte[]> compressedData;
+        final long timestamp;
+
+        PendingFrame(Future<byte[]> compressedData, long timestamp) {
+            this.compressedData = compressedData;
+            this.timestamp = timestamp;
+        }
+    }
+
+    int encodeFrames(ResultRecordingReader reader, Palette palette, OutputStream output,
+            ExecutorService threadPool) throws IOException {
+        // Enough frames in flight to keep all threads busy while the oldest one is being written.
+        int maxPendingFrames = 2 * numThreads;
+        ArrayDeque<PendingFrame> pendingFrames = new ArrayDeque<PendingFrame>();
+        AnimatedGifEncoder encoder = null;
+        int colorTableBits = AnimatedGifEncoder.colorTableBitsForColorCount(palette.colors.length);
+        AsciiRenderer.CharTemplate charTemplate = null;
+        AsciiConverter.Result templateResult = null;
+        int width = 0, height = 0;
+        int framesWritten = 0;
+        int lastDelay = DEFAULT_FRAME_DELAY_MILLIS;
+
+        AsciiConverter.Result frame;
+        while ((frame = reader.nextFrame()) != null) {
+            // The reader reuses its result, so the workers need their own copy.
+            final AsciiConverter.Result result = frame.copy();
+            if (templateResult == null || !ResultRecorder.hasSameLayout(result, templateResult)) {
+                renderer.setGridSize(result.columns, result.rows);
+                charTemplate = renderer.createCharTemplate(result);
+                templateResult = result;
+            }
+            if (encoder == null) {
+                width = charTemplate.charWidth * result.columns;
+                height = charTemplate.charHeight * result.rows;
+                encoder = new AnimatedGifEncoder(output, width, height,
+                        palette.colors, palette.colors.length, 0);
+            }
+            pendingFrames.add(new PendingFrame(threadPool.submit(
+                    new FrameTask(result, charTemplate, palette, width, height, colorTableBits)),
+                    reader.getFrameTimestamp()));
+
+            if (pendingFrames.size() > maxPendingFrames) {
+                PendingFrame next = pendingFrames.removeFirst();
+                lastDelay = frameDelay(next.timestamp, pendingFrames.peekFirst().timestamp);
+                encoder.writeFrame(compressedData(next), lastDelay);
+                framesWritten++;
+            }
+        }
+        while (!pendingFrames.isEmpty()) {
+            PendingFrame next = pendingFrames.removeFirst();
+            if (!pendingFrames.isEmpty()) {
+                lastDelay = frameDelay(next.timestamp, pendingFrames.peekFirst().timestamp);
+            }
+            encoder.writeFrame(compressedData(next), lastDelay);
+            framesWritten++;
+        }
+        if (encoder != null) {
+            encoder.finish();
+        }
+        return framesWritten;
+    }
+
+    static int frameDelay(long timestamp, long nextTimestamp) {
+        long delay = nextTimestamp - timestamp;
+        return (int) Math.max(MIN_FRAME_DELAY_MILLIS, Math.min(delay, MAX_FRAME_DELAY_MILLIS));
+    }
+
+    static byte[] compressedData(PendingFrame frame) throws IOException {
+        try {
+            return frame.compressedData.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted exporting animation", ex);
+        }
+        catch (ExecutionException ex) {
+            throw new IOException("Error rendering animation frame", ex.getCause());
+        }
+    }
+
+    // Renders a frame to palette indexes and compresses it.
+    static class FrameTask implements Callable<byte[]> {
+        final AsciiConverter.Result result;
+        final AsciiRenderer.CharTemplate charTemplate;
+        final Palette palette;
+        final int width;
+        final int height;
+        final int colorTableBits;
+
+        FrameTask(AsciiConverter.Result result, AsciiRenderer.CharTemplate charTemplate,
+                Palette palette, int width, int height, int colorTableBits) {
+            this.result = result;
+            this.charTemplate = charTemplate;
+            this.palette = palette;
+            this.width = width;
+            this.height = height;
+            this.colorTableBits = colorTableBits;
+        }
+
+        @Override public byte[] call() {
+            byte[] pixels = renderFrame(result, charTemplate, palette, width, height);
+            return AnimatedGifEncoder.compressImageData(pixels, pixels.length, colorTableBits);
+        }
+    }
+
+    static byte[] renderFrame(AsciiConverter.Result result, AsciiRenderer.CharTemplate charTemplate,
+            Palette palette, int width, int height) {
+        byte background = (byte) palette.indexForColor(result.backgroundColor());
+        byte[] pixels = new byte[width * height];
+        Arrays.fill(pixels, background);
+        int charWidth = charTemplate.charWidth;
+        int charHeight = charTemplate.charHeight;
+        int rows = Math.min(result.rows, height / charHeight);
+        int columns = Math.min(result.columns, width / charWidth);
+        for (int r=0; r<rows; r++) {
+            for (int c=0; c<columns; c++) {
+                int charIndex = result.asciiIndexAtRowColumn(r, c);
+                byte color = (byte) palette.indexForColor(result.colorAtRowColumn(r, c));
+                int offset = r * charHeight * width + c * charWidth;
+                for (int y=0; y<charHeight; y++, offset+=width) {
+                    for (int x=0; x<charWidth; x++) {
+                        if (charTemplate.isCharPixelSet(charIndex, x, y)) {
+                            pixels[offset + x] = color;
+                        }
+                    }
+                }
+            }
+        }
+        return pixels;
+    }
+}
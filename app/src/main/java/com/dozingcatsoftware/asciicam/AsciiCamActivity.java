@@ -4,15 +4,28 @@ package com.dozingcatsoftware.asciicam;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.dozingcatsoftware.asciicam.AsciiConverter.ColorType;
 import com.dozingcatsoftware.util.ARManager;
 import com.dozingcatsoftware.util.AndroidUtils;
 import com.dozingcatsoftware.util.AsyncProcessor;
 import com.dozingcatsoftware.util.CameraUtils;
+import com.dozingcatsoftware.util.FrameMailbox;
+import com.dozingcatsoftware.util.LatencyHistogram;
+import com.dozingcatsoftware.util.MetricsRegistry;
+import com.dozingcatsoftware.util.PreviewCaptureReader;
+import com.dozingcatsoftware.util.PreviewCaptureWriter;
+import com.dozingcatsoftware.util.PreviewReplaySource;
 import com.dozingcatsoftware.util.ShutterButton;
+import com.dozingcatsoftware.util.TraceRecorder;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
@@ -46,23 +59,37 @@ implements Camera.PreviewCallback, ShutterButton.OnShutterButtonListener {
     private final static boolean DEBUG = false;
     private final static String TAG = "AsciiCamActivity";
 
-    // Pixels and metadata for a preview frame.
-    static class CameraPreviewData {
-        public final Camera camera;
-        public final CameraUtils.CameraInfo cameraInfo;
-        public final byte[] pixelData;
-        public final int width;
-        public final int height;
-        public final long timestamp;
-        public CameraPreviewData(Camera c, CameraUtils.CameraInfo i, byte[] p, int w, int h, long t) {
-            camera = c;
-            cameraInfo = i;
-            pixelData = p;
-            width = w;
-            height = h;
-            timestamp = t;
-        }
-    }
+    // Intent extras for capturing preview frames to a file and replaying them instead of using
+    // the camera, for repeatable performance measurements. For example:
+    // adb shell am start -n com.dozingcatsoftware.asciicam/.AsciiCamActivity -e replayFramesPath /sdcard/frames.pvw
+    static final String CAPTURE_FRAMES_PATH_EXTRA = "captureFramesPath";
+    static final String REPLAY_FRAMES_PATH_EXTRA = "replayFramesPath";
+    // Milliseconds between replayed frames, 0 (the default) to replay as fast as possible.
+    static final String REPLAY_FRAME_INTERVAL_EXTRA = "replayFrameIntervalMillis";
+    static final String REPLAY_LOOP_COUNT_EXTRA = "replayLoopCount";
+    static final long MAX_CAPTURE_FILE_BYTES = 512L * 1024 * 1024;
+    // If set, a snapshot of MetricsRegistry is written to this path in onPause, as CSV if the
+    // path ends with .csv and JSON otherwise.
+    static final String METRICS_PATH_EXTRA = "metricsPath";
+    // If set, spans for each stage of processing frames are recorded while the activity is
+    // visible and written to this path in onPause, in the Chrome trace event format.
+    static final String TRACE_PATH_EXTRA = "tracePath";
+    // Enough for several seconds of frames with every renderer row traced.
+    static final int TRACE_CAPACITY = 32768;
+
+    // Time for each stage of processing a preview frame. "ingress" is the time in onPreviewFrame,
+    // "queueWait" is from then until conversion starts, and "display" is from the end of
+    // rendering until the bitmap has been given to overlayView on the main thread.
+    static final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    static final LatencyHistogram ingressTimes = metrics.histogram("frame.ingress");
+    static final LatencyHistogram queueWaitTimes = metrics.histogram("frame.queueWait");
+    static final LatencyHistogram convertTimes = metrics.histogram("frame.convert");
+    static final LatencyHistogram renderTimes = metrics.histogram("frame.render");
+    static final LatencyHistogram displayTimes = metrics.histogram("frame.display");
+    // From receiving a frame until it's given to overlayView.
+    static final LatencyHistogram latencyTimes = metrics.histogram("frame.latency");
+    static final AtomicLong processedFrames = metrics.counter("frame.processed");
+    static final AtomicLong droppedFrames = metrics.counter("frame.dropped");
 
     ARManager arManager;
     boolean hasCameraPermission = false;
@@ -89,16 +116,43 @@ implements Camera.PreviewCallback, ShutterButton.OnShutterButtonListener {
     Handler handler = new Handler();
     boolean cameraViewReady = false;
     boolean appVisible = false;
-    boolean saveInProgress = false;
 
     AsciiRenderer imageRenderer = new AsciiRenderer();
+    // Chooses the text size, threads, and camera pixels averaged for each character (which
+    // determines the preview size, see ARManager.setPreviewSizeForGrid) to reach a frame rate.
+    AdaptiveQualityController qualityController =
+            new AdaptiveQualityController(1, Runtime.getRuntime().availableProcessors());
+    // Finds the fastest number of threads for asciiConverter and imageRenderer.
+    ThreadCountCalibrator threadCalibrator;
     AsciiImageWriter imageWriter = new AsciiImageWriter();
+    ImageSaveQueue imageSaveQueue = new ImageSaveQueue(imageWriter, handler);
+    // Non-null while recording. Read by the preview processing thread.
+    volatile ResultRecorder resultRecorder;
+    int recordingFrameInterval = 1;
+    // Non-null if the performance overlay is enabled in preferences.
+    PerformanceHud performanceHud;
+    // The gauges this activity set in MetricsRegistry, by name.
+    Map<String, MetricsRegistry.Gauge> metricsGauges = new LinkedHashMap<String, MetricsRegistry.Gauge>();
+
+    // Non-null while capturing preview frames. Frames are written to previewCaptureWriter on
+    // previewCaptureExecutor, so that copying them into the file doesn't delay the preview callback.
+    PreviewCaptureWriter previewCaptureWriter;
+    ExecutorService previewCaptureExecutor;
+    PreviewReplaySource previewReplaySource;
 
     AsyncProcessor<CameraPreviewData, Bitmap> imageProcessor;
-    // If imageProcessor is busy when a preview frame arrives, store it here so that when it
-    // finishes the current frame it can immediately process the next one without having to
-    // wait until another frame arrives.
-    CameraPreviewData nextPreviewData = null;
+    // Holds the newest frame until imageProcessor is ready for it. Older frames that were never
+    // processed are replaced, and their buffers are returned to the camera.
+    FrameMailbox<CameraPreviewData> frameMailbox = new FrameMailbox<CameraPreviewData>();
+    // The frame that imageProcessor is converting, or null if it's idle. Only accessed on the
+    // main thread.
+    CameraPreviewData frameInProgress = null;
+    // Only accessed on the main thread.
+    PreviewFramePool previewFramePool = new PreviewFramePool(new PreviewFramePool.BufferReleaser() {
+        @Override public void releaseBuffer(CameraPreviewData previewData) {
+            releasePreviewBuffer(previewData);
+        }
+    });
 
     /** Called when the activity is first created. */
     @Override public void onCreate(Bundle savedInstanceState) {
@@ -117,19 +171,33 @@ implements Camera.PreviewCallback, ShutterButton.OnShutterButtonListener {
         helpButton = (ImageButton)findViewById(R.id.helpButton);
         shutterButton = (ShutterButton)findViewById(R.id.shutterButton);
         shutterButton.setOnShutterButtonListener(this);
+        shutterButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override public boolean onLongClick(View view) {
+                toggleRecording();
+                return true;
+            }
+        });
 
+        threadCalibrator = new ThreadCountCalibrator(this, Runtime.getRuntime().availableProcessors());
         arManager = ARManager.createAndSetupCameraView(this, cameraView, this);
+        // Used until the first frame is converted, when the preview size is chosen for the grid.
         arManager.setPreferredPreviewSize(640,400);
-        // Having 2 buffers lets us store a subsequent frame if the previous frame is still being processed.
-        arManager.setNumberOfPreviewCallbackBuffers(2);
+        // One buffer for the frame being processed, one for the newest frame in frameMailbox,
+        // and one for the camera to fill.
+        arManager.setNumberOfPreviewCallbackBuffers(3);
 
         switchCameraButton.setVisibility(CameraUtils.numberOfCameras() > 1 ? View.VISIBLE : View.GONE);
+        setMetricsGauges();
         updateFromPreferences();
         updateButtonsAndBackground();
     }
 
     @Override public void onPause() {
         appVisible = false;
+        writeMetrics();
+        writeTrace();
+        stopRecording();
+        stopPreviewCaptureAndReplay();
         arManager.stopCamera();
         asciiConverter.destroyThreadPool();
         imageRenderer.destroyThreadPool();
@@ -140,15 +208,33 @@ implements Camera.PreviewCallback, ShutterButton.OnShutterButtonListener {
         super.onPause();
     }
 
+    @Override public void onDestroy() {
+        removeMetricsGauges();
+        imageSaveQueue.shutdown();
+        super.onDestroy();
+    }
+
     @Override public void onResume() {
         super.onResume();
         appVisible = true;
         updateButtonsAndBackground();
         imageProcessor = new AsyncProcessor<CameraPreviewData, Bitmap>();
         imageProcessor.start();
+        if (getIntent().hasExtra(TRACE_PATH_EXTRA)) {
+            TraceRecorder.getInstance().start(TRACE_CAPACITY);
+        }
+        // A frame that was being processed when the previous processor stopped won't finish.
+        frameInProgress = null;
+        if (performanceHud != null) {
+            performanceHud.reset();
+        }
         AndroidUtils.setSystemUiLowProfile(cameraView);
 
-        if (hasCameraPermission()) {
+        if (getIntent().hasExtra(REPLAY_FRAMES_PATH_EXTRA)) {
+            startPreviewReplay();
+        }
+        else if (hasCameraPermission()) {
+            startPreviewCapture();
             arManager.startCameraIfVisible();
         }
         else {
@@ -189,6 +275,81 @@ implements Camera.PreviewCallback, ShutterButton.OnShutterButtonListener {
         }
     }
 
+    void setMetricsGauges() {
+        metricsGauges.put("camera.freePreviewData", new MetricsRegistry.Gauge() {
+            // Not synchronized with the main thread, but an approximate value is fine.
+            @Override public long getValue() {
+                return previewFramePool.getFreeCount();
+            }
+        });
+        metricsGauges.put("convert.threads", new MetricsRegistry.Gauge() {
+            @Override public long getValue() {
+                return asciiConverter.getNumThreads();
+            }
+        });
+        metricsGauges.put("render.threads", new MetricsRegistry.Gauge() {
+            @Override public long getValue() {
+                return imageRenderer.getNumThreads();
+            }
+        });
+        metricsGauges.put("save.pendingPictures", new MetricsRegistry.Gauge() {
+            @Override public long getValue() {
+                return imageSaveQueue.getPendingCount();
+            }
+        });
+        for (Map.Entry<String, MetricsRegistry.Gauge> entry : metricsGauges.entrySet()) {
+            metrics.setGauge(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // A new instance of the activity may be created before this one is destroyed, so only remove
+    // the gauges if they haven't been replaced.
+    void removeMetricsGauges() {
+        for (Map.Entry<String, MetricsRegistry.Gauge> entry : metricsGauges.entrySet()) {
+            metrics.removeGauge(entry.getKey(), entry.getValue());
+        }
+    }
+
+    void writeMetrics() {
+        final String path = getIntent().getStringExtra(METRICS_PATH_EXTRA);
+        if (path == null) return;
+        // Take the snapshot now, while the gauges reflect the running preview, but write it on
+        // another thread so pausing isn't delayed by file I/O.
+        final MetricsRegistry.Snapshot snapshot = metrics.snapshot();
+        (new Thread() {
+            @Override public void run() {
+                try {
+                    snapshot.writeToFile(new File(path));
+                    Log.i(TAG, "Wrote metrics to " + path);
+                }
+                catch (IOException ex) {
+                    Log.e(TAG, "Error writing metrics", ex);
+                }
+            }
+        }).start();
+    }
+
+    void writeTrace() {
+        final String path = getIntent().getStringExtra(TRACE_PATH_EXTRA);
+        if (path == null) return;
+        TraceRecorder tracer = TraceRecorder.getInstance();
+        tracer.stop();
+        // Copying the spans is fast, but writing them as JSON can take seconds. The copy also
+        // keeps them from being cleared if recording restarts in onResume before the write is done.
+        final TraceRecorder.Snapshot snapshot = tracer.snapshot();
+        (new Thread() {
+            @Override public void run() {
+                try {
+                    snapshot.writeChromeTrace(new File(path));
+                    Log.i(TAG, "Wrote " + snapshot.getSpanCount() + " trace spans to " + path);
+                }
+                catch (IOException ex) {
+                    Log.e(TAG, "Error writing trace", ex);
+                }
+            }
+        }).start();
+    }
+
     private boolean hasCameraPermission() {
         return Build.VERSION.SDK_INT < Build.VERSION_CODES.M ||
                 PermissionsChecker.hasCameraPermission(this);
@@ -212,10 +373,15 @@ implements Camera.PreviewCallback, ShutterButton.OnShutterButtonListener {
     @SuppressLint("RtlHardcoded")
     void updateFromPreferences() {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
+        List<String[]> allPixelChars = new ArrayList<String[]>();
         for(AsciiConverter.ColorType colorType : AsciiConverter.ColorType.values()) {
             String prefsKey = getString(R.string.pixelCharsPrefIdPrefix) + colorType.name();
             pixelCharsMap.put(colorType, prefs.getString(prefsKey, ""));
+            allPixelChars.add(AsciiConverter.pixelCharsForColorType(colorType, pixelCharsMap.get(colorType)));
         }
+        // Creates the character templates for every color mode along with the current one, so
+        // switching modes doesn't have to draw them.
+        imageRenderer.setPrewarmPixelChars(allPixelChars);
 
         String colorTypeName = prefs.getString("colorType", null);
         if (colorTypeName!=null) {
@@ -228,8 +394,27 @@ implements Camera.PreviewCallback, ShutterButton.OnShutterButtonListener {
             colorType = AsciiConverter.ColorType.ANSI_COLOR;
         }
 
+        try {
+            recordingFrameInterval = Integer.parseInt(
+                    prefs.getString(getString(R.string.recordingFrameIntervalPrefId), "1"));
+        }
+        catch (NumberFormatException ignored) {}
+
         AsciiCamPreferences.setAutoConvertEnabled(this, prefs.getBoolean(getString(R.string.autoConvertPicturesPrefId), false));
 
+        qualityController.setProfile(AdaptiveQualityController.Profile.fromString(
+                prefs.getString(getString(R.string.performanceProfilePrefId), null),
+                AdaptiveQualityController.Profile.FIXED));
+
+        boolean showHud = prefs.getBoolean(getString(R.string.showPerformanceOverlayPrefId), false);
+        if (showHud && performanceHud == null) {
+            performanceHud = new PerformanceHud();
+        }
+        else if (!showHud) {
+            performanceHud = null;
+            overlayView.setHudLines(null);
+        }
+
         boolean controlsOnLeft = prefs.getBoolean(getString(R.string.controlsOnLeftPrefId), false);
         FrameLayout.LayoutParams controlLayout = (FrameLayout.LayoutParams)verticalButtonBar.getLayoutParams();
         controlLayout.gravity = controlsOnLeft ? Gravity.LEFT : Gravity.RIGHT;
@@ -251,71 +436,140 @@ implements Camera.PreviewCallback, ShutterButton.OnShutterButtonListener {
                 break;
             case ACTIVITY_PICK_IMAGE:
                 if (resultCode==RESULT_OK) {
-                    (new Thread() {
-                        @Override public void run() {
-                            try {
-                                final String imagePath = (new ProcessImageOperation()).
-                                        processImage(AsciiCamActivity.this, intent.getData());
-                                handler.post(new Runnable() {
-                                    @Override public void run() {
-                                        ViewImageActivity.startActivityWithImageURI(AsciiCamActivity.this,
-                                                Uri.fromFile(new File(imagePath)), "image/png");
-                                    }
-                                });
-                            }
-                            catch(Exception ex) {
-                                Log.e(TAG, "Failed converting image", ex);
-                            }
+                    ConversionService.getInstance(this).convert(intent.getData(), new ConversionService.Callback() {
+                        @Override public void conversionFinished(Uri uri, final String imagePath) {
+                            handler.post(new Runnable() {
+                                @Override public void run() {
+                                    ViewImageActivity.startActivityWithImageURI(AsciiCamActivity.this,
+                                            Uri.fromFile(new File(imagePath)), "image/png");
+                                }
+                            });
+                        }
+
+                        @Override public void conversionFailed(Uri uri, Throwable error) {
+                            Log.e(TAG, "Failed converting image", error);
                         }
-                    }).start();
+                    });
                 }
                 break;
         }
     }
 
-    void takePictureThreadEntry(final AsciiConverter.Result result) {
-        try {
-            final String pngPath = imageWriter.saveImageAndThumbnail(
-                    imageRenderer.getVisibleBitmap(),
-                    imageRenderer.createThumbnailBitmap(result),
-                    result);
-            AndroidUtils.scanSavedMediaFile(this, pngPath);
-            handler.post(new Runnable() {
-                @Override public void run() {
-                    bitmapSaved(pngPath, "image/png");
+    // Copies the current result on the save queue's capture thread. Synchronizing on asciiResult
+    // ensures that it's not modified while it's copied, and that the renderer's size matches it.
+    ImageSaveQueue.Capture pictureCapture = new ImageSaveQueue.Capture() {
+        @Override public ImageSaveQueue.Picture capturePicture() {
+            synchronized (asciiResult) {
+                if (asciiResult.asciiIndexes == null) {
+                    throw new IllegalStateException("No image to save");
                 }
-            });
+                // The PNG is rendered from the result when it's written, so there's no need to
+                // copy the displayed bitmap.
+                AsciiConverter.Result result = asciiResult.copy();
+                return new ImageSaveQueue.Picture(result,
+                        imageRenderer.createCharTemplate(result),
+                        imageRenderer.getOutputImageWidth(), imageRenderer.getOutputImageHeight(),
+                        imageRenderer.createThumbnailBitmap(result));
+            }
         }
-        catch(IOException ex) {
+    };
+
+    ImageSaveQueue.Callback pictureSaveCallback = new ImageSaveQueue.Callback() {
+        @Override public void pictureSaved(String imagePath, Map<String, Long> writeMillis) {
+            AndroidUtils.scanSavedMediaFile(AsciiCamActivity.this, imagePath);
+            bitmapSaved(imagePath, "image/png");
+        }
+
+        @Override public void pictureSaveFailed(Exception ex) {
             Log.e(TAG, "Error saving picture", ex);
+            bitmapSaved(null, null);
         }
-        finally {
-            handler.post(new Runnable() {
-                @Override public void run() {
-                    saveInProgress = false;
-                }
-            });
+    };
+
+    void takePicture() {
+        if (!hasStoragePermission()) {
+            PermissionsChecker.requestStoragePermissionsToTakePhoto(this);
+            return;
+        }
+        // The preview keeps running while the picture is written in the background.
+        if (!imageSaveQueue.savePicture(pictureCapture, pictureSaveCallback)) {
+            Toast.makeText(getApplicationContext(), getString(R.string.savesInProgress), Toast.LENGTH_SHORT).show();
         }
     }
 
-    void takePicture() {
+    void toggleRecording() {
+        if (resultRecorder != null) {
+            stopRecording();
+        }
+        else {
+            startRecording();
+        }
+    }
+
+    void startRecording() {
         if (!hasStoragePermission()) {
             PermissionsChecker.requestStoragePermissionsToTakePhoto(this);
             return;
         }
-        saveInProgress = true;
-        // Use a separate thread to write the PNG and HTML files, so the UI doesn't block.
+        try {
+            ResultRecorder recorder = new ResultRecorder(imageWriter.createRecordingFile(), recordingFrameInterval);
+            recorder.start();
+            resultRecorder = recorder;
+            Toast.makeText(getApplicationContext(), getString(R.string.recordingStarted), Toast.LENGTH_SHORT).show();
+        }
+        catch (IOException ex) {
+            Log.e(TAG, "Error starting recording", ex);
+            Toast.makeText(getApplicationContext(), getString(R.string.errorRecording), Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    void stopRecording() {
+        final ResultRecorder recorder = resultRecorder;
+        if (recorder == null) return;
+        resultRecorder = null;
+        // Export at the size the frames were shown at.
+        final int exportWidth = imageRenderer.getOutputImageWidth();
+        final int exportHeight = imageRenderer.getOutputImageHeight();
+        // Waiting for the remaining frames to be written and exporting the GIF could take a
+        // while, so don't block the UI.
         (new Thread() {
             @Override public void run() {
-                AsciiConverter.Result savePictureResult = null;
-                synchronized (asciiResult) {
-                    savePictureResult = asciiResult.copy();
+                String gifPath = null;
+                try {
+                    recorder.stop();
+                    showRecordingToast(getString(R.string.recordingSaved,
+                            recorder.getFramesWritten(), recorder.getFramesDropped()));
+                    if (recorder.getFramesWritten() > 0) {
+                        File gifFile = new File(AsciiImageWriter.pathWithExtension(
+                                recorder.getFile().getPath(), ".gif"));
+                        (new AsciiAnimationExporter(exportWidth, exportHeight)).exportGif(recorder.getFile(), gifFile);
+                        gifPath = gifFile.getPath();
+                    }
+                }
+                catch (IOException ex) {
+                    Log.e(TAG, "Error saving recording", ex);
+                    showRecordingToast(getString(R.string.errorRecording));
+                }
+                if (gifPath != null) {
+                    final String path = gifPath;
+                    handler.post(new Runnable() {
+                        @Override public void run() {
+                            bitmapSaved(path, "image/gif");
+                        }
+                    });
                 }
-                takePictureThreadEntry(savePictureResult);
             }
         }).start();
     }
 
+    void showRecordingToast(final String message) {
+        handler.post(new Runnable() {
+            @Override public void run() {
+                Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
     void bitmapSaved(String path, String mimeType) {
         if (!appVisible) return;
         if (path==null) {
@@ -402,27 +656,94 @@ implements Camera.PreviewCallback, ShutterButton.OnShutterButtonListener {
                     AsciiConverter.Orientation.ROTATED_180 : AsciiConverter.Orientation.NORMAL;
 
             synchronized (asciiResult) {
+                long traceStart = TraceRecorder.begin();
+                applyQualitySettings(input);
+                long startNanos = System.nanoTime();
+                queueWaitTimes.record(startNanos - input.receivedNanos);
+                TraceRecorder.getInstance().record("frame.queueWait", input.receivedNanos, startNanos);
                 imageRenderer.setMaximumImageSize(overlayView.getWidth(), overlayView.getHeight());
                 imageRenderer.setCameraImageSize(input.width, input.height);
+                long convertStart = TraceRecorder.begin();
                 asciiConverter.computeResultForCameraData(input.pixelData, input.width, input.height,
                         imageRenderer.asciiRows(), imageRenderer.asciiColumns(),
                         colorType, pixelCharsMap.get(colorType), orientation, asciiResult);
-                return imageRenderer.createBitmap(asciiResult);
+                TraceRecorder.end("frame.convert", convertStart);
+                ResultRecorder recorder = resultRecorder;
+                if (recorder != null) {
+                    long recordStart = TraceRecorder.begin();
+                    recorder.recordFrame(asciiResult, input.timestamp);
+                    TraceRecorder.end("frame.record", recordStart);
+                }
+                long renderStart = TraceRecorder.begin();
+                Bitmap bitmap = imageRenderer.createBitmap(asciiResult);
+                TraceRecorder.end("frame.render", renderStart);
+                convertTimes.record(asciiConverter.getLastComputeNanos());
+                renderTimes.record(imageRenderer.getLastRenderNanos());
+                input.processedNanos = System.nanoTime();
+                // Thread counts change every few frames while calibrating, so don't adjust quality.
+                if (threadCalibrator.isCalibrating()) {
+                    threadCalibrator.frameFinished(asciiConverter.getLastComputeNanos(),
+                            imageRenderer.getLastRenderNanos());
+                }
+                else {
+                    long nowNanos = System.nanoTime();
+                    qualityController.frameProcessed(nowNanos - startNanos, nowNanos);
+                }
+                TraceRecorder.end("frame.process", traceStart);
+                return bitmap;
             }
         }
     };
 
+    // Called on the processing thread before converting a frame.
+    void applyQualitySettings(CameraPreviewData input) {
+        imageRenderer.setTextSizeScale(qualityController.getTextSizeScale());
+        // Calibrated for every profile, since using all cores can be slower whatever the quality.
+        // Replayed frames don't arrive at the camera's rate, so they shouldn't determine the
+        // saved counts.
+        threadCalibrator.startFrame(input.width, input.height, input.camera != null);
+        int convertThreads = threadCalibrator.getConvertThreads();
+        int renderThreads = threadCalibrator.getRenderThreads();
+        if (!threadCalibrator.isCalibrating()) {
+            // qualityController may use fewer threads when frames are fast enough.
+            convertThreads = Math.min(convertThreads, qualityController.getNumThreads());
+            renderThreads = Math.min(renderThreads, qualityController.getNumThreads());
+        }
+        if (convertThreads != asciiConverter.getNumThreads()) {
+            asciiConverter.initThreadPool(convertThreads);
+        }
+        if (renderThreads != imageRenderer.getNumThreads()) {
+            imageRenderer.initRenderThreadPool(renderThreads);
+        }
+    }
+
     // Callback to display the produced Bitmap.
     AsyncProcessor.SuccessCallback<CameraPreviewData, Bitmap> successCallback =
             new AsyncProcessor.SuccessCallback<CameraPreviewData, Bitmap>() {
         @Override public void handleResult(CameraPreviewData input, Bitmap output) {
+            long traceStart = TraceRecorder.begin();
             overlayView.setFlipHorizontal(input.cameraInfo.isFrontFacing());
             overlayView.setBitmap(output);
             overlayView.invalidate();
+            long displayedNanos = System.nanoTime();
+            displayTimes.record(displayedNanos - input.processedNanos);
+            latencyTimes.record(displayedNanos - input.receivedNanos);
+            TraceRecorder.end("frame.display", traceStart);
+            processedFrames.incrementAndGet();
             if (DEBUG) {
                 long processingMillis = System.currentTimeMillis() - input.timestamp;
                 Log.i("AsciiCam", "Processed frame in : " + processingMillis + "ms");
             }
+            // Does nothing unless the grid or sampling changed, for example when the view is first
+            // laid out or qualityController changes the text size.
+            // This has to happen before finishFrame starts converting the next frame into asciiResult.
+            if (input.camera != null) {
+                arManager.setPreviewSizeForGrid(asciiResult.columns, asciiResult.rows,
+                        qualityController.getSamplesPerCell());
+            }
+            if (performanceHud != null) {
+                updatePerformanceHud(input, displayedNanos);
+            }
             finishFrame(input);
         }
     };
@@ -436,40 +757,202 @@ implements Camera.PreviewCallback, ShutterButton.OnShutterButtonListener {
         }
     };
 
+    // Like the grid size above, asciiResult isn't being modified until finishFrame is called.
+    void updatePerformanceHud(CameraPreviewData input, long nowNanos) {
+        String[] lines = performanceHud.update(nowNanos, input.width, input.height,
+                asciiResult.columns, asciiResult.rows,
+                asciiConverter.getNumThreads(), imageRenderer.getNumThreads());
+        if (lines != null) {
+            overlayView.setHudLines(lines);
+        }
+    }
+
     void finishFrame(CameraPreviewData previewData) {
-        CameraUtils.addPreviewCallbackBuffer(previewData.camera, previewData.pixelData);
-        if (imageProcessor != null && nextPreviewData != null) {
-            if (DEBUG) Log.i(TAG, "Processing previously queued data");
-            imageProcessor.processInputAsync(asciiProducer, nextPreviewData, successCallback, errorCallback, handler);
-            nextPreviewData = null;
+        previewFramePool.release(previewData);
+        // If the processor was restarted, this frame is from the previous one and the current
+        // processor may still be busy.
+        if (previewData == frameInProgress) {
+            frameInProgress = null;
+            processNextFrame();
+        }
+    }
+
+    // Starts converting the newest frame if there is one and the processor is idle.
+    void processNextFrame() {
+        if (imageProcessor == null || frameInProgress != null) return;
+        CameraPreviewData previewData = frameMailbox.take();
+        if (previewData != null) {
+            frameInProgress = previewData;
+            imageProcessor.processInputAsync(asciiProducer, previewData, successCallback, errorCallback, handler);
+        }
+    }
+
+    // Releases the frame waiting in frameMailbox, if any.
+    void clearFrameMailbox() {
+        CameraPreviewData previewData = frameMailbox.clear();
+        if (previewData != null) {
+            previewFramePool.release(previewData);
+        }
+    }
+
+    // Returns a frame's buffer to the camera or replay source that it came from.
+    void releasePreviewBuffer(CameraPreviewData previewData) {
+        if (previewData.camera != null) {
+            arManager.addPreviewCallbackBuffer(previewData.camera, previewData.pixelData);
+        }
+        else if (previewReplaySource != null) {
+            previewReplaySource.releaseBuffer(previewData.pixelData);
         }
     }
 
+    // Called for every frame, so this uses the preview size and camera info cached by arManager
+    // and reuses CameraPreviewData objects rather than allocating.
     @Override public void onPreviewFrame(byte[] data, Camera camera) {
-        if (saveInProgress || imageProcessor == null) {
-            CameraUtils.addPreviewCallbackBuffer(camera, data);
+        long startNanos = System.nanoTime();
+        int width = arManager.getPreviewWidth();
+        int height = arManager.getPreviewHeight();
+        // A frame can arrive with a buffer of the previous size just after the size changes. A
+        // larger buffer would be read with the wrong row width, so sizes must match exactly.
+        if (imageProcessor == null || data.length != arManager.getPreviewBufferSize()) {
+            arManager.addPreviewCallbackBuffer(camera, data);
             return;
         }
-        Camera.Size size = camera.getParameters().getPreviewSize();
-        CameraPreviewData previewData = new CameraPreviewData(
-                camera, CameraUtils.getCameraInfo(arManager.getCameraId()), data,
-                size.width, size.height,
-                System.currentTimeMillis());
-        if (imageProcessor.getStatus() == AsyncProcessor.Status.IDLE) {
-            imageProcessor.processInputAsync(asciiProducer, previewData, successCallback, errorCallback, handler);
+        CameraPreviewData previewData = previewFramePool.obtain(
+                camera, arManager.getCameraInfo(), data, width, height, System.currentTimeMillis());
+        if (previewCaptureExecutor != null) {
+            capturePreviewFrame(previewData);
         }
-        else {
-            if (DEBUG) Log.i(TAG, "AsyncProcessor is busy, queueing data");
-            if (nextPreviewData != null) {
-                // This will normally only happen if there are at least 3 preview buffers: one for
-                // the image currently being processed, one held in nextPreviewData, and the third
-                // incoming buffer. With only 2 buffers, we'll stop receiving previews until the
-                // current image is completed and its buffer is released.
-                if (DEBUG) Log.i(TAG, "Replacing previous data");
-                CameraUtils.addPreviewCallbackBuffer(nextPreviewData.camera, nextPreviewData.pixelData);
+        processPreviewData(previewData);
+        long endNanos = System.nanoTime();
+        ingressTimes.record(endNanos - startNanos);
+        TraceRecorder.getInstance().record("frame.ingress", startNanos, endNanos);
+    }
+
+    void processPreviewData(CameraPreviewData previewData) {
+        CameraPreviewData replaced = frameMailbox.offer(previewData);
+        if (replaced != null) {
+            // The processor didn't get to the previous frame before this one arrived.
+            if (DEBUG) Log.i(TAG, "Replacing previous data");
+            droppedFrames.incrementAndGet();
+            previewFramePool.release(replaced);
+        }
+        processNextFrame();
+    }
+
+    void startPreviewCapture() {
+        String path = getIntent().getStringExtra(CAPTURE_FRAMES_PATH_EXTRA);
+        if (path == null || previewCaptureExecutor != null) return;
+        try {
+            previewCaptureWriter = new PreviewCaptureWriter(new File(path), MAX_CAPTURE_FILE_BYTES);
+            previewCaptureExecutor = Executors.newSingleThreadExecutor();
+            Log.i(TAG, "Capturing preview frames to " + path);
+        }
+        catch (IOException ex) {
+            Log.e(TAG, "Unable to create preview capture file", ex);
+        }
+    }
+
+    // Writes the frame to the capture file on previewCaptureExecutor. The frame's buffer isn't
+    // returned to the camera until it's been written.
+    void capturePreviewFrame(final CameraPreviewData previewData) {
+        final PreviewCaptureWriter writer = previewCaptureWriter;
+        previewFramePool.retain(previewData);
+        previewCaptureExecutor.execute(new Runnable() {
+            @Override public void run() {
+                writePreviewFrame(writer, previewData);
+                handler.post(new Runnable() {
+                    @Override public void run() {
+                        previewFramePool.release(previewData);
+                    }
+                });
+            }
+        });
+    }
+
+    // Called on previewCaptureExecutor.
+    static void writePreviewFrame(PreviewCaptureWriter writer, CameraPreviewData previewData) {
+        if (writer.isClosed()) return;
+        try {
+            if (!writer.writeFrame(previewData.pixelData, previewData.pixelData.length,
+                    previewData.width, previewData.height, previewData.cameraInfo, previewData.timestamp)) {
+                Log.i(TAG, "Preview capture file is full");
+                closePreviewCaptureWriter(writer);
             }
-            nextPreviewData = previewData;
         }
+        catch (IOException ex) {
+            Log.e(TAG, "Error capturing preview frame", ex);
+            closePreviewCaptureWriter(writer);
+        }
+    }
+
+    // Called on previewCaptureExecutor.
+    static void closePreviewCaptureWriter(PreviewCaptureWriter writer) {
+        if (writer.isClosed()) return;
+        try {
+            Log.i(TAG, "Captured " + writer.getFramesWritten() + " preview frames");
+            writer.close();
+        }
+        catch (IOException ex) {
+            Log.e(TAG, "Error closing preview capture file", ex);
+        }
+    }
+
+    // Closes the capture file after any frames still being written.
+    void closePreviewCapture() {
+        if (previewCaptureExecutor == null) return;
+        final PreviewCaptureWriter writer = previewCaptureWriter;
+        previewCaptureExecutor.execute(new Runnable() {
+            @Override public void run() {
+                closePreviewCaptureWriter(writer);
+            }
+        });
+        previewCaptureExecutor.shutdown();
+        previewCaptureExecutor = null;
+        previewCaptureWriter = null;
+    }
+
+    void startPreviewReplay() {
+        String path = getIntent().getStringExtra(REPLAY_FRAMES_PATH_EXTRA);
+        try {
+            PreviewCaptureReader reader = new PreviewCaptureReader(new File(path));
+            previewReplaySource = new PreviewReplaySource(reader,
+                    getIntent().getIntExtra(REPLAY_FRAME_INTERVAL_EXTRA, 0),
+                    getIntent().getIntExtra(REPLAY_LOOP_COUNT_EXTRA, 1), 3);
+            Log.i(TAG, "Replaying " + reader.getFrameCount() + " preview frames from " + path);
+        }
+        catch (IOException ex) {
+            Log.e(TAG, "Unable to read preview capture file", ex);
+            return;
+        }
+        final PreviewReplaySource replaySource = previewReplaySource;
+        replaySource.start(new PreviewReplaySource.Listener() {
+            @Override public void onReplayFrame(final byte[] data, final int width, final int height,
+                    final CameraUtils.CameraInfo cameraInfo, final long timestamp) {
+                handler.post(new Runnable() {
+                    @Override public void run() {
+                        if (imageProcessor == null || previewReplaySource != replaySource) {
+                            replaySource.releaseBuffer(data);
+                            return;
+                        }
+                        processPreviewData(previewFramePool.obtain(null, cameraInfo, data, width, height, timestamp));
+                    }
+                });
+            }
+
+            @Override public void onReplayFinished(int framesPlayed, long elapsedMillis) {
+                Log.i(TAG, "Replayed " + framesPlayed + " frames in " + elapsedMillis + "ms (" +
+                        (framesPlayed * 1000.0 / Math.max(elapsedMillis, 1)) + " fps)");
+            }
+        });
+    }
+
+    void stopPreviewCaptureAndReplay() {
+        closePreviewCapture();
+        if (previewReplaySource != null) {
+            previewReplaySource.stop();
+            previewReplaySource = null;
+        }
+        clearFrameMailbox();
     }
 
     @Override public void onShutterButtonFocus(boolean pressed) {
@@ -28,6 +28,14 @@ public class AsciiCamPreferences extends PreferenceActivity {
                 return true;
             }
         });
+
+        // Show the settings currently chosen for the camera preview, if it has run.
+        String qualityStatus = AdaptiveQualityController.getLastStatus();
+        if (qualityStatus != null) {
+            Preference profilePref = getPreferenceManager().findPreference(getString(R.string.performanceProfilePrefId));
+            profilePref.setSummary(getString(R.string.performanceProfilePrefSummary) + "\n" +
+                    getString(R.string.performanceProfileCurrentSettings, qualityStatus));
+        }
     }
 
     // sets FLAG_ACTIVITY_NO_HISTORY so exiting and relaunching won't go back to this screen
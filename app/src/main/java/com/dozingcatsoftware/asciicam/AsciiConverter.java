@@ -10,6 +10,8 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import com.dozingcatsoftware.util.TraceRecorder;
+
 import android.graphics.Bitmap;
 
 /**
@@ -129,6 +131,35 @@ public class AsciiConverter {
             if (asciiColors!=null) rcopy.asciiColors = asciiColors.clone();
             return rcopy;
         }
+
+        /**
+         * Copies this result into another result, reusing the destination's arrays if they are the
+         * right size. Unlike copy(), this doesn't allocate when called repeatedly with results of
+         * the same dimensions.
+         */
+        public void copyInto(Result dest) {
+            dest.rows = this.rows;
+            dest.columns = this.columns;
+            dest.colorType = this.colorType;
+            dest.debugInfo = null;
+            dest.pixelChars = copyArray(pixelChars, dest.pixelChars);
+            dest.asciiIndexes = copyArray(asciiIndexes, dest.asciiIndexes);
+            dest.asciiColors = copyArray(asciiColors, dest.asciiColors);
+        }
+
+        private static String[] copyArray(String[] src, String[] dest) {
+            if (src==null) return null;
+            if (dest==null || dest.length!=src.length) return src.clone();
+            System.arraycopy(src, 0, dest, 0, src.length);
+            return dest;
+        }
+
+        private static int[] copyArray(int[] src, int[] dest) {
+            if (src==null) return null;
+            if (dest==null || dest.length!=src.length) return src.clone();
+            System.arraycopy(src, 0, dest, 0, src.length);
+            return dest;
+        }
     }
 
     static boolean nativeCodeAvailable = false;
@@ -185,16 +216,25 @@ public class AsciiConverter {
         // Returns time in nanoseconds to execute.
         @Override public Long call() {
             long t1 = System.nanoTime();
+            long traceStart = TraceRecorder.begin();
             int startRow = asciiRows * segmentNumber / totalSegments;
             int endRow = asciiRows * (segmentNumber + 1) / totalSegments;
             computeResultForRows(data, imageWidth, imageHeight, asciiRows, asciiColumns,
                     colorType, pixelChars, result, startRow, endRow);
+            TraceRecorder.end("convert.worker", traceStart);
             return System.nanoTime() - t1;
         }
     }
 
     ExecutorService threadPool;
     List<Worker> threadWorkers;
+    // Timings of the most recent computeResultForCameraData call, see getLastComputeNanos.
+    long lastComputeNanos;
+    long[] lastWorkerNanos = new long[0];
+    // The characters used for the previous camera frame, see computeResultForCameraData.
+    String lastPixelCharString;
+    ColorType lastPixelCharsColorType;
+    String[] lastPixelChars;
 
     public void initThreadPool(int numThreads) {
         destroyThreadPool();
@@ -206,6 +246,24 @@ public class AsciiConverter {
         }
     }
 
+    /** Returns the number of threads, or 0 if the thread pool hasn't been created. */
+    public int getNumThreads() {
+        return (threadPool != null) ? threadWorkers.size() : 0;
+    }
+
+    /** Returns the time in nanoseconds taken by the most recent computeResultForCameraData call. */
+    public long getLastComputeNanos() {
+        return lastComputeNanos;
+    }
+
+    /**
+     * Returns the time in nanoseconds that each thread took in the most recent
+     * computeResultForCameraData call. The array is reused for later calls.
+     */
+    public long[] getLastWorkerNanos() {
+        return lastWorkerNanos;
+    }
+
     public void destroyThreadPool() {
         if (threadPool!=null) {
             threadPool.shutdown();
@@ -213,6 +271,15 @@ public class AsciiConverter {
         }
     }
 
+    /**
+     * Returns the characters to use for a color type, as single-character strings ordered by
+     * brightness. If pixelCharString is null or empty the defaults for the color type are used.
+     */
+    public static String[] pixelCharsForColorType(ColorType colorType, String pixelCharString) {
+        return (pixelCharString!=null && pixelCharString.length() > 0) ?
+                toPixelCharArray(pixelCharString) : colorType.getDefaultPixelChars();
+    }
+
     private static String[] toPixelCharArray(String str) {
         if (str==null || str.length()==0) return null;
         String[] charArray = new String[str.length()];
@@ -231,22 +298,39 @@ public class AsciiConverter {
         if (threadPool==null) {
             initThreadPool(0);
         }
+        // Reuse the array from the previous frame if the characters are the same, so that
+        // AsciiRenderer can tell that its character template is still valid without comparing.
+        boolean sameChars = (pixelCharString == null) ?
+                lastPixelCharString == null : pixelCharString.equals(lastPixelCharString);
+        if (lastPixelChars == null || colorType != lastPixelCharsColorType || !sameChars) {
+            lastPixelChars = pixelCharsForColorType(colorType, pixelCharString);
+            lastPixelCharsColorType = colorType;
+            lastPixelCharString = pixelCharString;
+        }
         for(Worker worker : threadWorkers) {
-            worker.setValues(data, imageWidth, imageHeight, asciiRows, asciiCols, toPixelCharArray(pixelCharString), colorType, result);
+            worker.setValues(data, imageWidth, imageHeight, asciiRows, asciiCols, lastPixelChars, colorType, result);
         }
         try {
         	// invoke call() method of all workers and wait for them to finish
             List<Future<Long>> threadTimes = threadPool.invokeAll(threadWorkers);
             result.adjustForOrientation(orientation);
+            long t2 = System.nanoTime();
+            lastComputeNanos = t2 - t1;
+            if (lastWorkerNanos.length != threadTimes.size()) {
+                lastWorkerNanos = new long[threadTimes.size()];
+            }
+            for(int i=0; i<threadTimes.size(); i++) {
+                try {
+                    lastWorkerNanos[i] = threadTimes.get(i).get();
+                }
+                catch(ExecutionException ex) {
+                    lastWorkerNanos[i] = 0;
+                }
+            }
             if (DEBUG) {
-                long t2 = System.nanoTime();
                 StringBuilder builder = new StringBuilder();
-                for(int i=0; i<threadTimes.size(); i++) {
-                    try {
-                        long threadNanos = threadTimes.get(i).get();
-                        builder.append(String.format("Thread %d time: %d ms", i+1, threadNanos/1000000)).append("\n");
-                    }
-                    catch(ExecutionException ex) {}
+                for(int i=0; i<lastWorkerNanos.length; i++) {
+                    builder.append(String.format("Thread %d time: %d ms", i+1, lastWorkerNanos[i]/1000000)).append("\n");
                 }
                 builder.append(String.format("Total time: %d ms", (t2-t1) / 1000000));
                 result.debugInfo = builder.toString();
@@ -393,6 +477,9 @@ public class AsciiConverter {
         }
     }
 
+    // Pixels of the bitmap rows for a row of characters, see computeResultForBitmap.
+    int[] bitmapRowPixels;
+
     /** Builds an ASCII image from an existing bitmap. Used to convert existing pictures; not
      * native or threaded because speed is less important.
      */
@@ -404,17 +491,20 @@ public class AsciiConverter {
         result.colorType = colorType;
         result.asciiColors = new int[asciiRows*asciiCols];
         result.asciiIndexes = new int[asciiRows*asciiCols];
-        result.pixelChars = (pixelCharString!=null && pixelCharString.length() > 0) ?
-                toPixelCharArray(pixelCharString) : colorType.getDefaultPixelChars();
+        result.pixelChars = pixelCharsForColorType(colorType, pixelCharString);
 
-        int[] pixels = null;
+        // Reuse the row buffer from the previous call if it's large enough.
+        int maxRowPixels = (bitmap.getHeight() / asciiRows + 2) * bitmap.getWidth();
+        if (bitmapRowPixels == null || bitmapRowPixels.length < maxRowPixels) {
+            bitmapRowPixels = new int[maxRowPixels];
+        }
+        int[] pixels = bitmapRowPixels;
         int asciiIndex = 0;
         for(int r=0; r<asciiRows; r++) {
             // compute grid of data pixels whose brightness and colors to average
             int ymin = bitmap.getHeight() * r / asciiRows;
             int ymax = bitmap.getHeight() * (r+1) / asciiRows;
             // read all pixels for this row of characters
-            if (pixels==null) pixels = new int[(ymax-ymin+1) * bitmap.getWidth()];
             bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, ymin, bitmap.getWidth(), ymax-ymin);
             for(int c=0; c<asciiCols; c++) {
                 int xmin = bitmap.getWidth() * c / asciiCols;
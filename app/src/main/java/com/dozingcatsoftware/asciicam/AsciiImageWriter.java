@@ -1,13 +1,28 @@
 package com.dozingcatsoftware.asciicam;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import com.dozingcatsoftware.util.ScaledBitmapCache;
 
 import android.graphics.Bitmap;
 import android.os.Environment;
@@ -17,6 +32,29 @@ import android.os.Environment;
  */
 public class AsciiImageWriter {
 
+    public static enum HtmlFormat {
+        // A style="color:..." attribute on every span, as in the original HTML output.
+        INLINE_STYLES,
+        // Colors are quantized and assigned short class names in a <style> block.
+        STYLE_CLASSES,
+    }
+
+    // Number of low bits dropped from each color component when building CSS classes. 3 bits
+    // leaves 32 levels per component, which isn't noticeable for text-sized glyphs but cuts the
+    // number of distinct classes in full color mode by a large factor.
+    static final int HTML_COLOR_QUANTIZE_BITS = 3;
+
+    HtmlFormat htmlFormat = HtmlFormat.STYLE_CLASSES;
+    boolean gzipHtml = false;
+
+    // Shared by all writers, since ImageSaveQueue and ConversionService each have their own and
+    // may save pictures at the same time. Access is synchronized on the set.
+    static final Set<String> reservedImageNames = new HashSet<String>();
+    // Held while creating HTML and text files, so that two threads don't create the same one.
+    static final Object generatedFileLock = new Object();
+    // Files created from a picture, which are deleted with it.
+    static final String[] GENERATED_EXTENSIONS = {".asc", ".html", ".html.gz", ".txt"};
+
     DateFormat filenameDateFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
 
     String basePictureDirectory = Environment.getExternalStorageDirectory() + File.separator + "AsciiCam";
@@ -29,45 +67,268 @@ public class AsciiImageWriter {
         return basePictureDirectory + File.separator + "thumbnails";
     }
 
-    public String saveImageAndThumbnail(Bitmap image, Bitmap thumbnail, AsciiConverter.Result asciiResult)
-            throws IOException {
-        String datestr = filenameDateFormat.format(new Date());
+    /** Returns the library for the picture directory, whose index is updated as pictures are saved. */
+    public ImageLibrary getImageLibrary() {
+        return new ImageLibrary(getBasePictureDirectory(), getThumbnailDirectory());
+    }
+
+    public String getRecordingDirectory() {
+        return basePictureDirectory + File.separator + "recordings";
+    }
+
+    public HtmlFormat getHtmlFormat() {
+        return htmlFormat;
+    }
+
+    public void setHtmlFormat(HtmlFormat format) {
+        this.htmlFormat = format;
+    }
+
+    public boolean isGzipHtml() {
+        return gzipHtml;
+    }
+
+    /** If true, HTML files are written as "[name].html.gz" instead of "[name].html". */
+    public void setGzipHtml(boolean value) {
+        this.gzipHtml = value;
+    }
+
+    /**
+     * Returns a name for a new picture based on the current time, and creates the picture
+     * directory if needed. If a picture with the same name already exists or is being saved
+     * (from taking several pictures within one second), a numeric suffix is added. The name stays
+     * reserved for all AsciiImageWriter instances until releaseImageName is called.
+     */
+    public synchronized String reserveImageName() throws IOException {
         String dir = getBasePictureDirectory();
-        // make sure image and thumbnail directories exist
         (new File(dir)).mkdirs();
         if (!((new File(dir)).isDirectory())) {
-            return null;
+            throw new IOException("Unable to create directory: " + dir);
+        }
+        String datestr = filenameDateFormat.format(new Date());
+        String name = datestr;
+        synchronized (reservedImageNames) {
+            for (int suffix=2; reservedImageNames.contains(name) ||
+                    (new File(dir + File.separator + name + ".png")).exists(); suffix++) {
+                name = datestr + "-" + suffix;
+            }
+            reservedImageNames.add(name);
+        }
+        return name;
+    }
+
+    public void releaseImageName(String imageName) {
+        synchronized (reservedImageNames) {
+            reservedImageNames.remove(imageName);
+        }
+    }
+
+    /**
+     * Returns a new file in the recordings directory for a ResultRecorder, named by the current
+     * time like pictures are.
+     */
+    public synchronized File createRecordingFile() throws IOException {
+        String dir = getRecordingDirectory();
+        (new File(dir)).mkdirs();
+        if (!((new File(dir)).isDirectory())) {
+            throw new IOException("Unable to create directory: " + dir);
         }
-        String pngPath = saveBitmap(image, dir, datestr);
+        String datestr = filenameDateFormat.format(new Date());
+        File file = new File(dir + File.separator + datestr + ".ascr");
+        for (int suffix=2; file.exists(); suffix++) {
+            file = new File(dir + File.separator + datestr + "-" + suffix + ".ascr");
+        }
+        return file;
+    }
 
-        String htmlPath = dir + File.separator + datestr + ".html";
-        FileWriter htmlOutput = new FileWriter(htmlPath);
+    public String saveImageAndThumbnail(AsciiConverter.Result asciiResult, AsciiRenderer.CharTemplate charTemplate,
+            int imageWidth, int imageHeight, Bitmap thumbnail) throws IOException {
+        String imageName = reserveImageName();
         try {
-            writeHtml(asciiResult, htmlOutput, datestr);
+            String dir = getStagingDirectory();
+            savePng(asciiResult, charTemplate, imageWidth, imageHeight, dir, imageName);
+            // HTML and text files are created from the .asc file when they're first needed;
+            // see htmlFileForImage and textFileForImage.
+            saveResult(asciiResult, dir, imageName);
+            if (thumbnail!=null) {
+                saveThumbnail(thumbnail, imageName);
+            }
+            return addStagedPicture(imageName);
+        }
+        catch (IOException ex) {
+            discardStagedPicture(imageName);
+            throw ex;
         }
         finally {
-            htmlOutput.close();
+            releaseImageName(imageName);
         }
+    }
+
+    /**
+     * Returns the directory where a new picture's PNG and .asc files are written, before
+     * addStagedPicture moves them into the picture directory.
+     */
+    public String getStagingDirectory() {
+        return getImageLibrary().getStagingDirectory().getPath();
+    }
 
-        String textPath = dir + File.separator + datestr + ".txt";
-        FileWriter textOutput = new FileWriter(textPath);
+    /**
+     * Moves the PNG and .asc files for a reserved picture name from the staging directory into the
+     * picture directory, and adds the picture to the library index. The thumbnail should already
+     * be saved. Returns the path of the PNG file.
+     */
+    public String addStagedPicture(String imageName) throws IOException {
+        String stagingDir = getStagingDirectory();
+        String dir = getBasePictureDirectory();
+        // The .asc file is moved first, so the picture is complete once the PNG is there.
+        List<File> sources = Arrays.asList(
+                new File(stagingDir, imageName + ".asc"), new File(stagingDir, imageName + ".png"));
+        List<File> destinations = Arrays.asList(
+                new File(dir, imageName + ".asc"), new File(dir, imageName + ".png"));
+        getImageLibrary().moveFiles(sources, destinations);
+        return destinations.get(1).getPath();
+    }
+
+    /** Deletes any files written for a picture that couldn't be saved. */
+    public void discardStagedPicture(String imageName) {
+        String stagingDir = getStagingDirectory();
+        (new File(stagingDir, imageName + ".png")).delete();
+        (new File(stagingDir, imageName + ".asc")).delete();
+        (new File(getThumbnailDirectory(), imageName + ".png")).delete();
+    }
+
+    String saveThumbnail(Bitmap thumbnail, String imageName) throws IOException {
+        String thumbnailDir = getThumbnailDirectory();
+        (new File(thumbnailDir)).mkdirs();
+        // create .noindex file so thumbnail pictures won't be indexed and show up in the gallery app
+        (new File(thumbnailDir + File.separator + ".nomedia")).createNewFile();
+        return saveBitmap(thumbnail, thumbnailDir, imageName);
+    }
+
+    /** Writes the result as a PNG image without creating a Bitmap, see AsciiPngWriter. */
+    String savePng(AsciiConverter.Result result, AsciiRenderer.CharTemplate charTemplate,
+            int imageWidth, int imageHeight, String dir, String imageName) throws IOException {
+        String outputFilePath = dir + File.separator + imageName + ".png";
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFilePath));
         try {
-            writeText(asciiResult, textOutput, datestr);
+            (new AsciiPngWriter(result, charTemplate, imageWidth, imageHeight)).writePng(output);
         }
         finally {
-            textOutput.close();
+            output.close();
+        }
+        return outputFilePath;
+    }
+
+    String saveResult(AsciiConverter.Result result, String dir, String imageName) throws IOException {
+        String resultPath = dir + File.separator + imageName + ".asc";
+        AsciiResultWriter resultWriter = new AsciiResultWriter(new BufferedOutputStream(
+                new FileOutputStream(resultPath)),
+                AsciiResultWriter.FLAG_DEFLATE | AsciiResultWriter.FLAG_DELTA);
+        try {
+            resultWriter.write(result);
+        }
+        finally {
+            resultWriter.close();
+        }
+        return resultPath;
+    }
+
+    /** Reads the first result from a file written by saveResult. */
+    public static AsciiConverter.Result readResult(File resultFile) throws IOException {
+        AsciiResultReader reader = new AsciiResultReader(new BufferedInputStream(new FileInputStream(resultFile)));
+        try {
+            AsciiConverter.Result result = reader.read();
+            if (result == null) {
+                throw new IOException("No result in " + resultFile);
+            }
+            return result;
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    // Replaces the ".png" extension of imagePath with the given extension.
+    static String pathWithExtension(String imagePath, String extension) {
+        int dotIndex = imagePath.lastIndexOf('.');
+        String base = (dotIndex > imagePath.lastIndexOf(File.separatorChar)) ? imagePath.substring(0, dotIndex) : imagePath;
+        return base + extension;
+    }
+
+    /**
+     * Deletes a saved picture, the files created from it, and its thumbnail files, and removes it
+     * from the library index. Returns true if the picture was deleted. Thumbnails in the library's
+     * ThumbnailPack are removed by ScaledBitmapCache.removeUri, or when the library is next loaded.
+     */
+    public boolean deleteImage(String imagePath) {
+        File imageFile = new File(imagePath);
+        List<File> files = new ArrayList<File>();
+        files.add(imageFile);
+        for (String extension : GENERATED_EXTENSIONS) {
+            File file = new File(pathWithExtension(imagePath, extension));
+            if (file.exists()) {
+                files.add(file);
+            }
+        }
+        boolean deleted = getImageLibrary().deleteFiles(files).contains(imageFile);
+        if (deleted) {
+            ScaledBitmapCache.deleteThumbnailFiles(new File(getThumbnailDirectory(), imageFile.getName()));
         }
+        return deleted;
+    }
 
-        if (thumbnail!=null) {
-            String thumbnailDir = getThumbnailDirectory();
-            (new File(thumbnailDir)).mkdirs();
-            // create .noindex file so thumbnail pictures won't be indexed and show up in the gallery app
-            (new File(thumbnailDir + File.separator + ".nomedia")).createNewFile();
+    /**
+     * Returns the HTML file for the PNG image at imagePath. Pictures saved by older versions have
+     * HTML files written at the same time as the image; otherwise the HTML is created from the
+     * .asc file saved with the image. Returns null if neither exists.
+     */
+    public File htmlFileForImage(String imagePath) throws IOException {
+        synchronized (generatedFileLock) {
+            File htmlFile = new File(pathWithExtension(imagePath, ".html"));
+            if (htmlFile.isFile()) return htmlFile;
+            File gzipFile = new File(pathWithExtension(imagePath, ".html.gz"));
+            if (gzipFile.isFile()) return gzipFile;
+            File resultFile = new File(pathWithExtension(imagePath, ".asc"));
+            if (!resultFile.isFile()) return null;
 
-            saveBitmap(thumbnail, thumbnailDir, datestr);
+            File imageFile = new File(imagePath);
+            String imageName = pathWithExtension(imageFile.getName(), "");
+            File stagedFile = new File(saveHtml(readResult(resultFile), getStagingDirectory(), imageName));
+            return moveStagedFile(stagedFile, imageFile.getParentFile());
         }
+    }
 
-        return pngPath;
+    /** Returns the text file for the PNG image at imagePath, creating it if needed as in htmlFileForImage. */
+    public File textFileForImage(String imagePath) throws IOException {
+        synchronized (generatedFileLock) {
+            File textFile = new File(pathWithExtension(imagePath, ".txt"));
+            if (textFile.isFile()) return textFile;
+            File resultFile = new File(pathWithExtension(imagePath, ".asc"));
+            if (!resultFile.isFile()) return null;
+
+            AsciiConverter.Result result = readResult(resultFile);
+            File stagedFile = new File(getStagingDirectory(), textFile.getName());
+            Writer textOutput = new BufferedWriter(new FileWriter(stagedFile));
+            try {
+                writeText(result, textOutput, pathWithExtension(textFile.getName(), ""));
+            }
+            finally {
+                textOutput.close();
+            }
+            return moveStagedFile(stagedFile, textFile.getParentFile());
+        }
+    }
+
+    File moveStagedFile(File stagedFile, File dir) throws IOException {
+        File file = new File(dir, stagedFile.getName());
+        try {
+            getImageLibrary().moveFiles(Collections.singletonList(stagedFile), Collections.singletonList(file));
+        }
+        catch (IOException ex) {
+            stagedFile.delete();
+            throw ex;
+        }
+        return file;
     }
 
     String saveBitmap(Bitmap bitmap, String dir, String imageName) throws IOException {
@@ -85,6 +346,28 @@ public class AsciiImageWriter {
         return outputFilePath;
     }
 
+    String saveHtml(AsciiConverter.Result result, String dir, String imageName) throws IOException {
+        String htmlPath = dir + File.separator + imageName + (gzipHtml ? ".html.gz" : ".html");
+        OutputStream output = new FileOutputStream(htmlPath);
+        try {
+            if (gzipHtml) {
+                output = new GZIPOutputStream(output);
+            }
+            Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+            if (htmlFormat == HtmlFormat.STYLE_CLASSES) {
+                writeHtmlWithStyleClasses(result, writer, imageName);
+            }
+            else {
+                writeHtml(result, writer, imageName);
+            }
+            writer.flush();
+        }
+        finally {
+            output.close();
+        }
+        return htmlPath;
+    }
+
     public void writeHtml(AsciiConverter.Result result, Writer writer, String imageName) throws IOException {
         // backgroundColor always has the high bits set for alpha, so toHexString() will be 8 characters.
         String backgroundColor = "#" + Integer.toHexString(result.backgroundColor()).substring(2, 8);
@@ -126,6 +409,124 @@ public class AsciiImageWriter {
         writer.write("</div></body></html>");
     }
 
+    /**
+     * Writes HTML where each distinct (quantized) color is defined once as a CSS class, and
+     * characters are grouped into <span class=...> runs. Classes are ordered by how often they're
+     * used, so the most common colors get the shortest names. This is much smaller than
+     * writeHtml for full color images, which have a different color for almost every character.
+     */
+    public void writeHtmlWithStyleClasses(AsciiConverter.Result result, Writer writer, String imageName)
+            throws IOException {
+        int numCells = result.rows * result.columns;
+        int[] cellColors = new int[numCells];
+        for (int r=0, i=0; r<result.rows; r++) {
+            for (int c=0; c<result.columns; c++, i++) {
+                cellColors[i] = quantizeHtmlColor(result.colorAtRowColumn(r, c));
+            }
+        }
+
+        // Find distinct colors and how often they occur by sorting a copy of the cell colors.
+        int[] sortedColors = cellColors.clone();
+        Arrays.sort(sortedColors);
+        int numDistinct = 0;
+        int[] distinctColors = new int[numCells];
+        int[] colorCounts = new int[numCells];
+        for (int i=0; i<numCells; i++) {
+            if (numDistinct==0 || sortedColors[i]!=distinctColors[numDistinct-1]) {
+                distinctColors[numDistinct++] = sortedColors[i];
+            }
+            colorCounts[numDistinct-1]++;
+        }
+        distinctColors = Arrays.copyOf(distinctColors, numDistinct);
+
+        // Order by decreasing count. Sort (count, position) pairs packed into longs to avoid boxing.
+        long[] countOrder = new long[numDistinct];
+        for (int i=0; i<numDistinct; i++) {
+            countOrder[i] = ((long)(numCells - colorCounts[i]) << 32) | i;
+        }
+        Arrays.sort(countOrder);
+        int[] classForDistinctIndex = new int[numDistinct];
+        int[] colorForClass = new int[numDistinct];
+        for (int classIndex=0; classIndex<numDistinct; classIndex++) {
+            int distinctIndex = (int)(countOrder[classIndex] & 0xffffffffL);
+            classForDistinctIndex[distinctIndex] = classIndex;
+            colorForClass[classIndex] = distinctColors[distinctIndex];
+        }
+
+        String backgroundColor = htmlHexColor(result.backgroundColor());
+        writer.write("<html><head><title>Ascii Picture " + imageName + "</title>\n<style>\n");
+        for (int i=0; i<numDistinct; i++) {
+            writer.write("." + htmlClassName(i) + "{color:" + htmlHexColor(colorForClass[i]) + "}\n");
+        }
+        writer.write("</style></head>");
+        writer.write("<body style=\"background:" + backgroundColor + "\">" +
+                     "<div style=\"background:" + backgroundColor + "; letter-spacing:3px;\">\n");
+
+        writer.write("<pre>");
+        StringBuilder rowBuffer = new StringBuilder();
+        for (int r=0, i=0; r<result.rows; r++) {
+            rowBuffer.setLength(0);
+            // The class of the currently open span, or -1 if no span is open.
+            int currentClass = -1;
+            for (int c=0; c<result.columns; c++, i++) {
+                String asciiChar = result.stringAtRowColumn(r, c);
+                // Spaces don't need a color, so they can go in whatever span is open.
+                if (!" ".equals(asciiChar)) {
+                    int distinctIndex = Arrays.binarySearch(distinctColors, cellColors[i]);
+                    int cssClass = classForDistinctIndex[distinctIndex];
+                    if (cssClass != currentClass) {
+                        if (currentClass >= 0) {
+                            rowBuffer.append("</span>");
+                        }
+                        rowBuffer.append("<span class=").append(htmlClassName(cssClass)).append(">");
+                        currentClass = cssClass;
+                    }
+                }
+                appendHtmlEscaped(rowBuffer, asciiChar);
+            }
+            if (currentClass >= 0) {
+                rowBuffer.append("</span>");
+            }
+            rowBuffer.append("\n");
+            writer.write(rowBuffer.toString());
+        }
+        writer.write("</pre>\n");
+        writer.write("</div></body></html>");
+    }
+
+    static int quantizeHtmlColor(int color) {
+        int mask = (0xff << HTML_COLOR_QUANTIZE_BITS) & 0xff;
+        int quantized = color & ((mask << 16) | (mask << 8) | mask);
+        // Fill the dropped bits from the high bits so that full intensity stays at 0xff.
+        int fill = (quantized >> (8 - HTML_COLOR_QUANTIZE_BITS)) & (((1 << HTML_COLOR_QUANTIZE_BITS) - 1) * 0x010101);
+        return quantized | fill;
+    }
+
+    static String htmlHexColor(int color) {
+        String hex = Integer.toHexString(color & 0x00ffffff);
+        while (hex.length() < 6) {
+            hex = "0" + hex;
+        }
+        return "#" + hex;
+    }
+
+    // Class names must start with a letter; the rest is the class index in base 36.
+    static String htmlClassName(int classIndex) {
+        return "c" + Integer.toString(classIndex, 36);
+    }
+
+    static void appendHtmlEscaped(StringBuilder buffer, String str) {
+        for (int i=0; i<str.length(); i++) {
+            char ch = str.charAt(i);
+            switch (ch) {
+                case '<': buffer.append("&lt;"); break;
+                case '>': buffer.append("&gt;"); break;
+                case '&': buffer.append("&amp;"); break;
+                default: buffer.append(ch); break;
+            }
+        }
+    }
+
     public void writeText(AsciiConverter.Result result, Writer writer, String imageName) throws IOException {
         for(int r=0; r<result.rows; r++) {
             for(int c=0; c<result.columns; c++) {
@@ -0,0 +1,126 @@
+package com.dozingcatsoftware.asciicam;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.dozingcatsoftware.util.PngEncoder;
+
+/**
+ * Writes a PNG image of an AsciiConverter.Result directly from the result and the character
+ * template, a row of pixels at a time, instead of rendering a full size Bitmap and compressing
+ * it with Bitmap.compress. Monochrome and ANSI images have at most 9 distinct colors, so they're
+ * written as 1 or 4 bit palette images which are much smaller and faster to compress. Full color
+ * images that have more than 256 colors are written as RGB.
+ *
+ * Pixels to the right and below the character grid are filled with the background color.
+ */
+public class AsciiPngWriter {
+
+    final AsciiConverter.Result result;
+    final AsciiRenderer.CharTemplate charTemplate;
+    final int width;
+    final int height;
+
+    // Sorted distinct colors, and the index into this array for each cell in the result.
+    int[] palette;
+    int numColors;
+    int backgroundIndex;
+    byte[] cellColorIndexes;
+
+    public AsciiPngWriter(AsciiConverter.Result result, AsciiRenderer.CharTemplate charTemplate,
+            int width, int height) {
+        this.result = result;
+        this.charTemplate = charTemplate;
+        this.width = width;
+        this.height = height;
+    }
+
+    public void writePng(OutputStream output) throws IOException {
+        if (computePalette()) {
+            PngEncoder.writePaletteImage(output, width, height, palette, numColors, paletteRowSource);
+        }
+        else {
+            PngEncoder.writeRgbImage(output, width, height, rgbRowSource);
+        }
+    }
+
+    // Finds the distinct colors in the result plus the background color. If there are at most
+    // 256, fills in palette and cellColorIndexes and returns true. Otherwise returns false.
+    boolean computePalette() {
+        int numCells = result.rows * result.columns;
+        int[] colors = new int[numCells + 1];
+        for (int r=0, i=0; r<result.rows; r++) {
+            for (int c=0; c<result.columns; c++, i++) {
+                colors[i] = result.colorAtRowColumn(r, c) & 0xffffff;
+            }
+        }
+        colors[numCells] = result.backgroundColor() & 0xffffff;
+        int[] sorted = colors.clone();
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i=0; i<sorted.length; i++) {
+            if (distinct==0 || sorted[i]!=sorted[distinct-1]) {
+                if (distinct == 256) return false;
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        palette = Arrays.copyOf(sorted, distinct);
+        numColors = distinct;
+        backgroundIndex = Arrays.binarySearch(palette, colors[numCells]);
+        cellColorIndexes = new byte[numCells];
+        for (int i=0; i<numCells; i++) {
+            cellColorIndexes[i] = (byte) Arrays.binarySearch(palette, colors[i]);
+        }
+        return true;
+    }
+
+    PngEncoder.RowSource paletteRowSource = new PngEncoder.RowSource() {
+        @Override public void getRow(int y, byte[] rowBuffer) {
+            int asciiRow = y / charTemplate.charHeight;
+            int charY = y % charTemplate.charHeight;
+            int x = 0;
+            if (asciiRow < result.rows) {
+                int cellIndex = asciiRow * result.columns;
+                for (int c=0; c<result.columns && x+charTemplate.charWidth<=width; c++, cellIndex++) {
+                    int charIndex = result.asciiIndexes[cellIndex];
+                    byte color = cellColorIndexes[cellIndex];
+                    for (int charX=0; charX<charTemplate.charWidth; charX++) {
+                        rowBuffer[x++] = charTemplate.isCharPixelSet(charIndex, charX, charY) ?
+                                color : (byte) backgroundIndex;
+                    }
+                }
+            }
+            for (; x<width; x++) {
+                rowBuffer[x] = (byte) backgroundIndex;
+            }
+        }
+    };
+
+    PngEncoder.RowSource rgbRowSource = new PngEncoder.RowSource() {
+        @Override public void getRow(int y, byte[] rowBuffer) {
+            int asciiRow = y / charTemplate.charHeight;
+            int charY = y % charTemplate.charHeight;
+            int background = result.backgroundColor();
+            int offset = 0;
+            int x = 0;
+            if (asciiRow < result.rows) {
+                for (int c=0; c<result.columns && x+charTemplate.charWidth<=width; c++) {
+                    int charIndex = result.asciiIndexAtRowColumn(asciiRow, c);
+                    int color = result.colorAtRowColumn(asciiRow, c);
+                    for (int charX=0; charX<charTemplate.charWidth; charX++, x++) {
+                        int pixel = charTemplate.isCharPixelSet(charIndex, charX, charY) ? color : background;
+                        rowBuffer[offset++] = (byte) (pixel >> 16);
+                        rowBuffer[offset++] = (byte) (pixel >> 8);
+                        rowBuffer[offset++] = (byte) pixel;
+                    }
+                }
+            }
+            for (; x<width; x++) {
+                rowBuffer[offset++] = (byte) (background >> 16);
+                rowBuffer[offset++] = (byte) (background >> 8);
+                rowBuffer[offset++] = (byte) background;
+            }
+        }
+    };
+}
@@ -1,14 +1,19 @@
 package com.dozingcatsoftware.asciicam;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.dozingcatsoftware.util.TraceRecorder;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Typeface;
 
 /**
  * Creates Bitmaps and HTML from AsciiConverter.Result objects.
@@ -22,6 +27,8 @@ public class AsciiRenderer {
     int charPixelHeight = 9;
     int charPixelWidth = 7;
     int textSize = 10;
+    // Multiplies the text size chosen by setCameraImageSize, see AdaptiveQualityController.
+    float textSizeScale = 1.0f;
 
     // One element of this array holds the visible bitmap. The next image is drawn offscreen into
     // the other element, and then activeBitmapIndex is flipped to make it visible.
@@ -29,19 +36,24 @@ public class AsciiRenderer {
     int activeBitmapIndex;
 
     // When rendering an ASCII image, we draw color values directly into an int array a row at a
-    // time. We use a bitmap containing the possible characters and copy slices from it. This is
-    // faster than Canvas.drawText.
-    // We store some temporary objects used to fill the bitmap pixels between requests,
-    // so we can avoid allocating new objects when possible. See drawIntoBitmap().
-    Bitmap possibleCharsBitmap;
-    int[] possibleCharsBitmapPixels;
-    byte[] possibleCharsGrayscale;
+    // time. We use a template containing the possible characters and copy slices from it. This is
+    // faster than Canvas.drawText. Templates come from CharTemplateCache; the current one and the
+    // values it was created for are kept so that most frames don't need a cache lookup.
+    // See drawIntoBitmap().
+    CharTemplate charTemplate;
+    String[] charTemplateChars;
+    int charTemplateTextSize;
+    Typeface charTemplateTypeface;
+    // Characters whose templates are created whenever the text size changes, so that switching
+    // color modes doesn't have to create them. See setPrewarmPixelChars.
+    volatile List<String[]> prewarmPixelChars = new ArrayList<String[]>();
 
     class Worker implements Callable<Long> {
         int startRow, endRow;
         int charPixelWidth, charPixelHeight;
         AsciiConverter.Result result;
-        byte[] possibleCharsGrayscale;
+        byte[] templateGrayscale;
+        int templateStride;
         int backgroundColor;
         Bitmap outputBitmap;
 
@@ -51,14 +63,15 @@ public class AsciiRenderer {
 
         void init(int workerId, int numWorkers,
                 AsciiConverter.Result result,
-                int charPixelWidth, int charPixelHeight, byte[] possibleCharsGrayscale, int bgColor,
+                int charPixelWidth, int charPixelHeight, CharTemplate template, int bgColor,
                 Bitmap outputBitmap) {
             this.startRow = result.rows * workerId / numWorkers;
             this.endRow = result.rows * (workerId + 1) / numWorkers;
             this.charPixelWidth = charPixelWidth;
             this.charPixelHeight = charPixelHeight;
             this.result = result;
-            this.possibleCharsGrayscale = possibleCharsGrayscale;
+            this.templateGrayscale = template.grayscale;
+            this.templateStride = template.rowStride;
             this.backgroundColor = bgColor;
             this.outputBitmap = outputBitmap;
 
@@ -77,6 +90,7 @@ public class AsciiRenderer {
         // Returns time in nanoseconds to execute.
         @Override public Long call() throws Exception {
             long t1 = System.nanoTime();
+            long traceStart = TraceRecorder.begin();
 
             int pixelsPerRow = charPixelWidth * result.columns;
             for (int row=startRow; row<endRow; row++) {
@@ -88,28 +102,35 @@ public class AsciiRenderer {
                 if (nativeCodeAvailable) {
                     fillPixelsInRowNative(renderedRowPixels, renderedRowPixels.length,
                             rowAsciiValues, rowColorValues, rowAsciiValues.length,
-                            possibleCharsGrayscale, backgroundColor,
+                            templateGrayscale, templateStride, backgroundColor,
                             charPixelWidth, charPixelHeight, result.columns);
                 }
                 else {
                     fillPixelsInRow(renderedRowPixels, renderedRowPixels.length,
                             rowAsciiValues, rowColorValues, rowAsciiValues.length,
-                            possibleCharsGrayscale, backgroundColor,
+                            templateGrayscale, templateStride, backgroundColor,
                             charPixelWidth, charPixelHeight, result.columns);
                 }
                 int y = charPixelHeight * row;
                 // setPixels is not threadsafe; without synchronization some devices end up with
                 // slightly garbled images.
+                // The span includes waiting for the lock, which shows contention between workers.
+                long setPixelsStart = TraceRecorder.begin();
                 synchronized (outputBitmap) {
                     outputBitmap.setPixels(renderedRowPixels, 0, pixelsPerRow, 0, y, pixelsPerRow, charPixelHeight);
                 }
+                TraceRecorder.end("render.setPixels", setPixelsStart);
             }
+            TraceRecorder.end("render.worker", traceStart);
             return System.nanoTime() - t1;
         }
     }
 
     ExecutorService threadPool;
     List<Worker> renderWorkers;
+    // Timings of the most recent createBitmap call, see getLastRenderNanos.
+    long lastRenderNanos;
+    long[] lastWorkerNanos = new long[0];
 
     static boolean nativeCodeAvailable = false;
     static {
@@ -155,9 +176,36 @@ public class AsciiRenderer {
             this.outputImageHeight = (int)(this.maxWidth / cameraRatio);
         }
         // Scale 10 point text per 1000px width. Char width is 70% of text size and height is 90%.
-        textSize = (int) Math.round(Math.max(10, outputImageWidth / 100.0));
+        textSize = (int) Math.round(Math.max(10, outputImageWidth / 100.0) * textSizeScale);
+        charPixelWidth = (int) (textSize * 0.7);
+        charPixelHeight = (int) (textSize * 0.9);
+    }
+
+    /**
+     * Sets the text size to the largest that fits the given number of columns and rows within the
+     * maximum image size, and the output size to the size of that grid. This is for rendering
+     * results whose camera image size isn't known, such as recorded frames.
+     */
+    public void setGridSize(int columns, int rows) {
+        double fitTextSize = Math.min(this.maxWidth / (0.7 * columns), this.maxHeight / (0.9 * rows));
+        textSize = Math.max(2, (int) fitTextSize);
         charPixelWidth = (int) (textSize * 0.7);
         charPixelHeight = (int) (textSize * 0.9);
+        this.outputImageWidth = charPixelWidth * columns;
+        this.outputImageHeight = charPixelHeight * rows;
+    }
+
+    /**
+     * Sets the character sets whose templates should be created along with the current one when
+     * the text size changes, typically the characters for every color mode.
+     */
+    public void setPrewarmPixelChars(List<String[]> pixelCharSets) {
+        this.prewarmPixelChars = new ArrayList<String[]>(pixelCharSets);
+    }
+
+    /** Sets a multiplier for the text size, which takes effect at the next setCameraImageSize. */
+    public void setTextSizeScale(float scale) {
+        this.textSizeScale = scale;
     }
 
     public int getOutputImageWidth() {
@@ -193,6 +241,38 @@ public class AsciiRenderer {
         }
     }
 
+    /** Returns the number of render threads, or 0 if the thread pool hasn't been created. */
+    public int getNumThreads() {
+        return (threadPool != null) ? renderWorkers.size() : 0;
+    }
+
+    /** Returns the time in nanoseconds taken by the most recent createBitmap call. */
+    public long getLastRenderNanos() {
+        return lastRenderNanos;
+    }
+
+    /**
+     * Returns the time in nanoseconds that each render thread took in the most recent
+     * createBitmap call. The array is reused for later calls.
+     */
+    public long[] getLastWorkerNanos() {
+        return lastWorkerNanos;
+    }
+
+    private void recordWorkerNanos(List<Future<Long>> workerTimes) {
+        if (lastWorkerNanos.length != workerTimes.size()) {
+            lastWorkerNanos = new long[workerTimes.size()];
+        }
+        for (int i=0; i<workerTimes.size(); i++) {
+            try {
+                lastWorkerNanos[i] = workerTimes.get(i).get();
+            }
+            catch (Exception ex) {
+                lastWorkerNanos[i] = 0;
+            }
+        }
+    }
+
     public void destroyThreadPool() {
         if (threadPool!=null) {
             threadPool.shutdown();
@@ -230,43 +310,16 @@ public class AsciiRenderer {
         // nonzero brightness, so no anti-aliasing support). Then for each character we want to
         // draw to the output image, we copy the corresponding pixels from the template bitmap.
         // (Setting the output image pixel to the color determined by AsciiCoverter if nonblack).
+        // Templates are cached by CharTemplateCache, so they're only drawn when the characters
+        // or text size change.
         //
         // This isn't much faster in Java (190ms on a Nexus 5x), but when implemented in C with
         // JNI, it drops to 55ms for an almost 4x performance increase on a single thread.
         // With 6 threads (as reported by Runtime.getAvailableProcessors), it's 20-25ms.
 
-        // Create a bitmap containing each character that we might need to render. We could try to
-        // skip this step if (as is usually the case) the characters are the same as the previous
-        // frame, but in practice there's only a few characters and it takes almost no time.
-        int pixelsPerRow = charPixelWidth * result.columns;
-        if (possibleCharsBitmap == null ||
-                possibleCharsBitmap.getWidth() != pixelsPerRow ||
-                possibleCharsBitmap.getHeight() != charPixelHeight) {
-            possibleCharsBitmap = Bitmap.createBitmap(pixelsPerRow, charPixelHeight, Bitmap.Config.ARGB_8888);
-        }
-        Canvas charsBitmapCanvas = new Canvas(possibleCharsBitmap);
-        charsBitmapCanvas.drawARGB(255, 0, 0, 0);
-        paint.setTextSize(textSize);
-        paint.setColor(0xffffffff);
-        for (int i=0; i<result.pixelChars.length; i++) {
-            charsBitmapCanvas.drawText(result.pixelChars[i], charPixelWidth*i, charPixelHeight, paint);
-        }
-
-        // Extract brightness bytes from the bitmap and flatten to a 1d array.
-        int numCharsBitmapPixels = possibleCharsBitmap.getWidth() * possibleCharsBitmap.getHeight();
-        if (possibleCharsBitmapPixels == null ||
-                possibleCharsBitmapPixels.length != numCharsBitmapPixels) {
-            possibleCharsBitmapPixels = new int[numCharsBitmapPixels];
-            possibleCharsGrayscale = new byte[numCharsBitmapPixels];
-        }
-
-        possibleCharsBitmap.getPixels(possibleCharsBitmapPixels,
-                0, possibleCharsBitmap.getWidth(), 0, 0,
-                possibleCharsBitmap.getWidth(), possibleCharsBitmap.getHeight());
-        for (int i=0; i<possibleCharsBitmapPixels.length; i++) {
-            // Each RGB component should be equal; take the blue.
-            possibleCharsGrayscale[i] = (byte) (possibleCharsBitmapPixels[i] & 0xff);
-        }
+        long templateStart = TraceRecorder.begin();
+        updateCharTemplate(result);
+        TraceRecorder.end("render.charTemplate", templateStart);
 
         // Create workers if needed, and assign them a subset of the rows to render.
         if (threadPool == null) {
@@ -275,30 +328,89 @@ public class AsciiRenderer {
         int numWorkers = renderWorkers.size();
         for (int i=0; i<numWorkers; i++) {
             renderWorkers.get(i).init(i, numWorkers, result, charPixelWidth, charPixelHeight,
-                    possibleCharsGrayscale, result.backgroundColor(), bitmap);
+                    charTemplate, result.backgroundColor(), bitmap);
         }
 
         try {
-            threadPool.invokeAll(renderWorkers);
+            List<Future<Long>> workerTimes = threadPool.invokeAll(renderWorkers);
+            recordWorkerNanos(workerTimes);
         }
         catch (InterruptedException ex) {
             android.util.Log.e("AsciiRenderer", "Interrupted", ex);
         }
         bitmap.prepareToDraw();
+        long t2 = System.nanoTime();
+        lastRenderNanos = t2 - t1;
 
         if (DEBUG) {
-            long t2 = System.nanoTime();
             long millis = (long)((t2-t1) / 1e6);
             int numThreads = (renderWorkers != null) ? renderWorkers.size() : 1;
             android.util.Log.e("AC", "Created output bitmap in " + millis + "ms using " + numThreads + " threads");
         }
     }
 
+    /**
+     * Sets charTemplate to the template for the characters of the result at the current text
+     * size. The template is only looked up in CharTemplateCache when the characters or size have
+     * changed since the previous frame, which is also when the prewarm templates are created.
+     */
+    private void updateCharTemplate(AsciiConverter.Result result) {
+        Typeface typeface = paint.getTypeface();
+        if (charTemplate != null && textSize == charTemplateTextSize &&
+                charPixelWidth == charTemplate.charWidth && charPixelHeight == charTemplate.charHeight &&
+                typeface == charTemplateTypeface && Arrays.equals(result.pixelChars, charTemplateChars)) {
+            return;
+        }
+        CharTemplateCache cache = CharTemplateCache.getInstance();
+        charTemplate = cache.getTemplate(result.pixelChars, textSize, charPixelWidth, charPixelHeight, typeface);
+        charTemplateChars = result.pixelChars;
+        charTemplateTextSize = textSize;
+        charTemplateTypeface = typeface;
+        for (String[] pixelChars : prewarmPixelChars) {
+            cache.getTemplate(pixelChars, textSize, charPixelWidth, charPixelHeight, typeface);
+        }
+    }
+
+    /**
+     * Images of the characters used to render a result, drawn side by side. Created by
+     * CharTemplateCache and never modified, so they can be shared between threads.
+     */
+    public static class CharTemplate {
+        public final int charWidth;
+        public final int charHeight;
+        // Distance in bytes between rows of the template, the number of characters times charWidth.
+        public final int rowStride;
+        // Nonzero where a character pixel is drawn.
+        final byte[] grayscale;
+
+        CharTemplate(int charWidth, int charHeight, int rowStride, byte[] grayscale) {
+            this.charWidth = charWidth;
+            this.charHeight = charHeight;
+            this.rowStride = rowStride;
+            this.grayscale = grayscale;
+        }
+
+        /** Returns true if the pixel at (x, y) within the character at charIndex is drawn. */
+        public boolean isCharPixelSet(int charIndex, int x, int y) {
+            return grayscale[y*rowStride + charIndex*charWidth + x] != 0;
+        }
+    }
+
+    /**
+     * Returns the character images that would be used to render the result with the current
+     * text size, so that the result can be rendered later (possibly on another thread) without a
+     * Bitmap. See AsciiPngWriter.
+     */
+    public CharTemplate createCharTemplate(AsciiConverter.Result result) {
+        updateCharTemplate(result);
+        return charTemplate;
+    }
+
     private void fillPixelsInRow(int[] rowPixels, int numRowPixels,
             int[] asciiValues, int[] colorValues, int numValues,
-            byte[] charsBitmap, int backgroundColor, int charWidth, int charHeight, int numChars) {
+            byte[] charsBitmap, int templateStride, int backgroundColor,
+            int charWidth, int charHeight, int numChars) {
         int offset = 0;
-        int pixelsPerRow = numValues * charWidth;
         // For each row of pixels:
         for (int y=0; y<charHeight; y++) {
             // For each character to draw:
@@ -307,7 +419,7 @@ public class AsciiRenderer {
                 int charColor = colorValues[charPosition];
                 // Index into the chars bitmap, going "down" the number of rows,
                 // and "across" the amount of character widths given by the index.
-                int charBitmapOffset = y*pixelsPerRow + charValue*charWidth;
+                int charBitmapOffset = y*templateStride + charValue*charWidth;
                 for (int i=0; i<charWidth; i++) {
                     byte bitmapValue = charsBitmap[charBitmapOffset++];
                     rowPixels[offset++] = (bitmapValue!=0) ? charColor : backgroundColor;
@@ -319,7 +431,8 @@ public class AsciiRenderer {
     // Implemented in asciiart.c, almost identical to the above Java implementation.
     private native void fillPixelsInRowNative(int[] pixels, int numPixels,
             int[] asciiValues, int[] colorValues, int numValues,
-            byte[] charsBitmap, int backgroundColor, int charWidth, int charHeight, int numChars);
+            byte[] charsBitmap, int templateStride, int backgroundColor,
+            int charWidth, int charHeight, int numChars);
 
     public Bitmap createBitmap(AsciiConverter.Result result) {
         int nextIndex = (activeBitmapIndex + 1) % bitmaps.length;
@@ -0,0 +1,179 @@
+package com.dozingcatsoftware.asciicam;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads AsciiConverter.Result objects written by AsciiResultWriter.
+ */
+public class AsciiResultReader {
+
+    DataInputStream input;
+    Inflater inflater;
+
+    byte[] payloadBuffer = new byte[0];
+    byte[] inflateBuffer = new byte[0];
+
+    public AsciiResultReader(InputStream stream) throws IOException {
+        this(stream, true);
+    }
+
+    AsciiResultReader(InputStream stream, boolean readMagic) throws IOException {
+        this.input = new DataInputStream(stream);
+        if (readMagic) {
+            readMagic(input, AsciiResultWriter.MAGIC);
+        }
+    }
+
+    static void readMagic(DataInputStream input, byte[] expected) throws IOException {
+        byte[] magic = new byte[expected.length];
+        input.readFully(magic);
+        for (int i=0; i<magic.length; i++) {
+            if (magic[i] != expected[i]) {
+                throw new IOException("Not an ASCII result file");
+            }
+        }
+    }
+
+    /** Returns the next result in the stream, or null if the end of the stream was reached. */
+    public AsciiConverter.Result read() throws IOException {
+        return read(new AsciiConverter.Result());
+    }
+
+    /**
+     * Reads the next result into an existing object, reusing its arrays if they are the right
+     * size. Returns the result, or null if the end of the stream was reached.
+     */
+    public AsciiConverter.Result read(AsciiConverter.Result result) throws IOException {
+        int flags = input.read();
+        if (flags < 0) return null;
+        try {
+            readHeader(input, result);
+            int payloadLength = input.readInt();
+            if (payloadBuffer.length < payloadLength) {
+                payloadBuffer = new byte[payloadLength];
+            }
+            input.readFully(payloadBuffer, 0, payloadLength);
+
+            byte[] payload = payloadBuffer;
+            int size = AsciiResultWriter.payloadSize(result);
+            if ((flags & AsciiResultWriter.FLAG_DEFLATE) != 0) {
+                inflate(payloadBuffer, payloadLength, size);
+                payload = inflateBuffer;
+            }
+            else if (payloadLength != size) {
+                throw new IOException("Expected " + size + " bytes, got " + payloadLength);
+            }
+            readPayload(payload, result, (flags & AsciiResultWriter.FLAG_DELTA) != 0);
+        }
+        catch (EOFException ex) {
+            throw new IOException("Truncated ASCII result", ex);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the rows, columns, color type, and pixel characters written by AsciiResultWriter, and
+     * makes sure the index and color arrays of the result are the right size.
+     */
+    static void readHeader(DataInputStream input, AsciiConverter.Result result) throws IOException {
+        result.rows = input.readInt();
+        result.columns = input.readInt();
+        int colorTypeIndex = input.readUnsignedByte();
+        AsciiConverter.ColorType[] colorTypes = AsciiConverter.ColorType.values();
+        if (colorTypeIndex >= colorTypes.length || result.rows < 0 || result.columns < 0) {
+            throw new IOException("Invalid ASCII result header");
+        }
+        result.colorType = colorTypes[colorTypeIndex];
+        String chars = input.readUTF();
+        result.pixelChars = new String[chars.length()];
+        for (int i=0; i<chars.length(); i++) {
+            result.pixelChars[i] = chars.substring(i, i+1);
+        }
+        result.debugInfo = null;
+
+        int numCells = result.rows * result.columns;
+        if (result.asciiIndexes == null || result.asciiIndexes.length != numCells) {
+            result.asciiIndexes = new int[numCells];
+        }
+        if (result.colorType.isMonochrome()) {
+            result.asciiColors = null;
+        }
+        else if (result.asciiColors == null || result.asciiColors.length != numCells) {
+            result.asciiColors = new int[numCells];
+        }
+    }
+
+    static void readPayload(byte[] buffer, AsciiConverter.Result result, boolean delta) {
+        int numCells = result.rows * result.columns;
+        int offset = 0;
+        if (AsciiResultWriter.bytesPerIndex(result) == 1) {
+            for (int i=0; i<numCells; i++) {
+                result.asciiIndexes[i] = buffer[offset++] & 0xff;
+            }
+        }
+        else {
+            for (int i=0; i<numCells; i++) {
+                result.asciiIndexes[i] = ((buffer[offset] & 0xff) << 8) | (buffer[offset+1] & 0xff);
+                offset += 2;
+            }
+        }
+        if (!result.colorType.isMonochrome()) {
+            int prevColor = 0;
+            for (int i=0; i<numCells; i++) {
+                int stored = ((buffer[offset] & 0xff) << 16) | ((buffer[offset+1] & 0xff) << 8) |
+                        (buffer[offset+2] & 0xff);
+                offset += 3;
+                int color = delta ? addComponents(stored, prevColor) : stored;
+                result.asciiColors[i] = 0xff000000 | color;
+                prevColor = color;
+            }
+        }
+    }
+
+    static int addComponents(int diff, int prevColor) {
+        int r = ((diff >> 16) + (prevColor >> 16)) & 0xff;
+        int g = ((diff >> 8) + (prevColor >> 8)) & 0xff;
+        int b = (diff + prevColor) & 0xff;
+        return (r << 16) | (g << 8) | b;
+    }
+
+    void inflate(byte[] compressed, int compressedLength, int expectedLength) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        if (inflateBuffer.length < expectedLength) {
+            inflateBuffer = new byte[expectedLength];
+        }
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            int total = 0;
+            while (total < expectedLength && !inflater.finished()) {
+                int n = inflater.inflate(inflateBuffer, total, expectedLength - total);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                total += n;
+            }
+            if (total != expectedLength) {
+                throw new IOException("Expected " + expectedLength + " bytes, got " + total);
+            }
+        }
+        catch (DataFormatException ex) {
+            throw new IOException("Corrupt ASCII result data", ex);
+        }
+    }
+
+    public void close() throws IOException {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        input.close();
+    }
+}
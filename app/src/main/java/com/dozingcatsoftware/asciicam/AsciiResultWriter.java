@@ -0,0 +1,163 @@
+package com.dozingcatsoftware.asciicam;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Writes AsciiConverter.Result objects to a stream in a compact binary format, so that they can
+ * later be re-rendered at any size or converted to HTML or text. The stream starts with a 4 byte
+ * header ("ASC" and a version byte), followed by any number of records. Each record is:
+ *   flags (1 byte, FLAG_DEFLATE and FLAG_DELTA)
+ *   rows (int), columns (int), color type ordinal (1 byte), pixel characters (UTF string)
+ *   payload length (int), payload bytes
+ * The payload has one byte per cell for the character index (two if there are more than 256
+ * characters), followed for color images by 3 bytes (red, green, blue) per cell. If FLAG_DELTA is
+ * set, each color component is stored as the difference from the previous cell, which makes
+ * runs of similar colors compress much better. If FLAG_DEFLATE is set the payload is compressed.
+ * See AsciiResultReader.
+ */
+public class AsciiResultWriter {
+
+    static final byte[] MAGIC = {'A', 'S', 'C', 1};
+
+    public static final int FLAG_DEFLATE = 1;
+    public static final int FLAG_DELTA = 2;
+
+    DataOutputStream output;
+    int flags;
+    Deflater deflater;
+
+    // Reused between records to avoid allocating when writing a sequence of results.
+    byte[] payloadBuffer = new byte[0];
+    byte[] deflateBuffer = new byte[0];
+
+    public AsciiResultWriter(OutputStream stream, int flags) throws IOException {
+        this(stream, flags, true);
+    }
+
+    // Other formats that embed result records in their own files (see ResultRecorder) don't
+    // write the header.
+    AsciiResultWriter(OutputStream stream, int flags, boolean writeMagic) throws IOException {
+        this.output = new DataOutputStream(stream);
+        this.flags = flags;
+        if ((flags & FLAG_DEFLATE) != 0) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        if (writeMagic) {
+            output.write(MAGIC);
+        }
+    }
+
+    /** Returns the number of payload bytes needed for a result, before compression. */
+    static int payloadSize(AsciiConverter.Result result) {
+        int numCells = result.rows * result.columns;
+        int size = numCells * bytesPerIndex(result);
+        if (!result.colorType.isMonochrome()) {
+            size += 3 * numCells;
+        }
+        return size;
+    }
+
+    static int bytesPerIndex(AsciiConverter.Result result) {
+        return (result.pixelChars.length > 256) ? 2 : 1;
+    }
+
+    static String joinPixelChars(String[] pixelChars) {
+        StringBuilder builder = new StringBuilder();
+        for (String s : pixelChars) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    public void write(AsciiConverter.Result result) throws IOException {
+        int size = payloadSize(result);
+        if (payloadBuffer.length < size) {
+            payloadBuffer = new byte[size];
+        }
+        fillPayload(result, payloadBuffer, (flags & FLAG_DELTA) != 0);
+
+        byte[] payload = payloadBuffer;
+        int payloadLength = size;
+        if (deflater != null) {
+            payloadLength = deflate(payloadBuffer, size);
+            payload = deflateBuffer;
+        }
+
+        output.writeByte(flags);
+        output.writeInt(result.rows);
+        output.writeInt(result.columns);
+        output.writeByte(result.colorType.ordinal());
+        output.writeUTF(joinPixelChars(result.pixelChars));
+        output.writeInt(payloadLength);
+        output.write(payload, 0, payloadLength);
+    }
+
+    static void fillPayload(AsciiConverter.Result result, byte[] buffer, boolean delta) {
+        int numCells = result.rows * result.columns;
+        int offset = 0;
+        if (bytesPerIndex(result) == 1) {
+            for (int i=0; i<numCells; i++) {
+                buffer[offset++] = (byte) result.asciiIndexes[i];
+            }
+        }
+        else {
+            for (int i=0; i<numCells; i++) {
+                buffer[offset++] = (byte) (result.asciiIndexes[i] >> 8);
+                buffer[offset++] = (byte) result.asciiIndexes[i];
+            }
+        }
+        if (!result.colorType.isMonochrome()) {
+            int prevColor = 0;
+            for (int i=0; i<numCells; i++) {
+                int color = result.asciiColors[i];
+                int stored = delta ? subtractComponents(color, prevColor) : color;
+                buffer[offset++] = (byte) (stored >> 16);
+                buffer[offset++] = (byte) (stored >> 8);
+                buffer[offset++] = (byte) stored;
+                prevColor = color;
+            }
+        }
+    }
+
+    // Subtracts each of the red, green, and blue bytes independently, wrapping modulo 256.
+    static int subtractComponents(int color, int prevColor) {
+        int r = ((color >> 16) - (prevColor >> 16)) & 0xff;
+        int g = ((color >> 8) - (prevColor >> 8)) & 0xff;
+        int b = (color - prevColor) & 0xff;
+        return (r << 16) | (g << 8) | b;
+    }
+
+    int deflate(byte[] input, int length) {
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        if (deflateBuffer.length == 0) {
+            deflateBuffer = new byte[Math.max(length / 4, 64)];
+        }
+        int total = 0;
+        while (!deflater.finished()) {
+            if (total == deflateBuffer.length) {
+                byte[] newBuffer = new byte[deflateBuffer.length * 2];
+                System.arraycopy(deflateBuffer, 0, newBuffer, 0, total);
+                deflateBuffer = newBuffer;
+            }
+            total += deflater.deflate(deflateBuffer, total, deflateBuffer.length - total);
+        }
+        return total;
+    }
+
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    public void close() throws IOException {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        output.close();
+    }
+}
@@ -0,0 +1,216 @@
+package com.dozingcatsoftware.asciicam;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Converts pictures taken by the camera app to ASCII in the background. Pictures are converted
+ * on ConversionService's threads, so several pictures taken in a burst are converted in parallel
+ * without using more threads than the service allows for all conversions.
+ *
+ * Each picture's URI is recorded in a journal file when it's queued and again when it's
+ * finished. Pictures that were still pending when the process was killed are queued again when
+ * the queue is next created, and pictures that are already queued or were recently converted
+ * are ignored if they're queued again.
+ */
+public class BatchConversionQueue {
+
+    static final String TAG = "BatchConversionQueue";
+    static final String JOURNAL_FILENAME = "conversion_journal";
+    static final char PENDING_RECORD = '+';
+    static final char FINISHED_RECORD = '-';
+
+    // Number of finished pictures to remember, so repeated notifications are ignored.
+    static int MAX_FINISHED_URIS = 200;
+
+    static BatchConversionQueue instance;
+
+    /** Returns the queue, creating it and resuming any unfinished conversions if needed. */
+    public static synchronized BatchConversionQueue getInstance(Context context) {
+        if (instance == null) {
+            instance = new BatchConversionQueue(context.getApplicationContext(),
+                    new File(context.getFilesDir(), JOURNAL_FILENAME));
+        }
+        return instance;
+    }
+
+    final Context context;
+    final File journalFile;
+
+    // Access to these fields is synchronized on this object.
+    final Set<String> pendingUris = new LinkedHashSet<String>();
+    final Set<String> finishedUris = new LinkedHashSet<String>();
+    int journalRecordCount = 0;
+
+    BatchConversionQueue(Context context, File journalFile) {
+        this.context = context;
+        this.journalFile = journalFile;
+
+        synchronized (this) {
+            readJournal();
+            writeJournal();
+            for (String uri : pendingUris) {
+                Log.i(TAG, "Resuming conversion: " + uri);
+                submitConversion(uri);
+            }
+        }
+    }
+
+    /**
+     * Queues pictures to be converted, ignoring any that are already queued or were recently
+     * converted. Returns the number of pictures queued.
+     */
+    public synchronized int convert(List<Uri> imageUris) {
+        int count = 0;
+        for (Uri uri : imageUris) {
+            String uriString = uri.toString();
+            if (pendingUris.contains(uriString) || finishedUris.contains(uriString)) continue;
+            pendingUris.add(uriString);
+            appendJournalRecord(PENDING_RECORD, uriString);
+            submitConversion(uriString);
+            count++;
+        }
+        return count;
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingUris.size();
+    }
+
+    void submitConversion(final String uriString) {
+        ConversionService.getInstance(context).convert(Uri.parse(uriString), new ConversionService.Callback() {
+            @Override public void conversionFinished(Uri uri, String imagePath) {
+                BatchConversionQueue.this.conversionFinished(uriString);
+            }
+
+            @Override public void conversionFailed(Uri uri, Throwable error) {
+                // Don't retry, the picture is likely unreadable.
+                Log.e(TAG, "Failed to process image: " + uriString, error);
+                BatchConversionQueue.this.conversionFinished(uriString);
+            }
+        });
+    }
+
+    synchronized void conversionFinished(String uriString) {
+        pendingUris.remove(uriString);
+        addFinishedUri(uriString);
+        appendJournalRecord(FINISHED_RECORD, uriString);
+        // Rewrite the journal when most of its records are obsolete.
+        if (journalRecordCount > 2 * (pendingUris.size() + finishedUris.size()) + 50) {
+            writeJournal();
+        }
+    }
+
+    void addFinishedUri(String uriString) {
+        finishedUris.remove(uriString);
+        finishedUris.add(uriString);
+        if (finishedUris.size() > MAX_FINISHED_URIS) {
+            Iterator<String> oldest = finishedUris.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    // Reads the journal, in which each line is a record type followed by a URI. A last line
+    // without a newline was only partly written, and is ignored.
+    void readJournal() {
+        if (!journalFile.isFile()) return;
+        StringBuilder contents = new StringBuilder();
+        try {
+            Reader reader = new InputStreamReader(new FileInputStream(journalFile), "UTF-8");
+            try {
+                char[] buffer = new char[4096];
+                int count;
+                while ((count = reader.read(buffer)) > 0) {
+                    contents.append(buffer, 0, count);
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (IOException ex) {
+            Log.w(TAG, "Error reading conversion journal", ex);
+            return;
+        }
+        int lineStart = 0;
+        int lineEnd;
+        while ((lineEnd = contents.indexOf("\n", lineStart)) >= 0) {
+            String line = contents.substring(lineStart, lineEnd);
+            lineStart = lineEnd + 1;
+            if (line.length() < 2) continue;
+            String uriString = line.substring(1);
+            if (line.charAt(0) == PENDING_RECORD) {
+                if (!finishedUris.contains(uriString)) {
+                    pendingUris.add(uriString);
+                }
+            }
+            else if (line.charAt(0) == FINISHED_RECORD) {
+                pendingUris.remove(uriString);
+                addFinishedUri(uriString);
+            }
+        }
+    }
+
+    void appendJournalRecord(char type, String uriString) {
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8");
+            try {
+                writer.write(type + uriString + "\n");
+            }
+            finally {
+                writer.close();
+            }
+            journalRecordCount++;
+        }
+        catch (IOException ex) {
+            Log.w(TAG, "Error writing conversion journal", ex);
+        }
+    }
+
+    // Replaces the journal with one containing only the current pending and finished URIs.
+    void writeJournal() {
+        File tmpFile = new File(journalFile.getPath() + ".tmp");
+        List<String> records = new ArrayList<String>();
+        for (String uriString : finishedUris) {
+            records.add(FINISHED_RECORD + uriString);
+        }
+        for (String uriString : pendingUris) {
+            records.add(PENDING_RECORD + uriString);
+        }
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+            try {
+                for (String record : records) {
+                    writer.write(record + "\n");
+                }
+            }
+            finally {
+                writer.close();
+            }
+            if (!tmpFile.renameTo(journalFile)) {
+                throw new IOException("Unable to rename " + tmpFile);
+            }
+            journalRecordCount = records.size();
+        }
+        catch (IOException ex) {
+            Log.w(TAG, "Error writing conversion journal", ex);
+            tmpFile.delete();
+        }
+    }
+}
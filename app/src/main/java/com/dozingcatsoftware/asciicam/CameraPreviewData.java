@@ -0,0 +1,33 @@
+package com.dozingcatsoftware.asciicam;
+
+import com.dozingcatsoftware.util.CameraUtils;
+
+import android.hardware.Camera;
+
+/**
+ * Pixels and metadata for a preview frame. camera is null for replayed frames. Objects are reused
+ * for later frames, see PreviewFramePool.
+ */
+class CameraPreviewData {
+    public Camera camera;
+    public CameraUtils.CameraInfo cameraInfo;
+    public byte[] pixelData;
+    public int width;
+    public int height;
+    public long timestamp;
+    // System.nanoTime() values for measuring the stages in metrics.
+    long receivedNanos;
+    long processedNanos;
+    // Number of users of pixelData, which is returned to its source when this reaches 0. The
+    // pipeline holds one reference, and a frame being written to a capture file holds another.
+    int references;
+
+    void set(Camera c, CameraUtils.CameraInfo i, byte[] p, int w, int h, long t) {
+        camera = c;
+        cameraInfo = i;
+        pixelData = p;
+        width = w;
+        height = h;
+        timestamp = t;
+    }
+}
@@ -0,0 +1,131 @@
+package com.dozingcatsoftware.asciicam;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+
+/**
+ * Caches the character templates used by AsciiRenderer, keyed by the characters, text size,
+ * character cell size, and typeface. Drawing the characters with Canvas.drawText and reading back
+ * the pixels is slow compared to rendering a frame with the native code, and the same template
+ * is needed for every frame until the text size or characters change. Templates are immutable,
+ * so one instance is shared by all renderers and threads.
+ *
+ * Each template holds one copy of each character side by side, so its row stride is the number of
+ * characters times the character width, independent of the number of columns being rendered.
+ */
+public class CharTemplateCache {
+
+    // Enough for the templates of every color mode at a few text sizes.
+    static final int MAX_TEMPLATES = 24;
+
+    static final CharTemplateCache instance = new CharTemplateCache();
+
+    public static CharTemplateCache getInstance() {
+        return instance;
+    }
+
+    static class Key {
+        final String chars;
+        final int textSize;
+        final int charWidth;
+        final int charHeight;
+        final Typeface typeface;
+
+        Key(String[] pixelChars, int textSize, int charWidth, int charHeight, Typeface typeface) {
+            StringBuilder builder = new StringBuilder();
+            for (String s : pixelChars) {
+                // Characters may be surrogate pairs, so separate them to keep keys distinct.
+                builder.append(s).append('\0');
+            }
+            this.chars = builder.toString();
+            this.textSize = textSize;
+            this.charWidth = charWidth;
+            this.charHeight = charHeight;
+            this.typeface = typeface;
+        }
+
+        @Override public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key)obj;
+            return chars.equals(other.chars) && textSize == other.textSize &&
+                    charWidth == other.charWidth && charHeight == other.charHeight &&
+                    (typeface == null ? other.typeface == null : typeface.equals(other.typeface));
+        }
+
+        @Override public int hashCode() {
+            int hash = chars.hashCode();
+            hash = 31 * hash + textSize;
+            hash = 31 * hash + charWidth;
+            hash = 31 * hash + charHeight;
+            hash = 31 * hash + (typeface != null ? typeface.hashCode() : 0);
+            return hash;
+        }
+    }
+
+    // Access order, so the least recently used template is removed first.
+    private final Map<Key, AsciiRenderer.CharTemplate> templates =
+            new LinkedHashMap<Key, AsciiRenderer.CharTemplate>(MAX_TEMPLATES, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<Key, AsciiRenderer.CharTemplate> eldest) {
+            return size() > MAX_TEMPLATES;
+        }
+    };
+    private final Paint paint = new Paint();
+    private long misses = 0;
+
+    /** Returns the template for the given characters and metrics, creating it if needed. */
+    public synchronized AsciiRenderer.CharTemplate getTemplate(String[] pixelChars, int textSize,
+            int charWidth, int charHeight, Typeface typeface) {
+        Key key = new Key(pixelChars, textSize, charWidth, charHeight, typeface);
+        AsciiRenderer.CharTemplate template = templates.get(key);
+        if (template == null) {
+            misses++;
+            template = createTemplate(pixelChars, textSize, charWidth, charHeight, typeface);
+            templates.put(key, template);
+        }
+        return template;
+    }
+
+    /** Returns the number of templates that have been created because they weren't cached. */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        templates.clear();
+    }
+
+    AsciiRenderer.CharTemplate createTemplate(String[] pixelChars, int textSize,
+            int charWidth, int charHeight, Typeface typeface) {
+        int width = Math.max(1, charWidth * pixelChars.length);
+        int height = Math.max(1, charHeight);
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        try {
+            Canvas canvas = new Canvas(bitmap);
+            canvas.drawARGB(255, 0, 0, 0);
+            paint.setTextSize(textSize);
+            paint.setTypeface(typeface);
+            paint.setColor(0xffffffff);
+            for (int i=0; i<pixelChars.length; i++) {
+                canvas.drawText(pixelChars[i], charWidth*i, charHeight, paint);
+            }
+
+            // Extract brightness bytes from the bitmap and flatten to a 1d array.
+            int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            byte[] grayscale = new byte[pixels.length];
+            for (int i=0; i<pixels.length; i++) {
+                // Each RGB component should be equal; take the blue.
+                grayscale[i] = (byte) (pixels[i] & 0xff);
+            }
+            return new AsciiRenderer.CharTemplate(charWidth, charHeight, width, grayscale);
+        }
+        finally {
+            bitmap.recycle();
+        }
+    }
+}
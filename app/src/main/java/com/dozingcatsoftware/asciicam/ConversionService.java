@@ -0,0 +1,239 @@
+package com.dozingcatsoftware.asciicam;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.dozingcatsoftware.asciicam.AsciiConverter.ColorType;
+import com.dozingcatsoftware.util.AndroidUtils;
+import com.dozingcatsoftware.util.BitmapPool;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.view.Display;
+import android.view.WindowManager;
+
+/**
+ * Converts existing pictures to ASCII. The service is created once per process and keeps the
+ * objects that every conversion needs: the settings read from preferences, the display size,
+ * a pool of decoded bitmaps, and a converter and renderer for each thread that converts
+ * pictures. Conversions can run on the service's own threads with convert and convertAll, or
+ * on the calling thread with convertImage.
+ */
+public class ConversionService {
+
+    static final String TAG = "ConversionService";
+
+    // Each conversion decodes a full size bitmap, so limit the number of threads even if there
+    // are more cores.
+    static int MAX_THREADS = 2;
+    static int THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    /** Notified on the conversion thread when a picture started by convert is finished. */
+    public static interface Callback {
+        public void conversionFinished(Uri uri, String imagePath);
+        public void conversionFailed(Uri uri, Throwable error);
+    }
+
+    // Preference values used for conversions, replaced when the preferences change.
+    static class Settings {
+        ColorType colorType;
+        String pixelChars;
+    }
+
+    // Objects that are reused by conversions on the same thread.
+    static class ThreadState {
+        final AsciiConverter converter = new AsciiConverter();
+        final AsciiRenderer renderer = new AsciiRenderer();
+    }
+
+    class ConversionTask extends FutureTask<String> {
+        final Uri uri;
+        final Callback callback;
+
+        ConversionTask(final Uri uri, Callback callback) {
+            super(new Callable<String>() {
+                @Override public String call() throws Exception {
+                    return convertImage(uri);
+                }
+            });
+            this.uri = uri;
+            this.callback = callback;
+        }
+
+        @Override protected void done() {
+            if (callback==null || isCancelled()) return;
+            try {
+                callback.conversionFinished(uri, get());
+            }
+            catch (ExecutionException ex) {
+                callback.conversionFailed(uri, ex.getCause());
+            }
+            catch (InterruptedException ex) {
+                // Not possible, the task is already finished.
+            }
+        }
+    }
+
+    static ConversionService instance;
+
+    public static synchronized ConversionService getInstance(Context context) {
+        if (instance == null) {
+            instance = new ConversionService(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    final Context context;
+    final ThreadPoolExecutor executor;
+    // Shared by all threads so that pictures saved at the same time get unique names.
+    final AsciiImageWriter imageWriter = new AsciiImageWriter();
+    final BitmapPool bitmapPool;
+    final int displayWidth;
+    final int displayHeight;
+
+    final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+        @Override protected ThreadState initialValue() {
+            return new ThreadState();
+        }
+    };
+
+    // Access is synchronized on this object.
+    Settings settings;
+    // SharedPreferences only holds a weak reference to its listeners, so keep this one here.
+    final SharedPreferences.OnSharedPreferenceChangeListener prefsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            synchronized (ConversionService.this) {
+                settings = null;
+            }
+        }
+    };
+
+    ConversionService(Context context) {
+        this.context = context;
+        int numThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS));
+        executor = new ThreadPoolExecutor(numThreads, numThreads, THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        bitmapPool = new BitmapPool(Math.max(4, AndroidUtils.getMemoryClass(context) / 16) * 1024 * 1024);
+
+        WindowManager wm = (WindowManager)context.getSystemService(Context.WINDOW_SERVICE);
+        Display display = wm.getDefaultDisplay();
+        // assume width is always larger
+        displayWidth = Math.max(display.getWidth(), display.getHeight());
+        displayHeight = Math.min(display.getWidth(), display.getHeight());
+
+        PreferenceManager.getDefaultSharedPreferences(context).registerOnSharedPreferenceChangeListener(prefsListener);
+    }
+
+    /**
+     * Starts converting the picture at the given URI on a background thread. The returned
+     * Future's value is the path to the saved PNG file. Cancelling the Future stops the
+     * conversion if it hasn't been saved yet.
+     */
+    public Future<String> convert(Uri uri) {
+        return convert(uri, null);
+    }
+
+    /** Like convert above, but notifies callback when the conversion finishes or fails. */
+    public Future<String> convert(Uri uri, Callback callback) {
+        ConversionTask task = new ConversionTask(uri, callback);
+        executor.execute(task);
+        return task;
+    }
+
+    /** Starts converting each of the pictures, returning a Future for each in the same order. */
+    public List<Future<String>> convertAll(List<Uri> uris) {
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (Uri uri : uris) {
+            futures.add(convert(uri));
+        }
+        return futures;
+    }
+
+    /** Cancels each of the conversions that hasn't finished. */
+    public static void cancelAll(List<Future<String>> futures) {
+        for (Future<String> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Reads the image from the given URI, creates ASCII PNG and HTML files, and writes them to
+     * a new directory under the AsciiCam directory in /sdcard. Returns the path to the PNG file.
+     * Runs on the calling thread, and throws InterruptedIOException if the thread is interrupted
+     * before the picture is saved.
+     */
+    public String convertImage(Uri uri) throws IOException {
+        Settings currentSettings = getSettings();
+        ThreadState state = threadState.get();
+        AsciiRenderer renderer = state.renderer;
+        renderer.setMaximumImageSize(displayWidth, displayHeight);
+        // Estimate the number of characters from the display size, so that the renderer's size
+        // from a previous picture doesn't affect the decoded size.
+        renderer.setCameraImageSize(displayWidth, displayHeight);
+
+        int minWidth = Math.max(2*renderer.asciiColumns(), 480);
+        int minHeight = Math.max(2*renderer.asciiRows(), 320);
+        Bitmap bitmap = AndroidUtils.scaledBitmapFromURIWithMinimumSize(context, uri, minWidth, minHeight, bitmapPool);
+        if (bitmap == null) {
+            throw new IOException("Unable to decode image: " + uri);
+        }
+        AsciiConverter.Result result;
+        try {
+            checkInterrupted();
+            renderer.setCameraImageSize(bitmap.getWidth(), bitmap.getHeight());
+            result = state.converter.computeResultForBitmap(bitmap,
+                    renderer.asciiRows(), renderer.asciiColumns(), currentSettings.colorType, currentSettings.pixelChars);
+        }
+        finally {
+            bitmapPool.put(bitmap);
+        }
+        checkInterrupted();
+
+        String imagePath = imageWriter.saveImageAndThumbnail(result, renderer.createCharTemplate(result),
+                renderer.getOutputImageWidth(), renderer.getOutputImageHeight(),
+                renderer.createThumbnailBitmap(result));
+        AndroidUtils.scanSavedMediaFile(context, imagePath);
+        return imagePath;
+    }
+
+    static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("Conversion cancelled");
+        }
+    }
+
+    // Returns the current settings, reading them from preferences if they've changed.
+    synchronized Settings getSettings() {
+        Settings current = settings;
+        if (current == null) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            current = new Settings();
+            current.colorType = ColorType.ANSI_COLOR;
+            String colorTypeName = prefs.getString("colorType", null);
+            if (colorTypeName!=null) {
+                try {
+                    current.colorType = ColorType.valueOf(colorTypeName);
+                }
+                catch(Exception ignored) {}
+            }
+            String prefsKey = context.getString(R.string.pixelCharsPrefIdPrefix) + current.colorType.name();
+            current.pixelChars = prefs.getString(prefsKey, null);
+            settings = current;
+        }
+        return current;
+    }
+}
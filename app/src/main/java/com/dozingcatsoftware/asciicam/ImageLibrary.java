@@ -2,43 +2,554 @@
 
 package com.dozingcatsoftware.asciicam;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+
+import android.util.Log;
 
 /**
  * Represents a directory where the PNG and HTML versions of saved pictures are stored.
+ *
+ * Listing the directory requires checking every file, which is slow for large libraries on SD
+ * cards, so the results are stored in an index file in the thumbnail directory. (Writing the
+ * index there doesn't change the modification time of the base directory.) Pictures the app adds
+ * or deletes are appended to a journal next to the index instead of rewriting it, and the journal
+ * is merged into the index when the library is listed or the journal gets large. The index and
+ * each journal record store the base directory's modification time after the change, and they're
+ * ignored and the directory rescanned if it has been modified since, for example by another app.
+ *
+ * So that the recorded time is the one that results from the app's own change, files are written
+ * in the staging directory and moved into the base directory by moveFiles, which checks the index,
+ * moves the files, and appends to the journal while holding the index lock. Saves that overlap
+ * therefore don't invalidate each other's records.
  */
 public class ImageLibrary {
+
+    static final String TAG = "ImageLibrary";
+    static final String INDEX_FILENAME = "library.idx";
+    static final int INDEX_VERSION = 1;
+    static final int INDEX_MAGIC = ('A' << 24) | ('I' << 16) | ('X' << 8) | INDEX_VERSION;
+    static final String JOURNAL_FILENAME = "library.jnl";
+    static final int JOURNAL_MAGIC = ('A' << 24) | ('I' << 16) | ('J' << 8) | 1;
+    static final byte RECORD_ADD = 1;
+    static final byte RECORD_REMOVE = 2;
+    // A change to files other than pictures, which only updates the modification time.
+    static final byte RECORD_OTHER = 3;
+    // The journal is merged into the index when it's larger than this.
+    static final int MAX_JOURNAL_BYTES = 32 * 1024;
+
+    static final String STAGING_DIRECTORY = "staging";
+    // Staged files older than this are left over from an interrupted save and are deleted.
+    static final long STALE_STAGING_MILLIS = 24L * 60 * 60 * 1000;
+
+    // The index, the journal, and changes to the base directory made through this class are
+    // synchronized on this object.
+    static final Object INDEX_LOCK = new Object();
+
+    /** A saved picture. */
+    public static class Entry {
+        // Path relative to the base directory, "foo.png" or "foo/foo.png" for older pictures.
+        public final String name;
+        public final String path;
+        public final long modified;
+        public final long size;
+        public final boolean hasThumbnail;
+
+        Entry(String baseDirectory, String name, long modified, long size, boolean hasThumbnail) {
+            this.name = name;
+            this.path = (new File(baseDirectory, name)).getAbsolutePath();
+            this.modified = modified;
+            this.size = size;
+            this.hasThumbnail = hasThumbnail;
+        }
+    }
+
+    // Newest pictures first; their names start with the date and time. This is reverse order of
+    // the file or directory names in the base directory, which is the order they're scanned in.
+    static final Comparator<Entry> NEWEST_FIRST = new Comparator<Entry>() {
+        @Override public int compare(Entry e1, Entry e2) {
+            return topLevelName(e2.name).compareTo(topLevelName(e1.name));
+        }
+    };
+
+    static String topLevelName(String name) {
+        int index = name.indexOf(File.separatorChar);
+        return (index >= 0) ? name.substring(0, index) : name;
+    }
+
+    // The changes recorded in the journal, applied in order.
+    static class Journal {
+        long dirModified;
+        int recordCount = 0;
+        // Pictures added since the index was written, newest first.
+        final List<Entry> added = new ArrayList<Entry>();
+        // Names of index entries that were removed or replaced.
+        final Set<String> removedNames = new HashSet<String>();
+
+        Journal(long indexModified) {
+            this.dirModified = indexModified;
+        }
+
+        void pictureAdded(Entry entry) {
+            pictureRemoved(entry.name);
+            int index = Collections.binarySearch(added, entry, NEWEST_FIRST);
+            added.add((index >= 0) ? index : -(index + 1), entry);
+        }
+
+        void pictureRemoved(String name) {
+            removedNames.add(name);
+            for (int i=added.size()-1; i>=0; i--) {
+                if (added.get(i).name.equals(name)) {
+                    added.remove(i);
+                }
+            }
+        }
+    }
+
+    // Passes entries to a listener in pages, and keeps all of them for writing the index.
+    static class Pager {
+        final int pageSize;
+        final PageListener listener;
+        final List<Entry> entries = new ArrayList<Entry>();
+        List<Entry> page = new ArrayList<Entry>();
+        boolean delivered = false;
+        boolean stopped = false;
+
+        Pager(int pageSize, PageListener listener) {
+            this.pageSize = pageSize;
+            this.listener = listener;
+        }
+
+        // Returns false if the listener stopped loading.
+        boolean add(Entry entry) {
+            entries.add(entry);
+            page.add(entry);
+            if (page.size() >= pageSize) {
+                finishPage();
+            }
+            return !stopped;
+        }
+
+        void finishPage() {
+            if (page.isEmpty() || stopped) return;
+            delivered = true;
+            stopped = !listener.pageLoaded(page);
+            page = new ArrayList<Entry>();
+        }
+    }
+
     String baseDirectory;
+    String thumbnailDirectory;
 
     public ImageLibrary(String basedir) {
+        this(basedir, basedir + File.separator + "thumbnails");
+    }
+
+    public ImageLibrary(String basedir, String thumbnailDirectory) {
         this.baseDirectory = basedir;
+        this.thumbnailDirectory = thumbnailDirectory;
     }
 
     public List<String> allImagePaths() {
+        List<Entry> entries = allImages();
+        List<String> paths = new ArrayList<String>(entries.size());
+        for (Entry entry : entries) {
+            paths.add(entry.path);
+        }
+        return paths;
+    }
+
+    /** Receives pictures from loadImages. */
+    public interface PageListener {
+        /** Called with each page of pictures, in order. Returns false to stop loading. */
+        boolean pageLoaded(List<Entry> entries);
+    }
+
+    /** Returns all pictures, newest first. See loadImages. */
+    public List<Entry> allImages() {
+        final List<Entry> allEntries = new ArrayList<Entry>();
+        loadImages(Integer.MAX_VALUE, new PageListener() {
+            @Override public boolean pageLoaded(List<Entry> entries) {
+                allEntries.addAll(entries);
+                return true;
+            }
+        });
+        return allEntries;
+    }
+
+    /**
+     * Reads pictures newest first, passing them to the listener in pages of up to pageSize
+     * entries as they're read, so that the first pictures can be shown without waiting for the
+     * entire library. Uses the index file and journal if they're up to date, otherwise scans the
+     * directory and writes a new index.
+     */
+    public void loadImages(int pageSize, PageListener listener) {
+        deleteStaleStagedFiles();
+        synchronized (INDEX_LOCK) {
+            // Creating the thumbnail directory for the index would change the modification time.
+            if ((new File(baseDirectory)).isDirectory()) {
+                (new File(thumbnailDirectory)).mkdirs();
+            }
+            long dirModified = (new File(baseDirectory)).lastModified();
+            if (!readIndex(dirModified, pageSize, listener)) {
+                scanDirectory(dirModified, pageSize, listener);
+            }
+        }
+    }
+
+    // Scans the directory, passing pages of entries to the listener, and writes the index if the
+    // listener didn't stop the scan.
+    void scanDirectory(long dirModified, int pageSize, PageListener listener) {
         String[] filenameArray = (new File(baseDirectory)).list();
         List<String> filenames = filenameArray != null ?
                 Arrays.asList(filenameArray) : Collections.<String>emptyList();
+        // Sorting the names is fast; checking the files is what's slow. Entries are delivered in
+        // the same order that they'll be stored in the index.
         Collections.sort(filenames);
         Collections.reverse(filenames);
-        List<String> paths = new ArrayList<String>();
+        Pager pager = new Pager(pageSize, listener);
         // Look for "<base>/foo.png" and (for backwards compatibility) "<base>/foo/foo.png".
         for (String fn : filenames) {
+            Entry entry = null;
             File f = new File(makePath(baseDirectory, fn));
             if (f.isDirectory()) {
                 File nestedFile = new File(makePath(baseDirectory, fn, fn + ".png"));
                 if (nestedFile.isFile()) {
-                    paths.add(nestedFile.getAbsolutePath());
+                    entry = createEntry(makePath(fn, fn + ".png"), nestedFile);
                 }
             }
             else if (f.isFile() && fn.endsWith(".png")) {
-                paths.add(f.getAbsolutePath());
+                entry = createEntry(fn, f);
             }
+            if (entry != null && !pager.add(entry)) break;
+        }
+        pager.finishPage();
+        if (!pager.stopped) {
+            writeIndex(pager.entries, dirModified);
+        }
+    }
+
+    Entry createEntry(String name, File file) {
+        File thumbnail = new File(thumbnailDirectory, file.getName());
+        return new Entry(baseDirectory, name, file.lastModified(), file.length(), thumbnail.isFile());
+    }
+
+    File indexFile() {
+        return new File(thumbnailDirectory, INDEX_FILENAME);
+    }
+
+    File journalFile() {
+        return new File(thumbnailDirectory, JOURNAL_FILENAME);
+    }
+
+    void deleteIndex() {
+        journalFile().delete();
+        indexFile().delete();
+    }
+
+    // Reads the index file and journal, passing pages of entries to the listener. Returns false
+    // without calling the listener if the index doesn't exist or the last recorded change wasn't
+    // at the given directory modification time. If the index turns out to be corrupt after some
+    // pages were delivered, returns true so the listener doesn't get duplicate entries, and
+    // deletes the index so that it will be rebuilt the next time. If all entries are read and
+    // the journal isn't empty, it's merged into a new index.
+    boolean readIndex(long dirModified, int pageSize, PageListener listener) {
+        File file = indexFile();
+        if (!file.isFile()) return false;
+        Pager pager = new Pager(pageSize, listener);
+        Journal journal;
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (input.readInt() != INDEX_MAGIC) return false;
+                journal = readJournal(input.readLong());
+                if (journal == null || journal.dirModified != dirModified) return false;
+                int count = input.readInt();
+                // Pictures from the journal are merged in order with the ones in the index.
+                int addedIndex = 0;
+                for (int i=0; i<count && !pager.stopped; i++) {
+                    String name = input.readUTF();
+                    long modified = input.readLong();
+                    long size = input.readLong();
+                    boolean hasThumbnail = input.readBoolean();
+                    if (journal.removedNames.contains(name)) continue;
+                    Entry entry = new Entry(baseDirectory, name, modified, size, hasThumbnail);
+                    while (addedIndex < journal.added.size() && !pager.stopped &&
+                            NEWEST_FIRST.compare(journal.added.get(addedIndex), entry) <= 0) {
+                        pager.add(journal.added.get(addedIndex++));
+                    }
+                    pager.add(entry);
+                }
+                while (addedIndex < journal.added.size() && !pager.stopped) {
+                    pager.add(journal.added.get(addedIndex++));
+                }
+                pager.finishPage();
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch (IOException ex) {
+            Log.w(TAG, "Error reading library index", ex);
+            deleteIndex();
+            return pager.delivered;
+        }
+        if (!pager.stopped && journal.recordCount > 0) {
+            writeIndex(pager.entries, journal.dirModified);
+        }
+        return true;
+    }
+
+    // Returns the changes in the journal, or null if it can't be read or wasn't started for the
+    // index with the given modification time. Returns an empty journal if there isn't one.
+    Journal readJournal(long indexModified) {
+        Journal journal = new Journal(indexModified);
+        File file = journalFile();
+        if (!file.isFile()) return journal;
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (input.readInt() != JOURNAL_MAGIC || input.readLong() != indexModified) {
+                    return null;
+                }
+                int type;
+                while ((type = input.read()) >= 0) {
+                    if (type == RECORD_ADD) {
+                        String name = input.readUTF();
+                        long modified = input.readLong();
+                        long size = input.readLong();
+                        boolean hasThumbnail = input.readBoolean();
+                        journal.pictureAdded(new Entry(baseDirectory, name, modified, size, hasThumbnail));
+                    }
+                    else if (type == RECORD_REMOVE) {
+                        journal.pictureRemoved(input.readUTF());
+                    }
+                    else if (type != RECORD_OTHER) {
+                        return null;
+                    }
+                    journal.dirModified = input.readLong();
+                    journal.recordCount++;
+                }
+                return journal;
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch (IOException ex) {
+            // Including a record cut off by the app being killed, which means a change may be missing.
+            Log.w(TAG, "Error reading library journal", ex);
+            return null;
+        }
+    }
+
+    // Writes a new index and deletes the journal, whose changes must be included in entries.
+    void writeIndex(List<Entry> entries, long dirModified) {
+        File file = indexFile();
+        // Write to a temporary file and rename, so a partially written index is never read.
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            file.getParentFile().mkdirs();
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                output.writeInt(INDEX_MAGIC);
+                output.writeLong(dirModified);
+                output.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    output.writeUTF(entry.name);
+                    output.writeLong(entry.modified);
+                    output.writeLong(entry.size);
+                    output.writeBoolean(entry.hasThumbnail);
+                }
+            }
+            finally {
+                output.close();
+            }
+            // If the app is killed between these steps, the old index doesn't match the directory.
+            journalFile().delete();
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmpFile);
+            }
+        }
+        catch (IOException ex) {
+            Log.w(TAG, "Error writing library index", ex);
+            tmpFile.delete();
+            deleteIndex();
+        }
+    }
+
+    long readIndexModifiedTime() {
+        try {
+            DataInputStream input = new DataInputStream(new FileInputStream(indexFile()));
+            try {
+                return (input.readInt() == INDEX_MAGIC) ? input.readLong() : -1;
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    // Returns true if the index and journal match the current directory. Otherwise deletes them,
+    // so that the next listing rescans the directory. Called with INDEX_LOCK held, before a change.
+    boolean checkIndex() {
+        if (indexFile().isFile()) {
+            long indexModified = readIndexModifiedTime();
+            Journal journal = (indexModified != -1) ? readJournal(indexModified) : null;
+            if (journal != null && journal.dirModified == (new File(baseDirectory)).lastModified()) {
+                return true;
+            }
+        }
+        deleteIndex();
+        return false;
+    }
+
+    /** Returns the directory where files are written before moveFiles puts them in the library. */
+    public File getStagingDirectory() {
+        File dir = new File(thumbnailDirectory, STAGING_DIRECTORY);
+        dir.mkdirs();
+        return dir;
+    }
+
+    void deleteStaleStagedFiles() {
+        File[] files = (new File(thumbnailDirectory, STAGING_DIRECTORY)).listFiles();
+        if (files == null) return;
+        long cutoff = System.currentTimeMillis() - STALE_STAGING_MILLIS;
+        for (File file : files) {
+            if (file.lastModified() < cutoff) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Renames each source file, normally in the staging directory, to the destination at the
+     * same position, replacing any existing file. Pictures among the destinations are added to
+     * the index. Stops and throws an IOException if a file can't be moved; files moved before
+     * that are still recorded.
+     */
+    public void moveFiles(List<File> sources, List<File> destinations) throws IOException {
+        synchronized (INDEX_LOCK) {
+            boolean indexCurrent = checkIndex();
+            List<File> moved = new ArrayList<File>();
+            try {
+                for (int i=0; i<sources.size(); i++) {
+                    if (!sources.get(i).renameTo(destinations.get(i))) {
+                        throw new IOException("Unable to move " + sources.get(i) + " to " + destinations.get(i));
+                    }
+                    moved.add(destinations.get(i));
+                }
+            }
+            finally {
+                if (indexCurrent && !moved.isEmpty()) {
+                    appendJournal(moved, RECORD_ADD);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes files from the library directory, and removes pictures among them from the index.
+     * Returns the files that were deleted.
+     */
+    public List<File> deleteFiles(List<File> files) {
+        synchronized (INDEX_LOCK) {
+            boolean indexCurrent = checkIndex();
+            List<File> deleted = new ArrayList<File>();
+            for (File file : files) {
+                if (file.delete()) {
+                    deleted.add(file);
+                }
+            }
+            if (indexCurrent && !deleted.isEmpty()) {
+                appendJournal(deleted, RECORD_REMOVE);
+            }
+            return deleted;
+        }
+    }
+
+    // Returns the index name of the file if it's a picture in the base directory, or null.
+    String pictureName(File file) {
+        if (!file.getName().endsWith(".png")) return null;
+        File base = (new File(baseDirectory)).getAbsoluteFile();
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (base.equals(parent)) {
+            return file.getName();
+        }
+        if (parent != null && base.equals(parent.getParentFile()) &&
+                file.getName().equals(parent.getName() + ".png")) {
+            return makePath(parent.getName(), file.getName());
+        }
+        return null;
+    }
+
+    // Records that the files were added or removed, with the directory modification time that
+    // resulted. Called with INDEX_LOCK held, right after the change.
+    void appendJournal(List<File> files, byte pictureRecordType) {
+        long dirModified = (new File(baseDirectory)).lastModified();
+        File file = journalFile();
+        try {
+            boolean newJournal = !file.isFile();
+            long indexModified = newJournal ? readIndexModifiedTime() : 0;
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            try {
+                if (newJournal) {
+                    output.writeInt(JOURNAL_MAGIC);
+                    output.writeLong(indexModified);
+                }
+                boolean recorded = false;
+                for (File changedFile : files) {
+                    String name = pictureName(changedFile);
+                    if (name == null) continue;
+                    output.writeByte(pictureRecordType);
+                    output.writeUTF(name);
+                    if (pictureRecordType == RECORD_ADD) {
+                        Entry entry = createEntry(name, changedFile);
+                        output.writeLong(entry.modified);
+                        output.writeLong(entry.size);
+                        output.writeBoolean(entry.hasThumbnail);
+                    }
+                    output.writeLong(dirModified);
+                    recorded = true;
+                }
+                if (!recorded) {
+                    output.writeByte(RECORD_OTHER);
+                    output.writeLong(dirModified);
+                }
+            }
+            finally {
+                output.close();
+            }
+        }
+        catch (IOException ex) {
+            Log.w(TAG, "Error writing library journal", ex);
+            deleteIndex();
+            return;
+        }
+        if (file.length() > MAX_JOURNAL_BYTES) {
+            // Reading all the entries merges the journal into a new index.
+            readIndex(dirModified, Integer.MAX_VALUE, new PageListener() {
+                @Override public boolean pageLoaded(List<Entry> entries) {
+                    return true;
+                }
+            });
         }
-        return paths;
     }
 
     private static String makePath(String... args) {
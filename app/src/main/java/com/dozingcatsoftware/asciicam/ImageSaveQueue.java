@@ -0,0 +1,251 @@
+package com.dozingcatsoftware.asciicam;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.dozingcatsoftware.util.LatencyHistogram;
+import com.dozingcatsoftware.util.MetricsRegistry;
+import com.dozingcatsoftware.util.TraceRecorder;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Saves pictures in the background so that taking a picture doesn't interrupt the camera preview.
+ * Each picture is first captured on a dedicated thread (which may need to wait for the current
+ * preview frame to finish), and then its output files are written in parallel on a pool of I/O
+ * threads. At most MAX_PENDING_PICTURES can be in progress at once; additional requests are
+ * rejected so that rapid shots can't use unbounded memory. Files are written to the staging
+ * directory and moved into the picture directory when all of them are done.
+ */
+public class ImageSaveQueue {
+
+    private static final String TAG = "ImageSaveQueue";
+
+    static final int MAX_PENDING_PICTURES = 4;
+    static final int NUM_IO_THREADS = 3;
+
+    // Time from starting to capture a picture until all its files are written.
+    static final LatencyHistogram saveTimes = MetricsRegistry.getInstance().histogram("picture.save");
+
+    /** The data needed to save a picture, created by a Capture on the capture thread. */
+    public static class Picture {
+        public final AsciiConverter.Result result;
+        public final AsciiRenderer.CharTemplate charTemplate;
+        public final int imageWidth;
+        public final int imageHeight;
+        public final Bitmap thumbnail;
+
+        public Picture(AsciiConverter.Result result, AsciiRenderer.CharTemplate charTemplate,
+                int imageWidth, int imageHeight, Bitmap thumbnail) {
+            this.result = result;
+            this.charTemplate = charTemplate;
+            this.imageWidth = imageWidth;
+            this.imageHeight = imageHeight;
+            this.thumbnail = thumbnail;
+        }
+    }
+
+    public interface Capture {
+        /**
+         * Called on the capture thread to copy the current image. The returned objects must not be
+         * modified afterwards, since they'll be read by multiple I/O threads.
+         */
+        Picture capturePicture();
+    }
+
+    public interface Callback {
+        /**
+         * Called on the callback handler's thread when all files for a picture are written.
+         * writeMillis maps each file type ("png", "asc", "thumbnail") to the time taken to write it.
+         */
+        void pictureSaved(String imagePath, Map<String, Long> writeMillis);
+        void pictureSaveFailed(Exception ex);
+    }
+
+    AsciiImageWriter imageWriter;
+    Handler callbackHandler;
+    ExecutorService captureExecutor = Executors.newSingleThreadExecutor();
+    ExecutorService ioExecutor = Executors.newFixedThreadPool(NUM_IO_THREADS);
+    Semaphore pendingPictures = new Semaphore(MAX_PENDING_PICTURES);
+
+    public ImageSaveQueue(AsciiImageWriter imageWriter, Handler callbackHandler) {
+        this.imageWriter = imageWriter;
+        this.callbackHandler = callbackHandler;
+    }
+
+    /**
+     * Queues a picture to be captured and saved. Returns false without calling any callback
+     * methods if too many pictures are already being saved.
+     */
+    public boolean savePicture(final Capture capture, final Callback callback) {
+        if (!pendingPictures.tryAcquire()) {
+            return false;
+        }
+        captureExecutor.execute(new Runnable() {
+            @Override public void run() {
+                long startNanos = System.nanoTime();
+                long traceStart = TraceRecorder.begin();
+                Picture picture;
+                String imageName;
+                try {
+                    picture = capture.capturePicture();
+                    imageName = imageWriter.reserveImageName();
+                }
+                catch (Exception ex) {
+                    pendingPictures.release();
+                    postFailure(callback, ex);
+                    return;
+                }
+                finally {
+                    TraceRecorder.end("save.capture", traceStart);
+                }
+                writeFiles(picture, imageName, startNanos, callback);
+            }
+        });
+        return true;
+    }
+
+    /** Returns the number of pictures that have been queued but not fully written. */
+    public int getPendingCount() {
+        return MAX_PENDING_PICTURES - pendingPictures.availablePermits();
+    }
+
+    // Holds the state of a picture whose files are being written on multiple I/O threads.
+    // The last writer to finish reports the result.
+    class PictureWrite {
+        final String imageName;
+        final long startNanos;
+        final Callback callback;
+        final AtomicInteger remainingFiles;
+        final Map<String, Long> writeMillis = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+        volatile Exception error;
+
+        PictureWrite(String imageName, long startNanos, int numFiles, Callback callback) {
+            this.imageName = imageName;
+            this.startNanos = startNanos;
+            this.remainingFiles = new AtomicInteger(numFiles);
+            this.callback = callback;
+        }
+
+        void fileFinished(String fileType, long startNanos, Exception ex) {
+            writeMillis.put(fileType, (System.nanoTime() - startNanos) / 1000000);
+            if (ex != null) {
+                error = ex;
+            }
+            if (remainingFiles.decrementAndGet() == 0) {
+                String imagePath = null;
+                if (error == null) {
+                    try {
+                        imagePath = imageWriter.addStagedPicture(imageName);
+                    }
+                    catch (IOException moveError) {
+                        error = moveError;
+                    }
+                }
+                if (error != null) {
+                    imageWriter.discardStagedPicture(imageName);
+                }
+                // Released after the PNG is in place, so that another picture can't take the name.
+                imageWriter.releaseImageName(imageName);
+                pendingPictures.release();
+                saveTimes.record(System.nanoTime() - startNanos);
+                Log.i(TAG, "Saved " + imageName + ", write times (ms): " + writeMillis);
+                if (error != null) {
+                    postFailure(callback, error);
+                }
+                else {
+                    postSuccess(callback, imagePath, writeMillis);
+                }
+            }
+        }
+    }
+
+    abstract class FileWriteTask implements Runnable {
+        final PictureWrite pictureWrite;
+        final String fileType;
+        final String traceName;
+
+        FileWriteTask(PictureWrite pictureWrite, String fileType) {
+            this.pictureWrite = pictureWrite;
+            this.fileType = fileType;
+            this.traceName = "save." + fileType;
+        }
+
+        abstract void writeFile() throws IOException;
+
+        @Override public void run() {
+            long t1 = System.nanoTime();
+            long traceStart = TraceRecorder.begin();
+            Exception error = null;
+            try {
+                writeFile();
+            }
+            catch (Exception ex) {
+                error = ex;
+            }
+            TraceRecorder.end(traceName, traceStart);
+            pictureWrite.fileFinished(fileType, t1, error);
+        }
+    }
+
+    void writeFiles(final Picture picture, final String imageName, long startNanos, Callback callback) {
+        final String dir = imageWriter.getStagingDirectory();
+        int numFiles = (picture.thumbnail != null) ? 3 : 2;
+        final PictureWrite pictureWrite = new PictureWrite(imageName, startNanos, numFiles, callback);
+
+        ioExecutor.execute(new FileWriteTask(pictureWrite, "png") {
+            @Override void writeFile() throws IOException {
+                imageWriter.savePng(picture.result, picture.charTemplate,
+                        picture.imageWidth, picture.imageHeight, dir, imageName);
+            }
+        });
+        ioExecutor.execute(new FileWriteTask(pictureWrite, "asc") {
+            @Override void writeFile() throws IOException {
+                imageWriter.saveResult(picture.result, dir, imageName);
+            }
+        });
+        if (picture.thumbnail != null) {
+            ioExecutor.execute(new FileWriteTask(pictureWrite, "thumbnail") {
+                @Override void writeFile() throws IOException {
+                    imageWriter.saveThumbnail(picture.thumbnail, imageName);
+                }
+            });
+        }
+    }
+
+    void postSuccess(final Callback callback, final String imagePath, final Map<String, Long> writeMillis) {
+        callbackHandler.post(new Runnable() {
+            @Override public void run() {
+                callback.pictureSaved(imagePath, writeMillis);
+            }
+        });
+    }
+
+    void postFailure(final Callback callback, final Exception ex) {
+        callbackHandler.post(new Runnable() {
+            @Override public void run() {
+                callback.pictureSaveFailed(ex);
+            }
+        });
+    }
+
+    /** Stops accepting new pictures. Pictures already queued will still be saved. */
+    public void shutdown() {
+        // Pictures already queued on the capture thread will submit their file writes before
+        // this runs, so they'll complete before the I/O threads exit.
+        captureExecutor.execute(new Runnable() {
+            @Override public void run() {
+                ioExecutor.shutdown();
+            }
+        });
+        captureExecutor.shutdown();
+    }
+}
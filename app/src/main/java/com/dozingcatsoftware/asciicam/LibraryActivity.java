@@ -3,25 +3,33 @@
 package com.dozingcatsoftware.asciicam;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 import com.dozingcatsoftware.util.AsyncImageLoader;
 import com.dozingcatsoftware.util.ScaledBitmapCache;
+import com.dozingcatsoftware.util.ThumbnailPack;
 
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
+import android.widget.BaseAdapter;
 import android.widget.GridView;
 import android.widget.ImageView;
-import android.widget.SimpleAdapter;
 
 /**
  * Activity which displays all pictures the user has taken in a scrolling grid. Selecting an image opens it
@@ -32,16 +40,43 @@ public class LibraryActivity extends Activity {
     static int CELL_WIDTH = 92;
     static int CELL_HEIGHT = 69;
 
+    // Number of pictures read from the library before they're added to the grid. This is about
+    // one screen, so the first thumbnails appear as soon as one page is read.
+    static int PAGE_SIZE = 48;
+
+    // Whether to store grid thumbnails in a single pack file rather than one file per picture.
+    static boolean USE_THUMBNAIL_PACK = true;
+    static String THUMBNAIL_PACK_FILENAME = "thumbnails.pack";
+    // The thread closing the previous activity's pack, which must finish before it's opened again.
+    static Thread thumbnailPackCloseThread;
+
     String imageDirectory;
+    String thumbnailDirectory;
 
     GridView gridView;
+    View noImagesView;
+    ImageGridAdapter gridAdapter;
 
-    List<Map<String, Uri>> imageMaps = new ArrayList<Map<String, Uri>>();
-    static String IMAGE_URI_KEY = "imageUri";
+    Handler handler = new Handler();
+    volatile boolean destroyed = false;
+    boolean loadingFinished = false;
 
     // A cache of scaled Bitmaps for the image files, so we can avoid reloading them as the user scrolls.
+    // It's shared with ViewImageActivity, which shows the thumbnail while loading the full image.
+    static ScaledBitmapCache sharedBitmapCache;
+    static String sharedBitmapCacheDirectory;
     ScaledBitmapCache bitmapCache;
     AsyncImageLoader imageLoader = new AsyncImageLoader();
+    ThumbnailPack thumbnailPack;
+
+    /** Returns the bitmap cache for thumbnails in the given directory, which is kept between activities. */
+    static synchronized ScaledBitmapCache getSharedBitmapCache(Context context, String thumbnailDirectory) {
+        if (sharedBitmapCache == null || !thumbnailDirectory.equals(sharedBitmapCacheDirectory)) {
+            sharedBitmapCache = new ScaledBitmapCache(context.getApplicationContext(), thumbnailDirectory);
+            sharedBitmapCacheDirectory = thumbnailDirectory;
+        }
+        return sharedBitmapCache;
+    }
 
     public static Intent intentWithImageDirectory(Context parent, String imageDirectory, String thumbnailDirectory) {
         Intent intent = new Intent(parent, LibraryActivity.class);
@@ -50,68 +85,206 @@ public class LibraryActivity extends Activity {
         return intent;
     }
 
+    /**
+     * Adapter for the grid of pictures. The image URIs are stored in an array which grows as pages
+     * are loaded, and which is updated in place when pictures are deleted.
+     */
+    class ImageGridAdapter extends BaseAdapter implements AsyncImageLoader.UriSource {
+        Uri[] imageUris = new Uri[PAGE_SIZE];
+        int count = 0;
+
+        void appendImages(List<ImageLibrary.Entry> entries) {
+            if (count + entries.size() > imageUris.length) {
+                imageUris = Arrays.copyOf(imageUris, Math.max(2 * imageUris.length, count + entries.size()));
+            }
+            for (ImageLibrary.Entry entry : entries) {
+                imageUris[count++] = Uri.fromFile(new File(entry.path));
+            }
+            notifyDataSetChanged();
+        }
+
+        void removeImageAtPosition(int position) {
+            System.arraycopy(imageUris, position + 1, imageUris, position, count - position - 1);
+            imageUris[--count] = null;
+            notifyDataSetChanged();
+        }
+
+        int positionOfImageUri(String uriString) {
+            for (int i=0; i<count; i++) {
+                if (imageUris[i].toString().equals(uriString)) return i;
+            }
+            return -1;
+        }
+
+        Uri getImageUri(int position) {
+            return imageUris[position];
+        }
+
+        @Override public Uri getUri(int position) {
+            return imageUris[position];
+        }
+
+        @Override public int getCount() {
+            return count;
+        }
+
+        @Override public Object getItem(int position) {
+            return imageUris[position];
+        }
+
+        @Override public long getItemId(int position) {
+            return position;
+        }
+
+        @Override public View getView(int position, View convertView, ViewGroup parent) {
+            View cellView = (convertView != null) ? convertView :
+                LayoutInflater.from(LibraryActivity.this).inflate(R.layout.library_cell, parent, false);
+            ImageView imageView = (ImageView) cellView.findViewById(R.id.grid_image);
+            imageLoader.loadImageIntoViewAsync(bitmapCache, imageUris[position], position, imageView, CELL_WIDTH, CELL_HEIGHT);
+            return cellView;
+        }
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.library_list);
 
         imageDirectory = getIntent().getStringExtra("imageDirectory");
-        bitmapCache = new ScaledBitmapCache(this, getIntent().getStringExtra("thumbnailDirectory"));
+        thumbnailDirectory = getIntent().getStringExtra("thumbnailDirectory");
+        bitmapCache = getSharedBitmapCache(this, thumbnailDirectory);
 
+        noImagesView = findViewById(R.id.noImagesTextView);
         gridView = (GridView) findViewById(R.id.gridview);
+        gridAdapter = new ImageGridAdapter();
+        gridView.setAdapter(gridAdapter);
+        imageLoader.setPrefetchSource(bitmapCache, gridAdapter, CELL_WIDTH, CELL_HEIGHT);
+        gridView.setOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                imageLoader.setVisibleRange(firstVisibleItem, visibleItemCount);
+            }
+
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+        });
         gridView.setOnItemClickListener(new OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 ViewImageActivity.startActivityWithImageURI(LibraryActivity.this,
-                        imageMaps.get(position).get(IMAGE_URI_KEY), "image/jpeg");
+                        gridAdapter.getImageUri(position), "image/jpeg");
             }
         });
-        readImageThumbnails();
-        displayGrid();
+        loadImagesInBackground();
     }
 
-    void readImageThumbnails() {
-        ImageLibrary library = new ImageLibrary(imageDirectory);
-        imageMaps.clear();
-        for (String path : library.allImagePaths()) {
-            Map<String, Uri> dmap = new HashMap<String, Uri>();
-            dmap.put(IMAGE_URI_KEY, Uri.fromFile(new File(path)));
-            imageMaps.add(dmap);
+    @Override
+    public void onDestroy() {
+        final ThumbnailPack pack;
+        synchronized (this) {
+            destroyed = true;
+            pack = thumbnailPack;
+            if (pack != null) {
+                bitmapCache.setThumbnailPack(null);
+            }
+        }
+        imageLoader.shutdown();
+        if (pack != null) {
+            // Closing may compact the pack file, so don't do it on the main thread.
+            Thread closeThread = new Thread() {
+                @Override public void run() {
+                    pack.close();
+                }
+            };
+            synchronized (LibraryActivity.class) {
+                thumbnailPackCloseThread = closeThread;
+            }
+            closeThread.start();
         }
+        super.onDestroy();
     }
 
-    void displayGrid() {
-        SimpleAdapter adapter = new SimpleAdapter(this, imageMaps,
-                R.layout.library_cell,
-                new String[] {IMAGE_URI_KEY},
-                new int[] {R.id.grid_image});
-        adapter.setViewBinder(new SimpleAdapter.ViewBinder() {
-            @Override
-            public boolean setViewValue(View view, Object data, String textRepresentation) {
-                Uri imageUri = (Uri)data;
-                imageLoader.loadImageIntoViewAsync(bitmapCache, imageUri, (ImageView)view, CELL_WIDTH, CELL_HEIGHT, getResources());
-                return true;
+    // Opens the thumbnail pack, which may need to rebuild its index. Called on the thread that
+    // reads the library, before any thumbnails are requested.
+    void openThumbnailPack() {
+        if (!USE_THUMBNAIL_PACK) return;
+        Thread closeThread;
+        synchronized (LibraryActivity.class) {
+            closeThread = thumbnailPackCloseThread;
+        }
+        if (closeThread != null) {
+            try {
+                closeThread.join();
             }
-        });
-        gridView.setAdapter(adapter);
+            catch (InterruptedException ignored) {}
+        }
+        try {
+            ThumbnailPack pack = new ThumbnailPack(new File(thumbnailDirectory, THUMBNAIL_PACK_FILENAME));
+            synchronized (this) {
+                if (destroyed) {
+                    pack.close();
+                    return;
+                }
+                thumbnailPack = pack;
+                bitmapCache.setThumbnailPack(pack);
+            }
+        }
+        catch (IOException ex) {
+            Log.w("LibraryActivity", "Error opening thumbnail pack", ex);
+        }
+    }
+
+    // Reads the library on a separate thread, and adds each page of pictures to the grid as it's read.
+    void loadImagesInBackground() {
+        final ImageLibrary library = new ImageLibrary(imageDirectory, thumbnailDirectory);
+        (new Thread() {
+            @Override public void run() {
+                openThumbnailPack();
+                final Set<String> imageUris = new HashSet<String>();
+                library.loadImages(PAGE_SIZE, new ImageLibrary.PageListener() {
+                    @Override public boolean pageLoaded(final List<ImageLibrary.Entry> entries) {
+                        for (ImageLibrary.Entry entry : entries) {
+                            imageUris.add(Uri.fromFile(new File(entry.path)).toString());
+                        }
+                        handler.post(new Runnable() {
+                            @Override public void run() {
+                                gridAdapter.appendImages(entries);
+                                updateNoImagesView();
+                            }
+                        });
+                        return !destroyed;
+                    }
+                });
+                // Pictures deleted while the pack wasn't open still have thumbnails in it.
+                if (!destroyed) {
+                    bitmapCache.retainPackedUris(imageUris);
+                }
+                handler.post(new Runnable() {
+                    @Override public void run() {
+                        loadingFinished = true;
+                        updateNoImagesView();
+                    }
+                });
+            }
+        }).start();
+    }
 
-        // show text message if no images available
-        View noImagesView = findViewById(R.id.noImagesTextView);
-        noImagesView.setVisibility(imageMaps.size()>0 ? View.GONE : View.VISIBLE);
+    // Shows a text message if no images are available, once the library is completely read.
+    void updateNoImagesView() {
+        boolean empty = loadingFinished && gridAdapter.getCount() == 0;
+        noImagesView.setVisibility(empty ? View.VISIBLE : View.GONE);
     }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (resultCode == ViewImageActivity.DELETE_RESULT) {
             String deletedImageUri = data.getStringExtra(ViewImageActivity.DELETED_IMAGE_URI_KEY);
-            for (int i = 0; i < imageMaps.size(); i++) {
-                Uri gridImageUri = imageMaps.get(i).get(IMAGE_URI_KEY);
-                if (gridImageUri.toString().equals(deletedImageUri)) {
-                    bitmapCache.removeUri(gridImageUri);
-                    imageMaps.remove(i);
-                    displayGrid();
-                    break;
-                }
+            int position = gridAdapter.positionOfImageUri(deletedImageUri);
+            // ViewImageActivity has already removed the picture's thumbnails from bitmapCache.
+            if (position >= 0) {
+                gridAdapter.removeImageAtPosition(position);
+                updateNoImagesView();
             }
         }
     }
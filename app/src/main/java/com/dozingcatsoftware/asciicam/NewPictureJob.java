@@ -14,7 +14,6 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Environment;
-import android.os.Handler;
 import android.provider.MediaStore;
 import android.util.Log;
 
@@ -43,14 +42,6 @@ public class NewPictureJob extends JobService {
 
     JobParameters jobParams;
 
-    final Handler handler = new Handler();
-    final Runnable worker = new Runnable() {
-        @Override public void run() {
-            scheduleJob(NewPictureJob.this);
-            jobFinished(jobParams, false);
-        }
-    };
-
     // Schedule this job, replace any existing one.
     public static void scheduleJob(Context context) {
         JobScheduler js = context.getSystemService(JobScheduler.class);
@@ -143,25 +134,25 @@ public class NewPictureJob extends JobService {
                 }
             }
         }
-        try {
-            if (newImagePaths.size() > 0) {
-                // Use a thread rather than an AsyncTask since AsyncTasks are serialized.
-                (new Thread(new Runnable() {
-                    @Override public void run() {
-                        processImagePaths(newImagePaths);
-                    }
-                })).start();
+        // Use a thread rather than an AsyncTask since AsyncTasks are serialized.
+        (new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    // Called even if there are no new pictures, so that unfinished conversions
+                    // are resumed.
+                    processImagePaths(newImagePaths);
+                }
+                finally {
+                    scheduleJob(NewPictureJob.this);
+                    jobFinished(jobParams, false);
+                }
             }
-        }
-        finally {
-            handler.postDelayed(worker, 1);
-        }
+        })).start();
         return true;
     }
 
     @Override
     public boolean onStopJob(JobParameters params) {
-        handler.removeCallbacks(worker);
         return false;
     }
 
@@ -172,13 +163,11 @@ public class NewPictureJob extends JobService {
         if (!scheduled) {
             return;
         }
+        List<Uri> imageUris = new ArrayList<Uri>();
         for (String path : imagePaths) {
-            try {
-                (new ProcessImageOperation()).processImage(this, Uri.fromFile(new File(path)));
-            }
-            catch (Exception ex) {
-                Log.e("NewPictureJob", "Failed to process image", ex);
-            }
+            imageUris.add(Uri.fromFile(new File(path)));
         }
+        // BatchConversionQueue converts the pictures in parallel on ConversionService's threads.
+        BatchConversionQueue.getInstance(this).convert(imageUris);
     }
 }
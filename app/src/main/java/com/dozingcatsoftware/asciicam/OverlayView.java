@@ -2,19 +2,31 @@
 
 package com.dozingcatsoftware.asciicam;
 
+import com.dozingcatsoftware.util.LatencyHistogram;
+import com.dozingcatsoftware.util.MetricsRegistry;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.util.AttributeSet;
 import android.view.View;
 
 /** View which displays the ASCII image computed from the camera preview. */
 public class OverlayView extends View {
 
+    static final LatencyHistogram hudDrawTimes = MetricsRegistry.getInstance().histogram("hud.draw");
+
     public OverlayView(Context context, AttributeSet attrs) {
         super(context, attrs);
+        float density = context.getResources().getDisplayMetrics().density;
+        hudTextPaint.setColor(Color.WHITE);
+        hudTextPaint.setAntiAlias(true);
+        hudTextPaint.setTextSize(12 * density);
+        hudBackgroundPaint.setColor(Color.argb(160, 0, 0, 0));
+        hudPadding = 4 * density;
     }
 
     Bitmap bitmap;
@@ -23,6 +35,14 @@ public class OverlayView extends View {
     Matrix flipHorizontalMatrix = new Matrix();
     int backgroundFillColor = Color.argb(255, 0, 0, 0);
 
+    // Performance overlay text from PerformanceHud, or null to hide it. The size of its
+    // background is computed when the text changes rather than for every frame.
+    String[] hudLines;
+    Paint hudTextPaint = new Paint();
+    Paint hudBackgroundPaint = new Paint();
+    float hudPadding;
+    float hudWidth, hudHeight;
+
     public void setFlipHorizontal(boolean value) {
         this.flipHorizontal = value;
     }
@@ -40,6 +60,36 @@ public class OverlayView extends View {
         else {
             canvas.drawBitmap(bitmap, xoffset, yoffset, null);
         }
+        if (hudLines != null) {
+            drawHud(canvas);
+        }
+    }
+
+    // Draws the performance overlay in the top left corner, and records the time taken so that
+    // the overlay can show its own cost.
+    void drawHud(Canvas canvas) {
+        long t1 = System.nanoTime();
+        canvas.drawRect(0, 0, hudWidth, hudHeight, hudBackgroundPaint);
+        float lineHeight = hudTextPaint.getFontSpacing();
+        float y = hudPadding - hudTextPaint.ascent();
+        for (String line : hudLines) {
+            canvas.drawText(line, hudPadding, y, hudTextPaint);
+            y += lineHeight;
+        }
+        hudDrawTimes.record(System.nanoTime() - t1);
+    }
+
+    /** Sets the lines of the performance overlay, or hides it if lines is null. */
+    public void setHudLines(String[] lines) {
+        this.hudLines = lines;
+        if (lines != null) {
+            float maxWidth = 0;
+            for (String line : lines) {
+                maxWidth = Math.max(maxWidth, hudTextPaint.measureText(line));
+            }
+            hudWidth = maxWidth + 2 * hudPadding;
+            hudHeight = lines.length * hudTextPaint.getFontSpacing() + 2 * hudPadding;
+        }
     }
 
     public Bitmap getBitmap() {
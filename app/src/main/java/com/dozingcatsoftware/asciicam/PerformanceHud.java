@@ -0,0 +1,94 @@
+package com.dozingcatsoftware.asciicam;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dozingcatsoftware.util.LatencyHistogram;
+import com.dozingcatsoftware.util.MetricsRegistry;
+
+/**
+ * Computes the text of the performance overlay drawn by OverlayView from the frame metrics in
+ * MetricsRegistry. Values are for the interval since the previous update rather than since the
+ * app started, so they follow changes in the scene and settings. Updates happen at most every
+ * UPDATE_INTERVAL_NANOS so that the text is readable and formatting it costs little. All methods
+ * are called on the main thread.
+ */
+public class PerformanceHud {
+
+    static final long UPDATE_INTERVAL_NANOS = 250L * 1000 * 1000;
+
+    final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    final LatencyHistogram latencyTimes = metrics.histogram("frame.latency");
+    final LatencyHistogram queueWaitTimes = metrics.histogram("frame.queueWait");
+    final LatencyHistogram convertTimes = metrics.histogram("frame.convert");
+    final LatencyHistogram renderTimes = metrics.histogram("frame.render");
+    final LatencyHistogram displayTimes = metrics.histogram("frame.display");
+    final LatencyHistogram hudDrawTimes = metrics.histogram("hud.draw");
+    final AtomicLong processedFrames = metrics.counter("frame.processed");
+    final AtomicLong droppedFrames = metrics.counter("frame.dropped");
+
+    // Values at the previous update, which are subtracted from the current values.
+    long previousNanos = 0;
+    LatencyHistogram.Snapshot previousLatency, previousQueueWait, previousConvert,
+            previousRender, previousDisplay, previousHudDraw;
+    long previousProcessed, previousDropped;
+
+    /** Clears the previous values, so that the next call to update starts a new interval. */
+    public void reset() {
+        previousNanos = 0;
+    }
+
+    /**
+     * Returns the lines of text to display, or null if the previous lines are recent enough or
+     * this is the start of the first interval.
+     */
+    public String[] update(long nowNanos, int previewWidth, int previewHeight, int columns, int rows,
+            int convertThreads, int renderThreads) {
+        if (previousNanos != 0 && nowNanos - previousNanos < UPDATE_INTERVAL_NANOS) return null;
+
+        LatencyHistogram.Snapshot latency = latencyTimes.snapshot();
+        LatencyHistogram.Snapshot queueWait = queueWaitTimes.snapshot();
+        LatencyHistogram.Snapshot convert = convertTimes.snapshot();
+        LatencyHistogram.Snapshot render = renderTimes.snapshot();
+        LatencyHistogram.Snapshot display = displayTimes.snapshot();
+        LatencyHistogram.Snapshot hudDraw = hudDrawTimes.snapshot();
+        long processed = processedFrames.get();
+        long dropped = droppedFrames.get();
+
+        String[] lines = null;
+        if (previousNanos != 0) {
+            double seconds = (nowNanos - previousNanos) / 1e9;
+            LatencyHistogram.Snapshot intervalLatency = latency.minus(previousLatency);
+            lines = new String[] {
+                    String.format(Locale.US, "%.1f fps  latency p50 %.1f ms  p95 %.1f ms",
+                            (processed - previousProcessed) / seconds,
+                            millis(intervalLatency.percentileNanos(0.5)),
+                            millis(intervalLatency.percentileNanos(0.95))),
+                    String.format(Locale.US, "wait %.1f  convert %.1f  render %.1f  display %.1f ms",
+                            millis(queueWait.minus(previousQueueWait).meanNanos()),
+                            millis(convert.minus(previousConvert).meanNanos()),
+                            millis(render.minus(previousRender).meanNanos()),
+                            millis(display.minus(previousDisplay).meanNanos())),
+                    String.format(Locale.US, "threads %d convert, %d render  dropped %d",
+                            convertThreads, renderThreads, dropped - previousDropped),
+                    String.format(Locale.US, "preview %dx%d  grid %dx%d  overlay %.2f ms",
+                            previewWidth, previewHeight, columns, rows,
+                            millis(hudDraw.minus(previousHudDraw).meanNanos())),
+            };
+        }
+        previousNanos = nowNanos;
+        previousLatency = latency;
+        previousQueueWait = queueWait;
+        previousConvert = convert;
+        previousRender = render;
+        previousDisplay = display;
+        previousHudDraw = hudDraw;
+        previousProcessed = processed;
+        previousDropped = dropped;
+        return lines;
+    }
+
+    static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
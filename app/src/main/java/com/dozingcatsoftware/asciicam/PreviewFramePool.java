@@ -0,0 +1,77 @@
+package com.dozingcatsoftware.asciicam;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.dozingcatsoftware.util.CameraUtils;
+
+import android.hardware.Camera;
+
+/**
+ * Reuses CameraPreviewData objects so that receiving a preview frame doesn't allocate, and counts
+ * the references to each frame so that its buffer is returned to the camera or replay source
+ * exactly once, when the last user releases it. Not thread safe; AsciiCamActivity only uses it
+ * on the main thread.
+ */
+class PreviewFramePool {
+
+    /** Returns a frame's buffer to the camera or replay source that it came from. */
+    interface BufferReleaser {
+        void releaseBuffer(CameraPreviewData previewData);
+    }
+
+    final BufferReleaser bufferReleaser;
+    final List<CameraPreviewData> freeFrames = new ArrayList<CameraPreviewData>();
+    int createdCount = 0;
+
+    PreviewFramePool(BufferReleaser bufferReleaser) {
+        this.bufferReleaser = bufferReleaser;
+    }
+
+    /** Returns a frame holding the given buffer, with one reference. */
+    public CameraPreviewData obtain(Camera camera, CameraUtils.CameraInfo cameraInfo,
+            byte[] data, int width, int height, long timestamp) {
+        int count = freeFrames.size();
+        CameraPreviewData previewData;
+        if (count > 0) {
+            previewData = freeFrames.remove(count - 1);
+        }
+        else {
+            previewData = new CameraPreviewData();
+            createdCount++;
+        }
+        previewData.set(camera, cameraInfo, data, width, height, timestamp);
+        previewData.receivedNanos = System.nanoTime();
+        previewData.references = 1;
+        return previewData;
+    }
+
+    /** Adds a reference to a frame, which must be balanced by a call to release. */
+    public void retain(CameraPreviewData previewData) {
+        previewData.references++;
+    }
+
+    /**
+     * Removes a reference to a frame, and if it was the last one returns the frame's buffer to
+     * its source and makes the frame available to obtain.
+     */
+    public void release(CameraPreviewData previewData) {
+        if (previewData.references <= 0) {
+            throw new IllegalStateException("Preview frame was already released");
+        }
+        if (--previewData.references > 0) return;
+        bufferReleaser.releaseBuffer(previewData);
+        previewData.set(null, null, null, 0, 0, 0);
+        freeFrames.add(previewData);
+    }
+
+    /** Returns the number of frames that aren't in use. */
+    public int getFreeCount() {
+        return freeFrames.size();
+    }
+
+    /** Returns the number of CameraPreviewData objects that have been allocated. */
+    public int getCreatedCount() {
+        return createdCount;
+    }
+}
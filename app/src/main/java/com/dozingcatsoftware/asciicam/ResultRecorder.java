@@ -0,0 +1,283 @@
+package com.dozingcatsoftware.asciicam;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dozingcatsoftware.util.MetricsRegistry;
+
+/**
+ * Records a sequence of preview results to a file, to be played back or exported later with
+ * ResultRecordingReader. Results are copied into a small fixed pool of preallocated buffers and
+ * written on a background thread, so recording adds only an array copy to the preview thread. If
+ * the writer falls behind and no buffer is free, the frame is dropped rather than blocking the
+ * preview.
+ *
+ * The file starts with a 4 byte header ("ASR" and a version byte), followed by frames:
+ *   frame type (1 byte, FRAME_KEY or FRAME_DELTA), timestamp (long, millis since the first frame)
+ *   FRAME_KEY: a record as written by AsciiResultWriter
+ *   FRAME_DELTA: number of changed cells (int), payload length (int),
+ *       compressed payload length (int), compressed payload bytes
+ * A delta frame has the same dimensions, color type, and characters as the previous frame, and
+ * its payload contains only the cells that changed. For each changed cell it stores the number
+ * of unchanged cells skipped since the previous changed cell (7 bits per byte, high bit set if
+ * more bytes follow), the character index (1 or 2 bytes), and for color results 3 bytes of RGB.
+ */
+public class ResultRecorder {
+
+    static final byte[] MAGIC = {'A', 'S', 'R', 1};
+
+    static final int FRAME_KEY = 1;
+    static final int FRAME_DELTA = 2;
+
+    // A key frame is written at least this often, so a damaged file can be partially recovered.
+    static final int KEY_FRAME_INTERVAL = 150;
+    // One buffer holds the previous frame for delta encoding, the rest can be waiting to be written.
+    static final int NUM_FRAME_BUFFERS = 4;
+
+    static class Frame {
+        final AsciiConverter.Result result = new AsciiConverter.Result();
+        long timestamp;
+    }
+
+    static final Frame END_OF_RECORDING = new Frame();
+
+    // Frames that couldn't be recorded because the writer thread fell behind, and cells that
+    // weren't written in delta frames because they were unchanged.
+    static final AtomicLong droppedFramesCounter = MetricsRegistry.getInstance().counter("record.droppedFrames");
+    static final AtomicLong skippedCellsCounter = MetricsRegistry.getInstance().counter("record.skippedCells");
+
+    final File file;
+    final int frameInterval;
+
+    BlockingQueue<Frame> freeFrames = new ArrayBlockingQueue<Frame>(NUM_FRAME_BUFFERS);
+    BlockingQueue<Frame> pendingFrames = new ArrayBlockingQueue<Frame>(NUM_FRAME_BUFFERS + 1);
+    Thread writerThread;
+    boolean recording = false;
+    int framesReceived = 0;
+    volatile int framesDropped = 0;
+    volatile int framesWritten = 0;
+    volatile IOException writeError;
+
+    // Only accessed by the writer thread.
+    DataOutputStream output;
+    AsciiResultWriter keyFrameWriter;
+    Frame previousFrame;
+    long firstTimestamp;
+    int framesSinceKeyFrame;
+    int deltaChangedCells;
+    byte[] deltaBuffer = new byte[0];
+
+    /**
+     * Creates a recorder that writes to the given file. frameInterval controls how many results
+     * are passed to recordFrame for each one that's recorded; 1 records every frame.
+     */
+    public ResultRecorder(File file, int frameInterval) {
+        this.file = file;
+        this.frameInterval = Math.max(frameInterval, 1);
+        for (int i=0; i<NUM_FRAME_BUFFERS; i++) {
+            freeFrames.add(new Frame());
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getFramesWritten() {
+        return framesWritten;
+    }
+
+    public int getFramesDropped() {
+        return framesDropped;
+    }
+
+    public synchronized boolean isRecording() {
+        return recording;
+    }
+
+    /** Opens the output file and starts the writer thread. */
+    public synchronized void start() throws IOException {
+        if (recording) return;
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        output.write(MAGIC);
+        keyFrameWriter = new AsciiResultWriter(output,
+                AsciiResultWriter.FLAG_DEFLATE | AsciiResultWriter.FLAG_DELTA, false);
+        writerThread = new Thread() {
+            @Override public void run() {
+                writeFrames();
+            }
+        };
+        writerThread.start();
+        recording = true;
+    }
+
+    /**
+     * Queues a copy of the result to be written, if it falls on the frame interval and a buffer
+     * is available. Returns true if the frame will be recorded. This doesn't allocate memory
+     * unless the size of the results changes, and never blocks.
+     */
+    public synchronized boolean recordFrame(AsciiConverter.Result result, long timestamp) {
+        if (!recording || writeError != null) return false;
+        if ((framesReceived++) % frameInterval != 0) return false;
+        Frame frame = freeFrames.poll();
+        if (frame == null) {
+            framesDropped++;
+            droppedFramesCounter.incrementAndGet();
+            return false;
+        }
+        result.copyInto(frame.result);
+        frame.timestamp = timestamp;
+        pendingFrames.add(frame);
+        return true;
+    }
+
+    /**
+     * Stops recording, waits for queued frames to be written, and closes the file. Throws an
+     * exception if any frames couldn't be written.
+     */
+    public void stop() throws IOException {
+        synchronized (this) {
+            if (!recording) return;
+            recording = false;
+            pendingFrames.add(END_OF_RECORDING);
+        }
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            }
+            catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        keyFrameWriter.close();
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    void writeFrames() {
+        while (true) {
+            Frame frame;
+            try {
+                frame = pendingFrames.take();
+            }
+            catch (InterruptedException ex) {
+                continue;
+            }
+            if (frame == END_OF_RECORDING) {
+                return;
+            }
+            if (writeError == null) {
+                try {
+                    writeFrame(frame);
+                }
+                catch (IOException ex) {
+                    writeError = ex;
+                }
+            }
+            // Keep the frame just written for encoding the next one, and free the one before it.
+            if (previousFrame != null) {
+                freeFrames.add(previousFrame);
+            }
+            previousFrame = frame;
+        }
+    }
+
+    void writeFrame(Frame frame) throws IOException {
+        AsciiConverter.Result result = frame.result;
+        if (framesWritten == 0) {
+            firstTimestamp = frame.timestamp;
+        }
+        long relativeTimestamp = frame.timestamp - firstTimestamp;
+
+        int deltaLength = -1;
+        if (previousFrame != null && framesSinceKeyFrame < KEY_FRAME_INTERVAL &&
+                hasSameLayout(result, previousFrame.result)) {
+            deltaLength = fillDeltaPayload(result, previousFrame.result);
+        }
+        if (deltaLength >= 0) {
+            // AsciiResultWriter's deflater and buffer are reused so the delta frames don't allocate.
+            int compressedLength = keyFrameWriter.deflate(deltaBuffer, deltaLength);
+            output.writeByte(FRAME_DELTA);
+            output.writeLong(relativeTimestamp);
+            output.writeInt(deltaChangedCells);
+            output.writeInt(deltaLength);
+            output.writeInt(compressedLength);
+            output.write(keyFrameWriter.deflateBuffer, 0, compressedLength);
+            framesSinceKeyFrame++;
+            skippedCellsCounter.addAndGet(result.rows * result.columns - deltaChangedCells);
+        }
+        else {
+            output.writeByte(FRAME_KEY);
+            output.writeLong(relativeTimestamp);
+            keyFrameWriter.write(result);
+            framesSinceKeyFrame = 0;
+        }
+        framesWritten++;
+    }
+
+    static boolean hasSameLayout(AsciiConverter.Result r1, AsciiConverter.Result r2) {
+        return r1.rows == r2.rows && r1.columns == r2.columns && r1.colorType == r2.colorType &&
+                Arrays.equals(r1.pixelChars, r2.pixelChars);
+    }
+
+    /**
+     * Writes the cells of result that differ from previous into deltaBuffer, and returns the
+     * number of bytes written. Returns -1 if more than half the cells changed, in which case a
+     * key frame will be smaller.
+     */
+    int fillDeltaPayload(AsciiConverter.Result result, AsciiConverter.Result previous) {
+        int numCells = result.rows * result.columns;
+        boolean hasColor = !result.colorType.isMonochrome();
+        int bytesPerIndex = AsciiResultWriter.bytesPerIndex(result);
+        int maxChangedCells = numCells / 2;
+        // At most 5 bytes for the skip count, plus the index and color.
+        int maxSize = maxChangedCells * (5 + bytesPerIndex + (hasColor ? 3 : 0));
+        if (deltaBuffer.length < maxSize) {
+            deltaBuffer = new byte[maxSize];
+        }
+        byte[] buffer = deltaBuffer;
+        int offset = 0;
+        int changedCells = 0;
+        int lastChangedIndex = -1;
+        for (int i=0; i<numCells; i++) {
+            int asciiIndex = result.asciiIndexes[i];
+            boolean changed = (asciiIndex != previous.asciiIndexes[i]) ||
+                    (hasColor && result.asciiColors[i] != previous.asciiColors[i]);
+            if (!changed) continue;
+            if (++changedCells > maxChangedCells) {
+                return -1;
+            }
+            int skip = i - lastChangedIndex - 1;
+            while (skip >= 0x80) {
+                buffer[offset++] = (byte) (0x80 | (skip & 0x7f));
+                skip >>>= 7;
+            }
+            buffer[offset++] = (byte) skip;
+            if (bytesPerIndex == 2) {
+                buffer[offset++] = (byte) (asciiIndex >> 8);
+            }
+            buffer[offset++] = (byte) asciiIndex;
+            if (hasColor) {
+                int color = result.asciiColors[i];
+                buffer[offset++] = (byte) (color >> 16);
+                buffer[offset++] = (byte) (color >> 8);
+                buffer[offset++] = (byte) color;
+            }
+            lastChangedIndex = i;
+        }
+        deltaChangedCells = changedCells;
+        return offset;
+    }
+}
@@ -0,0 +1,111 @@
+package com.dozingcatsoftware.asciicam;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the frames of a recording written by ResultRecorder. Frames are returned in order, with
+ * delta frames applied to the previous frame, so each call to nextFrame gives a complete result.
+ */
+public class ResultRecordingReader {
+
+    DataInputStream input;
+    AsciiResultReader keyFrameReader;
+    AsciiConverter.Result result = new AsciiConverter.Result();
+    boolean hasFrame = false;
+    long frameTimestamp;
+    byte[] compressedBuffer = new byte[0];
+
+    public ResultRecordingReader(InputStream stream) throws IOException {
+        this.input = new DataInputStream(stream);
+        AsciiResultReader.readMagic(input, ResultRecorder.MAGIC);
+        this.keyFrameReader = new AsciiResultReader(input, false);
+    }
+
+    /**
+     * Returns the next frame, or null if the end of the recording was reached. The returned
+     * object is updated in place by the next call, so use copy() to keep it.
+     */
+    public AsciiConverter.Result nextFrame() throws IOException {
+        int frameType = input.read();
+        if (frameType < 0) return null;
+        try {
+            frameTimestamp = input.readLong();
+            if (frameType == ResultRecorder.FRAME_KEY) {
+                if (keyFrameReader.read(result) == null) {
+                    throw new EOFException();
+                }
+            }
+            else if (frameType == ResultRecorder.FRAME_DELTA) {
+                if (!hasFrame) {
+                    throw new IOException("Delta frame without a preceding key frame");
+                }
+                int changedCells = input.readInt();
+                int payloadLength = input.readInt();
+                int compressedLength = input.readInt();
+                if (compressedBuffer.length < compressedLength) {
+                    compressedBuffer = new byte[compressedLength];
+                }
+                input.readFully(compressedBuffer, 0, compressedLength);
+                keyFrameReader.inflate(compressedBuffer, compressedLength, payloadLength);
+                applyDeltaPayload(keyFrameReader.inflateBuffer, payloadLength, changedCells, result);
+            }
+            else {
+                throw new IOException("Unknown frame type: " + frameType);
+            }
+        }
+        catch (EOFException ex) {
+            throw new IOException("Truncated recording", ex);
+        }
+        hasFrame = true;
+        return result;
+    }
+
+    /** Returns the time of the most recent frame, in milliseconds since the first frame. */
+    public long getFrameTimestamp() {
+        return frameTimestamp;
+    }
+
+    static void applyDeltaPayload(byte[] buffer, int length, int changedCells,
+            AsciiConverter.Result result) throws IOException {
+        int numCells = result.rows * result.columns;
+        boolean hasColor = !result.colorType.isMonochrome();
+        int bytesPerIndex = AsciiResultWriter.bytesPerIndex(result);
+        int cellBytes = bytesPerIndex + (hasColor ? 3 : 0);
+        int offset = 0;
+        int cellIndex = -1;
+        for (int n=0; n<changedCells; n++) {
+            int skip = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (offset >= length || shift > 28) {
+                    throw new IOException("Corrupt recording frame");
+                }
+                b = buffer[offset++] & 0xff;
+                skip |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            cellIndex += skip + 1;
+            if (cellIndex >= numCells || offset + cellBytes > length) {
+                throw new IOException("Corrupt recording frame");
+            }
+            int asciiIndex = buffer[offset++] & 0xff;
+            if (bytesPerIndex == 2) {
+                asciiIndex = (asciiIndex << 8) | (buffer[offset++] & 0xff);
+            }
+            result.asciiIndexes[cellIndex] = asciiIndex;
+            if (hasColor) {
+                result.asciiColors[cellIndex] = 0xff000000 | ((buffer[offset] & 0xff) << 16) |
+                        ((buffer[offset+1] & 0xff) << 8) | (buffer[offset+2] & 0xff);
+                offset += 3;
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        keyFrameReader.close();
+    }
+}
@@ -0,0 +1,172 @@
+package com.dozingcatsoftware.asciicam;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Finds the fastest number of threads for converting and rendering camera frames. Using every
+ * core isn't always fastest, since on many devices some of the cores are much slower than others.
+ *
+ * When frames of a preview size without a saved result start arriving, the calibrator tries
+ * each thread count from 1 to the number of processors for several frames, measuring the time
+ * taken by AsciiConverter and AsciiRenderer separately. It then chooses the fastest count for
+ * each and saves them, keyed by the device model and preview size, so the next time that size
+ * is used the saved counts are used immediately. If the preview size changes before calibration
+ * finishes, the measurements so far are kept and calibration continues from the same thread count
+ * when that size is used again. All methods are called on the processing thread.
+ */
+public class ThreadCountCalibrator {
+
+    static final String TAG = "ThreadCountCalibrator";
+    static final String PREFS_NAME = "thread_calibration";
+
+    static int FRAMES_PER_THREAD_COUNT = 8;
+    // Frames measured after the thread count changes are slower while the threads start, so
+    // the first ones aren't counted.
+    static int WARMUP_FRAMES = 2;
+
+    final SharedPreferences prefs;
+    final int maxThreads;
+
+    int previewWidth, previewHeight;
+    boolean calibrationAllowed = false;
+    int convertThreads, renderThreads;
+
+    // The thread count being tried and the measurements for each count, for one preview size.
+    static class Trial {
+        int threads = 1;
+        int frames = 0;
+        final long[] convertNanos;
+        final long[] renderNanos;
+        final int[] sampleCounts;
+
+        Trial(int maxThreads) {
+            convertNanos = new long[maxThreads + 1];
+            renderNanos = new long[maxThreads + 1];
+            sampleCounts = new int[maxThreads + 1];
+        }
+    }
+
+    // Unfinished calibrations keyed by the same strings as the saved counts. trial is the one for
+    // the current preview size, or null if not calibrating.
+    final Map<String, Trial> trials = new HashMap<String, Trial>();
+    Trial trial;
+
+    public ThreadCountCalibrator(Context context, int maxThreads) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.maxThreads = Math.max(1, maxThreads);
+        this.convertThreads = this.renderThreads = this.maxThreads;
+    }
+
+    /**
+     * Called before converting a frame with the given preview size. Loads the saved thread
+     * counts for the size, or starts or continues calibrating if there aren't any. If
+     * allowCalibration is false, frames aren't measured and nothing is saved, and the maximum
+     * number of threads is used when there are no saved counts.
+     */
+    public void startFrame(int width, int height, boolean allowCalibration) {
+        if (width == previewWidth && height == previewHeight &&
+                allowCalibration == calibrationAllowed) return;
+        if (trial != null) {
+            // The first frames after calibration continues are slower, as when the count changes.
+            trial.frames = 0;
+            trial = null;
+        }
+        previewWidth = width;
+        previewHeight = height;
+        calibrationAllowed = allowCalibration;
+        String key = prefsKey();
+        String saved = prefs.getString(key, null);
+        if (saved != null && parseSavedCounts(saved)) return;
+        if (!allowCalibration) {
+            convertThreads = renderThreads = maxThreads;
+            return;
+        }
+        trial = trials.get(key);
+        if (trial == null) {
+            trial = new Trial(maxThreads);
+            trials.put(key, trial);
+        }
+    }
+
+    /** Records the time taken to convert and render the frame started by startFrame. */
+    public void frameFinished(long frameConvertNanos, long frameRenderNanos) {
+        if (trial == null) return;
+        trial.frames++;
+        if (trial.frames > WARMUP_FRAMES) {
+            trial.convertNanos[trial.threads] += frameConvertNanos;
+            trial.renderNanos[trial.threads] += frameRenderNanos;
+            trial.sampleCounts[trial.threads]++;
+        }
+        if (trial.frames >= FRAMES_PER_THREAD_COUNT) {
+            trial.threads++;
+            trial.frames = 0;
+            if (trial.threads > maxThreads) {
+                finishCalibration();
+            }
+        }
+    }
+
+    /** Returns true while thread counts are being tried, when frame times aren't representative. */
+    public boolean isCalibrating() {
+        return trial != null;
+    }
+
+    /** Returns the number of threads AsciiConverter should use for the next frame. */
+    public int getConvertThreads() {
+        return (trial != null) ? trial.threads : convertThreads;
+    }
+
+    /** Returns the number of threads AsciiRenderer should use for the next frame. */
+    public int getRenderThreads() {
+        return (trial != null) ? trial.threads : renderThreads;
+    }
+
+    void finishCalibration() {
+        convertThreads = fastestThreadCount(trial.convertNanos, trial.sampleCounts);
+        renderThreads = fastestThreadCount(trial.renderNanos, trial.sampleCounts);
+        trial = null;
+        trials.remove(prefsKey());
+        Log.i(TAG, "Preview size " + previewWidth + "x" + previewHeight + ": " +
+                convertThreads + " convert threads, " + renderThreads + " render threads");
+        prefs.edit().putString(prefsKey(), convertThreads + "," + renderThreads).apply();
+    }
+
+    int fastestThreadCount(long[] totalNanos, int[] sampleCounts) {
+        int best = maxThreads;
+        double bestAverage = Double.MAX_VALUE;
+        for (int i=1; i<=maxThreads; i++) {
+            if (sampleCounts[i] == 0) continue;
+            double average = ((double)totalNanos[i]) / sampleCounts[i];
+            if (average < bestAverage) {
+                bestAverage = average;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    boolean parseSavedCounts(String saved) {
+        try {
+            int comma = saved.indexOf(',');
+            int convert = Integer.parseInt(saved.substring(0, comma));
+            int render = Integer.parseInt(saved.substring(comma + 1));
+            if (convert < 1 || render < 1 || convert > maxThreads || render > maxThreads) return false;
+            convertThreads = convert;
+            renderThreads = render;
+            return true;
+        }
+        catch (RuntimeException ex) {
+            return false;
+        }
+    }
+
+    String prefsKey() {
+        return Build.MODEL + ":" + previewWidth + "x" + previewHeight;
+    }
+}
@@ -3,26 +3,35 @@
 package com.dozingcatsoftware.asciicam;
 
 import java.io.File;
+import java.io.IOException;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.content.FileProvider;
 import android.util.DisplayMetrics;
+import android.util.Log;
 import android.view.View;
 import android.view.Window;
 import android.widget.ImageView;
+import android.widget.Toast;
 
 import com.dozingcatsoftware.util.AndroidUtils;
+import com.dozingcatsoftware.util.ScaledBitmapCache;
 
 /** Activity for displaying a single image. The user can delete the image, or share it in
  * its PNG or HTML representations.
  */
 public class ViewImageActivity extends Activity {
 
+    private static final String TAG = "ViewImageActivity";
+
     enum ShareFileType {
         IMAGE,
         HTML,
@@ -37,6 +46,11 @@ public class ViewImageActivity extends Activity {
     Uri imageUri;
     ShareFileType shareFileType;
 
+    Handler handler = new Handler();
+    // Used to cancel decoding the full image if the activity is closed first.
+    BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+    volatile boolean destroyed = false;
+
     public static Intent startActivityWithImageURI(Activity parent, Uri imageURI, String type) {
         Intent intent = new Intent(parent, ViewImageActivity.class);
         intent.setDataAndType(imageURI, type);
@@ -53,14 +67,50 @@ public class ViewImageActivity extends Activity {
         imageView = (ImageView)findViewById(R.id.imageView);
         imageUri = getIntent().getData();
 
+        // Show the library's thumbnail if it's in memory, scaled up until the full image is loaded.
+        String thumbnailDirectory = (new AsciiImageWriter()).getThumbnailDirectory();
+        Bitmap thumbnail = LibraryActivity.getSharedBitmapCache(this, thumbnailDirectory).getInMemoryScaledBitmap(
+                imageUri, LibraryActivity.CELL_WIDTH, LibraryActivity.CELL_HEIGHT);
+        if (thumbnail != null) {
+            imageView.setScaleType(ImageView.ScaleType.FIT_CENTER);
+            imageView.setImageBitmap(thumbnail);
+        }
+
         // assume full screen, there's no good way to get notified once layout happens and views have nonzero width/height
         DisplayMetrics dm = new DisplayMetrics();
         getWindowManager().getDefaultDisplay().getMetrics(dm);
-        try {
-            imageView.setImageBitmap(AndroidUtils.scaledBitmapFromURIWithMinimumSize(this, imageUri,
-                    dm.widthPixels, dm.heightPixels));
-        }
-        catch(Exception ex) {}
+        loadImageInBackground(dm.widthPixels, dm.heightPixels);
+    }
+
+    @Override public void onDestroy() {
+        destroyed = true;
+        decodeOptions.requestCancelDecode();
+        super.onDestroy();
+    }
+
+    // Decodes the full image on a separate thread, and displays it in place of the thumbnail.
+    void loadImageInBackground(final int width, final int height) {
+        (new Thread() {
+            @Override public void run() {
+                Bitmap bitmap = null;
+                try {
+                    bitmap = AndroidUtils.cancelableScaledBitmapFromURI(ViewImageActivity.this, imageUri,
+                            width, height, decodeOptions);
+                }
+                catch (Exception ex) {
+                    Log.w(TAG, "Error loading image", ex);
+                }
+                final Bitmap fullBitmap = bitmap;
+                if (fullBitmap == null || destroyed) return;
+                handler.post(new Runnable() {
+                    @Override public void run() {
+                        if (destroyed) return;
+                        imageView.setScaleType(ImageView.ScaleType.CENTER_INSIDE);
+                        imageView.setImageBitmap(fullBitmap);
+                    }
+                });
+            }
+        }).start();
     }
 
     // Methods called via onClick bindings in imageview.xml
@@ -68,13 +118,27 @@ public class ViewImageActivity extends Activity {
         this.finish();
     }
 
+    // Deletes the picture on a separate thread, since updating the library index may have to wait
+    // for it to be read, and then closes the activity.
     public void deleteImage(View view) {
-        String path = imageUri.getPath();
-        (new File(path)).delete();
-        Intent intent = new Intent();
-        intent.putExtra(DELETED_IMAGE_URI_KEY, imageUri.toString());
-        this.setResult(DELETE_RESULT, intent);
-        this.finish();
+        final AsciiImageWriter imageWriter = new AsciiImageWriter();
+        final ScaledBitmapCache bitmapCache =
+                LibraryActivity.getSharedBitmapCache(this, imageWriter.getThumbnailDirectory());
+        (new Thread() {
+            @Override public void run() {
+                imageWriter.deleteImage(imageUri.getPath());
+                // Removes the thumbnails from memory, and from the pack if the library has it open.
+                bitmapCache.removeUri(imageUri);
+                handler.post(new Runnable() {
+                    @Override public void run() {
+                        Intent intent = new Intent();
+                        intent.putExtra(DELETED_IMAGE_URI_KEY, imageUri.toString());
+                        setResult(DELETE_RESULT, intent);
+                        finish();
+                    }
+                });
+            }
+        }).start();
     }
 
     public void sharePicture(View view) {
@@ -124,17 +188,50 @@ public class ViewImageActivity extends Activity {
     }
 
     public void shareHtml() {
-        // hack: replace .png with .html in URI sent to this activity.
-        String htmlPath = imageUri.getPath().substring(0, imageUri.getPath().length()-4) + ".html";
-        Uri htmlUri = Uri.fromFile(new File(htmlPath));
-        shareFile(htmlUri, "text/html", getString(R.string.shareHtmlTitle));
+        shareOutputFileInBackground(ShareFileType.HTML);
     }
 
     public void shareText() {
-        // hack: replace .png with .txt in URI sent to this activity.
-        String textPath = imageUri.getPath().substring(0, imageUri.getPath().length()-4) + ".txt";
-        Uri textUri = Uri.fromFile(new File(textPath));
-        shareFile(textUri, "text/plain", getString(R.string.shareTextTitle));
+        shareOutputFileInBackground(ShareFileType.TEXT);
+    }
+
+    // Gets the HTML or text file for the image on a separate thread, since it's created from the
+    // saved ASCII result the first time it's shared, and then shares it on the main thread.
+    // Shows an error if the file can't be created.
+    void shareOutputFileInBackground(final ShareFileType type) {
+        final String imagePath = imageUri.getPath();
+        (new Thread() {
+            @Override public void run() {
+                AsciiImageWriter imageWriter = new AsciiImageWriter();
+                File file = null;
+                try {
+                    file = (type == ShareFileType.HTML) ?
+                            imageWriter.htmlFileForImage(imagePath) :
+                            imageWriter.textFileForImage(imagePath);
+                }
+                catch (IOException ex) {
+                    Log.e(TAG, "Error creating file to share", ex);
+                }
+                final File outputFile = file;
+                handler.post(new Runnable() {
+                    @Override public void run() {
+                        if (destroyed) return;
+                        if (outputFile == null) {
+                            Toast.makeText(ViewImageActivity.this, getString(R.string.errorSharingPicture),
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                        else if (type == ShareFileType.HTML) {
+                            // HTML may have been saved compressed, see AsciiImageWriter.setGzipHtml.
+                            String mimeType = outputFile.getName().endsWith(".gz") ? "application/gzip" : "text/html";
+                            shareFile(Uri.fromFile(outputFile), mimeType, getString(R.string.shareHtmlTitle));
+                        }
+                        else {
+                            shareFile(Uri.fromFile(outputFile), "text/plain", getString(R.string.shareTextTitle));
+                        }
+                    }
+                });
+            }
+        }).start();
     }
 
     private void shareFile(Uri uri, String mimeType, String shareLabel) {
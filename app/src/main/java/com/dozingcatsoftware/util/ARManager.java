@@ -24,7 +24,14 @@ public class ARManager implements SurfaceHolder.Callback {
     int cameraId = 0;
 
     int preferredPreviewWidth = 0, preferredPreviewHeight = 0;
+    int gridColumns = 0, gridRows = 0, samplesPerCell = 0;
     int numPreviewCallbackBuffers = 0;
+    int previewBufferSize = 0;
+
+    // Cached when the camera is opened or its preview size changes, so that preview callbacks
+    // don't need to call Camera.getParameters, which is slow.
+    int previewWidth = 0, previewHeight = 0;
+    CameraUtils.CameraInfo cameraInfo;
 
     public ARManager(Activity _activity, SurfaceView _cameraView, Camera.PreviewCallback _previewCallback) {
         this.activity = _activity;
@@ -48,6 +55,42 @@ public class ARManager implements SurfaceHolder.Callback {
         this.preferredPreviewHeight = height;
     }
 
+    /**
+     * Sets the preview size to the smallest size that provides samplesPerCell camera pixels for each cell of a grid with
+     * the given number of columns and rows, see CameraUtils.bestCameraSizeForGrid. If the camera is running and the
+     * size changes, the preview is restarted with the new size. Until this is called, the size given to
+     * setPreferredPreviewSize is used. Returns true if the preview size changed.
+     */
+    public boolean setPreviewSizeForGrid(int columns, int rows, int samplesPerCell) {
+        if (columns==gridColumns && rows==gridRows && samplesPerCell==this.samplesPerCell) return false;
+        this.gridColumns = columns;
+        this.gridRows = rows;
+        this.samplesPerCell = samplesPerCell;
+        if (camera==null) return false;
+        try {
+            Camera.Parameters params = camera.getParameters();
+            Camera.Size currentSize = params.getPreviewSize();
+            Camera.Size size = CameraUtils.bestCameraSizeForGrid(params, columns, rows, samplesPerCell,
+                    ((float)currentSize.width) / currentSize.height);
+            if (size==null || (size.width==currentSize.width && size.height==currentSize.height)) return false;
+            // Buffers for the previous size are dropped by addPreviewCallbackBuffer when they're returned.
+            camera.stopPreview();
+            params.setPreviewSize(size.width, size.height);
+            camera.setParameters(params);
+            previewWidth = size.width;
+            previewHeight = size.height;
+            if (numPreviewCallbackBuffers > 0) {
+                createPreviewCallbackBuffers();
+                CameraUtils.setPreviewCallbackWithBuffer(camera, this.previewCallback);
+            }
+            camera.startPreview();
+            return true;
+        }
+        catch(Exception ex) {
+            return false;
+        }
+    }
+
     public void setNumberOfPreviewCallbackBuffers(int n) {
         this.numPreviewCallbackBuffers = n;
     }
@@ -60,6 +103,7 @@ public class ARManager implements SurfaceHolder.Callback {
         if (camera==null) {
             try {
                 camera = CameraUtils.openCamera(cameraId);
+                cameraInfo = CameraUtils.getCameraInfo(cameraId);
                 if (cameraOpenedCallback!=null) {
                     cameraOpenedCallback.run();
                 }
@@ -67,9 +111,24 @@ public class ARManager implements SurfaceHolder.Callback {
                 if (preferredPreviewWidth>0 && preferredPreviewHeight>0) {
                     CameraUtils.setNearestCameraPreviewSize(camera, preferredPreviewWidth, preferredPreviewHeight);
                 }
+                if (gridColumns>0 && gridRows>0) {
+                    // Keep the aspect ratio of the size nearest the preferred size.
+                    Camera.Parameters params = camera.getParameters();
+                    Camera.Size currentSize = params.getPreviewSize();
+                    Camera.Size size = CameraUtils.bestCameraSizeForGrid(params, gridColumns, gridRows, samplesPerCell,
+                            ((float)currentSize.width) / currentSize.height);
+                    if (size!=null) {
+                        params.setPreviewSize(size.width, size.height);
+                        camera.setParameters(params);
+                    }
+                }
+
+                Camera.Size previewSize = camera.getParameters().getPreviewSize();
+                previewWidth = previewSize.width;
+                previewHeight = previewSize.height;
 
                 if (numPreviewCallbackBuffers > 0) {
-                    CameraUtils.createPreviewCallbackBuffers(camera, this.numPreviewCallbackBuffers);
+                    createPreviewCallbackBuffers();
                     CameraUtils.setPreviewCallbackWithBuffer(camera, this.previewCallback);
                 }
                 else {
@@ -85,6 +144,19 @@ public class ARManager implements SurfaceHolder.Callback {
     }
 
 
+    void createPreviewCallbackBuffers() {
+        previewBufferSize = previewWidth * previewHeight * 3 / 2;
+        CameraUtils.createPreviewCallbackBuffers(camera, this.numPreviewCallbackBuffers);
+    }
+
+    /** Returns a buffer received in onPreviewFrame to the camera. Buffers for a previous camera or preview size
+     * are dropped. Returns true if the buffer was added.
+     */
+    public boolean addPreviewCallbackBuffer(Camera bufferCamera, byte[] buffer) {
+        if (camera==null || bufferCamera!=camera || buffer.length!=previewBufferSize) return false;
+        return CameraUtils.addPreviewCallbackBuffer(camera, buffer);
+    }
+
     public void startCameraIfVisible() {
         if (cameraViewReady) {
             startCamera();
@@ -142,6 +214,21 @@ public class ARManager implements SurfaceHolder.Callback {
     public Camera getCamera() {
         return camera;
     }
+    /** Returns the preview width of the open camera, without calling Camera.getParameters. */
+    public int getPreviewWidth() {
+        return previewWidth;
+    }
+    public int getPreviewHeight() {
+        return previewHeight;
+    }
+    /** Returns the size of the preview callback buffers for the current preview size. */
+    public int getPreviewBufferSize() {
+        return previewBufferSize;
+    }
+    /** Returns the CameraInfo for the open camera, read when it was opened. */
+    public CameraUtils.CameraInfo getCameraInfo() {
+        return cameraInfo;
+    }
     public int getCameraId() {
         return cameraId;
     }
@@ -3,14 +3,19 @@
 package com.dozingcatsoftware.util;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
+import android.os.Build;
 import android.view.View;
 
 public class AndroidUtils {
@@ -77,22 +82,116 @@ public class AndroidUtils {
     public static BitmapFactory.Options computeBitmapSizeFromURI(Context context, Uri imageURI) throws FileNotFoundException {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(context.getContentResolver().openInputStream(imageURI), null, options);
+        decodeStreamFromURI(context, imageURI, options);
         return options;
     }
+
+    // Decodes the image at the given URI, closing the stream even if decoding fails.
+    static Bitmap decodeStreamFromURI(Context context, Uri imageURI, BitmapFactory.Options options)
+            throws FileNotFoundException {
+        InputStream input = context.getContentResolver().openInputStream(imageURI);
+        if (input == null) throw new FileNotFoundException(String.valueOf(imageURI));
+        try {
+            return BitmapFactory.decodeStream(input, null, options);
+        }
+        finally {
+            try {
+                input.close();
+            }
+            catch (IOException ignored) {}
+        }
+    }
     
     /** Returns a Bitmap from the given URI that may be scaled by an integer factor to reduce its size,
      * while staying as least as large as the width and height parameters.
      */
     public static Bitmap scaledBitmapFromURIWithMinimumSize(Context context, Uri imageURI, int width, int height) throws FileNotFoundException {
+        return scaledBitmapFromURIWithMinimumSize(context, imageURI, width, height, null);
+    }
+
+    /** Like scaledBitmapFromURIWithMinimumSize above, but if possible decodes into a bitmap taken
+     * from bitmapPool instead of allocating a new one. The returned bitmap is mutable when the
+     * API level supports reuse, so that it can later be added to the pool.
+     */
+    public static Bitmap scaledBitmapFromURIWithMinimumSize(Context context, Uri imageURI, int width, int height,
+            BitmapPool bitmapPool) throws FileNotFoundException {
         BitmapFactory.Options options = computeBitmapSizeFromURI(context, imageURI);
+        if (prepareScaledDecode(options, width, height, bitmapPool)) {
+            try {
+                return decodeStreamFromURI(context, imageURI, options);
+            }
+            catch (IllegalArgumentException ex) {
+                // The image couldn't be decoded into the pooled bitmap, decode it normally.
+                clearReusableBitmap(options);
+            }
+        }
+        return decodeStreamFromURI(context, imageURI, options);
+    }
+
+    /** Like scaledBitmapFromURIWithMinimumSize, but decodes an encoded image in a byte array. */
+    public static Bitmap scaledBitmapFromBytesWithMinimumSize(byte[] data, int offset, int length, int width, int height,
+            BitmapPool bitmapPool) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        if (prepareScaledDecode(options, width, height, bitmapPool)) {
+            try {
+                return BitmapFactory.decodeByteArray(data, offset, length, options);
+            }
+            catch (IllegalArgumentException ex) {
+                clearReusableBitmap(options);
+            }
+        }
+        return BitmapFactory.decodeByteArray(data, offset, length, options);
+    }
+
+    /** Like scaledBitmapFromURIWithMinimumSize, but decodes using the given Options object, so
+     * that another thread can stop the decode by calling options.requestCancelDecode(). Returns
+     * null if the decode is cancelled.
+     */
+    public static Bitmap cancelableScaledBitmapFromURI(Context context, Uri imageURI, int width, int height,
+            BitmapFactory.Options options) throws FileNotFoundException {
+        options.inJustDecodeBounds = true;
+        decodeStreamFromURI(context, imageURI, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        prepareScaledDecode(options, width, height, null);
+        return decodeStreamFromURI(context, imageURI, options);
+    }
+
+    // Given options containing the size of an image, sets the sample size so the decoded image is
+    // at least width x height, and sets inBitmap to a bitmap from bitmapPool if possible. Returns
+    // true if inBitmap was set.
+    static boolean prepareScaledDecode(BitmapFactory.Options options, int width, int height, BitmapPool bitmapPool) {
         options.inJustDecodeBounds = false;
-        
+
         float wratio = 1.0f*options.outWidth / width;
-        float hratio = 1.0f*options.outHeight / height;        
+        float hratio = 1.0f*options.outHeight / height;
         options.inSampleSize = (int)Math.min(wratio, hratio);
-        
-        return BitmapFactory.decodeStream(context.getContentResolver().openInputStream(imageURI), null, options);        
+
+        if (bitmapPool != null && BitmapPool.isReuseSupported()) {
+            return setReusableBitmap(options, bitmapPool);
+        }
+        return false;
+    }
+
+    // inMutable and inBitmap were added in API 11; callers must check BitmapPool.isReuseSupported.
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static boolean setReusableBitmap(BitmapFactory.Options options, BitmapPool bitmapPool) {
+        options.inMutable = true;
+        int sampleSize = Math.max(options.inSampleSize, 1);
+        // Before API 19, reused bitmaps can only be decoded without subsampling.
+        if (sampleSize == 1 || BitmapPool.isVariableSizeReuseSupported()) {
+            int outWidth = (options.outWidth + sampleSize - 1) / sampleSize;
+            int outHeight = (options.outHeight + sampleSize - 1) / sampleSize;
+            options.inBitmap = bitmapPool.get(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        }
+        return options.inBitmap != null;
+    }
+
+    // Only called after setReusableBitmap returned true, so the API level is at least 11.
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static void clearReusableBitmap(BitmapFactory.Options options) {
+        options.inBitmap = null;
     }
     
     /** Given a width and height, fills output array with scaled width and height values 
@@ -145,6 +244,15 @@ public class AndroidUtils {
     	}
     }
     
+    /** Returns the approximate per-application memory limit in megabytes, as reported by
+     * ActivityManager.getMemoryClass(), or 0 if it's not available.
+     */
+    public static int getMemoryClass(Context context) {
+        if (context == null) return 0;
+        ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return (manager != null) ? manager.getMemoryClass() : 0;
+    }
+
     /** Returns the estimated memory usage in bytes for a bitmap. Calls bitmap.getByteCount() if that method
      * is available (in API level 12 or higher), otherwise returns 4 times the number of pixels in the bitmap.
      */
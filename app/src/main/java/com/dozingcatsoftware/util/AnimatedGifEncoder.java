@@ -0,0 +1,211 @@
+package com.dozingcatsoftware.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes animated GIF images with a single global color table. Compressing a frame's pixels is
+ * done separately from writing it (see compressImageData), so that frames can be compressed in
+ * parallel on multiple threads and then written in order.
+ */
+public class AnimatedGifEncoder {
+
+    static final int MAX_CODE_SIZE = 12;
+    static final int MAX_CODES = 1 << MAX_CODE_SIZE;
+    // Prime larger than MAX_CODES, for the LZW string table.
+    static final int HASH_TABLE_SIZE = 5003;
+    static final int MAX_SUB_BLOCK_SIZE = 255;
+
+    OutputStream output;
+    int width;
+    int height;
+    int colorTableBits;
+
+    /**
+     * Writes the GIF header, color table, and looping extension. The palette contains RGB colors
+     * in the low 24 bits of each int; only the first numColors entries are used. loopCount is
+     * the number of times to repeat the animation, or 0 to repeat forever.
+     */
+    public AnimatedGifEncoder(OutputStream output, int width, int height,
+            int[] palette, int numColors, int loopCount) throws IOException {
+        this.output = output;
+        this.width = width;
+        this.height = height;
+        this.colorTableBits = colorTableBitsForColorCount(numColors);
+
+        output.write(new byte[] {'G', 'I', 'F', '8', '9', 'a'});
+        writeShort(width);
+        writeShort(height);
+        // Global color table present, 8 bits per primary color, table size.
+        output.write(0x80 | (7 << 4) | (colorTableBits - 1));
+        // Background color index and pixel aspect ratio.
+        output.write(0);
+        output.write(0);
+        byte[] colorTable = new byte[3 * (1 << colorTableBits)];
+        for (int i=0; i<numColors; i++) {
+            colorTable[3*i] = (byte) (palette[i] >> 16);
+            colorTable[3*i+1] = (byte) (palette[i] >> 8);
+            colorTable[3*i+2] = (byte) palette[i];
+        }
+        output.write(colorTable);
+
+        // NETSCAPE2.0 application extension to loop the animation.
+        output.write(new byte[] {0x21, (byte) 0xff, 11});
+        output.write(new byte[] {'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0'});
+        output.write(new byte[] {3, 1});
+        writeShort(loopCount);
+        output.write(0);
+    }
+
+    /** Returns the number of bits per pixel needed for a color table with the given number of colors. */
+    public static int colorTableBitsForColorCount(int numColors) {
+        if (numColors > 256) {
+            throw new IllegalArgumentException("Too many colors for a GIF: " + numColors);
+        }
+        int bits = 1;
+        while ((1 << bits) < numColors) {
+            bits++;
+        }
+        return bits;
+    }
+
+    void writeShort(int value) throws IOException {
+        output.write(value & 0xff);
+        output.write((value >> 8) & 0xff);
+    }
+
+    /**
+     * Writes a full size frame whose pixels were compressed by compressImageData. delayMillis is
+     * rounded to the GIF resolution of 10 milliseconds.
+     */
+    public void writeFrame(byte[] compressedImageData, int delayMillis) throws IOException {
+        // Graphic control extension: leave the frame in place, no transparency.
+        output.write(new byte[] {0x21, (byte) 0xf9, 4, 1 << 2});
+        writeShort(Math.max(0, Math.min((delayMillis + 5) / 10, 0xffff)));
+        output.write(0);
+        output.write(0);
+        // Image descriptor at (0, 0) covering the full image, using the global color table.
+        output.write(0x2c);
+        writeShort(0);
+        writeShort(0);
+        writeShort(width);
+        writeShort(height);
+        output.write(0);
+        output.write(compressedImageData);
+    }
+
+    /** Writes the GIF trailer. Does not close the output stream. */
+    public void finish() throws IOException {
+        output.write(0x3b);
+        output.flush();
+    }
+
+    /**
+     * LZW compresses a frame of palette indexes for writeFrame. colorTableBits must match the
+     * value used by the encoder (see colorTableBitsForColorCount). This method is threadsafe.
+     */
+    public static byte[] compressImageData(byte[] pixels, int numPixels, int colorTableBits) {
+        // The minimum code size must be at least 2, even for 2 color images.
+        int minCodeSize = Math.max(colorTableBits, 2);
+        SubBlockWriter writer = new SubBlockWriter(numPixels / 4 + 64);
+        writer.out.write(minCodeSize);
+
+        int clearCode = 1 << minCodeSize;
+        int endCode = clearCode + 1;
+        int codeSize = minCodeSize + 1;
+        int nextCode = clearCode + 2;
+        // Keys are (prefix code << 8 | next pixel) + 1, so that 0 marks an empty slot.
+        int[] hashKeys = new int[HASH_TABLE_SIZE];
+        int[] hashCodes = new int[HASH_TABLE_SIZE];
+
+        writer.writeCode(clearCode, codeSize);
+        if (numPixels > 0) {
+            int prefix = pixels[0] & 0xff;
+            for (int i=1; i<numPixels; i++) {
+                int pixel = pixels[i] & 0xff;
+                int key = ((prefix << 8) | pixel) + 1;
+                int slot = key % HASH_TABLE_SIZE;
+                while (hashKeys[slot] != 0 && hashKeys[slot] != key) {
+                    if (++slot == HASH_TABLE_SIZE) slot = 0;
+                }
+                if (hashKeys[slot] == key) {
+                    prefix = hashCodes[slot];
+                    continue;
+                }
+                writer.writeCode(prefix, codeSize);
+                if (nextCode < MAX_CODES) {
+                    // The decoder adds its table entries one code behind the encoder, so the code
+                    // size increases when the code about to be added needs another bit.
+                    if (nextCode == (1 << codeSize) && codeSize < MAX_CODE_SIZE) {
+                        codeSize++;
+                    }
+                    hashKeys[slot] = key;
+                    hashCodes[slot] = nextCode++;
+                }
+                else {
+                    writer.writeCode(clearCode, codeSize);
+                    Arrays.fill(hashKeys, 0);
+                    codeSize = minCodeSize + 1;
+                    nextCode = clearCode + 2;
+                }
+                prefix = pixel;
+            }
+            writer.writeCode(prefix, codeSize);
+        }
+        writer.writeCode(endCode, codeSize);
+        writer.finish();
+        return writer.out.toByteArray();
+    }
+
+    // Packs variable length codes into bytes, least significant bits first, and writes them in
+    // sub-blocks of up to 255 bytes each preceded by its length.
+    static class SubBlockWriter {
+        final ByteArrayOutputStream out;
+        final byte[] block = new byte[MAX_SUB_BLOCK_SIZE];
+        int blockLength = 0;
+        int bitBuffer = 0;
+        int numBits = 0;
+
+        SubBlockWriter(int initialSize) {
+            out = new ByteArrayOutputStream(initialSize);
+        }
+
+        void writeCode(int code, int codeSize) {
+            bitBuffer |= code << numBits;
+            numBits += codeSize;
+            while (numBits >= 8) {
+                writeByte(bitBuffer & 0xff);
+                bitBuffer >>>= 8;
+                numBits -= 8;
+            }
+        }
+
+        void writeByte(int value) {
+            block[blockLength++] = (byte) value;
+            if (blockLength == MAX_SUB_BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        void flushBlock() {
+            if (blockLength > 0) {
+                out.write(blockLength);
+                out.write(block, 0, blockLength);
+                blockLength = 0;
+            }
+        }
+
+        void finish() {
+            if (numBits > 0) {
+                writeByte(bitBuffer & 0xff);
+                bitBuffer = 0;
+                numBits = 0;
+            }
+            flushBlock();
+            // Zero length block terminates the image data.
+            out.write(0);
+        }
+    }
+}
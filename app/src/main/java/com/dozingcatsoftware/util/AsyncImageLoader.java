@@ -2,119 +2,272 @@
 
 package com.dozingcatsoftware.util;
 
-import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
-import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Process;
 import android.widget.ImageView;
 
 /**
  * Class to handle assigning a bitmap to a view, when the bitmap may need to be loaded from
  * storage asynchronously.
  *
- * This code is based on the sample code at http://developer.android.com/training/displaying-bitmaps/index.html
+ * Bitmaps are loaded by a small fixed pool of threads. Each request has the position of its item
+ * in a scrolling list or grid, and when a thread is free it takes the pending request closest to
+ * the visible range (see setVisibleRange), so visible cells are loaded first even after a fast
+ * fling has queued requests for many others. When a view is reused for a different image its
+ * previous request is cancelled, and requests for an image that's already being loaded are
+ * combined. If a UriSource is set with setPrefetchSource, images for the next screen in the
+ * scroll direction are loaded into the cache before they're needed.
+ *
+ * All public methods must be called on the main thread.
  */
 public class AsyncImageLoader {
 
-    static class BitmapWorkerTask extends AsyncTask<Uri, Void, Bitmap> {
-        WeakReference<ImageView> imageViewReference;
-        Uri data = null;
-        ScaledBitmapCache bitmapCache;
-        int width;
-        int height;
+    /** Provides the images in a list, for prefetching. */
+    public interface UriSource {
+        int getCount();
+        Uri getUri(int position);
+    }
+
+    static final int NUM_THREADS = 2;
 
-        public BitmapWorkerTask(ImageView imageView, ScaledBitmapCache bitmapCache, int width, int height) {
-            // Use a WeakReference to ensure the ImageView can be garbage collected
-            imageViewReference = new WeakReference<ImageView>(imageView);
+    static class Request {
+        final Uri uri;
+        final ScaledBitmapCache bitmapCache;
+        final int width;
+        final int height;
+        int position;
+        // Views to receive the bitmap. A prefetch request has none, until a view requests the image.
+        final List<ImageView> targets = new ArrayList<ImageView>(1);
+
+        Request(Uri uri, int position, ScaledBitmapCache bitmapCache, int width, int height) {
+            this.uri = uri;
+            this.position = position;
             this.bitmapCache = bitmapCache;
             this.width = width;
             this.height = height;
         }
+    }
+
+    // Guards all fields below, which are accessed by the main thread and the loader threads.
+    final Object lock = new Object();
+    // Requests waiting for a loader thread.
+    final List<Request> pendingRequests = new ArrayList<Request>();
+    // Requests that are pending or being loaded, used to combine requests for the same image.
+    final Map<Uri, Request> activeRequests = new HashMap<Uri, Request>();
+    // The request whose bitmap each view is waiting for.
+    final Map<ImageView, Request> viewRequests = new WeakHashMap<ImageView, Request>();
+    int firstVisiblePosition = 0;
+    int visibleCount = 0;
+    boolean scrollingForward = true;
+    boolean shutdown = false;
 
-        // Decode image in background.
-        @Override protected Bitmap doInBackground(Uri...args) {
-            data = args[0];
-            return bitmapCache.getScaledBitmap(args[0], width, height);
+    UriSource prefetchSource;
+    ScaledBitmapCache prefetchCache;
+    int prefetchWidth;
+    int prefetchHeight;
+
+    Handler handler = new Handler();
+    List<Thread> loaderThreads = new ArrayList<Thread>();
+
+    public AsyncImageLoader() {
+        for (int i=0; i<NUM_THREADS; i++) {
+            Thread thread = new Thread() {
+                @Override public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    loadImages();
+                }
+            };
+            loaderThreads.add(thread);
+            thread.start();
         }
+    }
 
-        // Once complete, see if ImageView is still around and set bitmap.
-        @Override protected void onPostExecute(Bitmap bitmap) {
-            if (imageViewReference != null && bitmap != null) {
-                final ImageView imageView = imageViewReference.get();
-                if (imageView != null) {
-                    imageView.setImageBitmap(bitmap);
+    /**
+     * Sets the bitmap of an ImageView, loading the bitmap on a background thread if needed.
+     * If the image URI is found in-memory in the ScaledBitmapCache, assigns it directly to the
+     * ImageView and returns. Otherwise, queues a request in which the ScaledBitmapCache reads
+     * the bitmap from secondary storage, and assigns it to the ImageView when loaded. position
+     * is the position of the view in its list, which determines the order requests are loaded.
+     */
+    public void loadImageIntoViewAsync(ScaledBitmapCache bitmapCache, Uri imageUri, int position,
+            ImageView imageView, int width, int height) {
+        // check in-memory cache, if found no need to load in the background
+        Bitmap bitmap = bitmapCache.getInMemoryScaledBitmap(imageUri, width, height);
+        synchronized (lock) {
+            Request previousRequest = viewRequests.get(imageView);
+            if (previousRequest != null) {
+                if (bitmap == null && previousRequest.uri.equals(imageUri)) {
+                    // The same work is already in progress.
+                    previousRequest.position = position;
+                    return;
+                }
+                cancelRequestForView(previousRequest, imageView);
+            }
+            if (bitmap == null) {
+                Request request = activeRequests.get(imageUri);
+                if (request == null) {
+                    request = new Request(imageUri, position, bitmapCache, width, height);
+                    activeRequests.put(imageUri, request);
+                    pendingRequests.add(request);
+                    lock.notify();
                 }
+                request.position = position;
+                request.targets.add(imageView);
+                viewRequests.put(imageView, request);
             }
         }
+        imageView.setImageBitmap(bitmap);
+    }
 
-        private static BitmapWorkerTask getBitmapWorkerTask(ImageView imageView) {
-            if (imageView != null) {
-                final Drawable drawable = imageView.getDrawable();
-                if (drawable instanceof AsyncDrawable) {
-                    final AsyncDrawable asyncDrawable = (AsyncDrawable) drawable;
-                    return asyncDrawable.getBitmapWorkerTask();
-                }
+    // Removes a view from a request. If no views are left and the request hasn't started, it's
+    // discarded.
+    void cancelRequestForView(Request request, ImageView imageView) {
+        viewRequests.remove(imageView);
+        request.targets.remove(imageView);
+        if (request.targets.isEmpty() && pendingRequests.remove(request)) {
+            activeRequests.remove(request.uri);
+        }
+    }
+
+    /**
+     * Sets the list positions that are currently visible, which determines the order in which
+     * pending requests are loaded and which images are prefetched. Normally called from
+     * AbsListView.OnScrollListener.onScroll.
+     */
+    public void setVisibleRange(int firstPosition, int count) {
+        synchronized (lock) {
+            if (firstPosition != firstVisiblePosition) {
+                scrollingForward = firstPosition > firstVisiblePosition;
             }
-            return null;
+            firstVisiblePosition = firstPosition;
+            visibleCount = count;
+            prefetchNextScreen();
+            lock.notifyAll();
         }
+    }
 
-        public static boolean cancelPotentialWork(Uri uri, ImageView imageView) {
-            final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
+    /**
+     * Sets the source of images to prefetch. When the visible range changes, images for the next
+     * screen in the direction of scrolling are loaded into the bitmap cache.
+     */
+    public void setPrefetchSource(ScaledBitmapCache bitmapCache, UriSource source, int width, int height) {
+        synchronized (lock) {
+            this.prefetchCache = bitmapCache;
+            this.prefetchSource = source;
+            this.prefetchWidth = width;
+            this.prefetchHeight = height;
+        }
+    }
 
-            if (bitmapWorkerTask != null) {
-                final Uri taskUri = bitmapWorkerTask.data;
-                if (!uri.equals(taskUri)) {
-                    // Cancel previous task
-                    bitmapWorkerTask.cancel(true);
-                }
-                else {
-                    // The same work is already in progress
-                    return false;
-                }
+    void prefetchNextScreen() {
+        if (prefetchSource == null || visibleCount <= 0) return;
+        int start = scrollingForward ? firstVisiblePosition + visibleCount : firstVisiblePosition - visibleCount;
+        int end = Math.min(start + visibleCount, prefetchSource.getCount());
+        for (int position=Math.max(start, 0); position<end; position++) {
+            Uri uri = prefetchSource.getUri(position);
+            if (!activeRequests.containsKey(uri) &&
+                    prefetchCache.getInMemoryScaledBitmap(uri, prefetchWidth, prefetchHeight) == null) {
+                Request request = new Request(uri, position, prefetchCache, prefetchWidth, prefetchHeight);
+                activeRequests.put(uri, request);
+                pendingRequests.add(request);
             }
-            // No task associated with the ImageView, or an existing task was cancelled
-            return true;
         }
     }
 
-    static class AsyncDrawable extends BitmapDrawable {
-        private final WeakReference<BitmapWorkerTask> bitmapWorkerTaskReference;
+    // Returns how far a position is from the visible range, 0 if it's visible.
+    int distanceFromVisibleRange(int position) {
+        if (position < firstVisiblePosition) return firstVisiblePosition - position;
+        int lastVisiblePosition = firstVisiblePosition + visibleCount - 1;
+        if (position > lastVisiblePosition) return position - lastVisiblePosition;
+        return 0;
+    }
 
-        public AsyncDrawable(Resources res, BitmapWorkerTask bitmapWorkerTask) {
-            super(res, (Bitmap)null);
-            bitmapWorkerTaskReference = new WeakReference<BitmapWorkerTask>(bitmapWorkerTask);
+    // Removes and returns the pending request closest to the visible range, or null if there are
+    // none. Prefetch requests that have been scrolled far away are discarded.
+    Request takeNextRequest() {
+        Request best = null;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i=pendingRequests.size()-1; i>=0; i--) {
+            Request request = pendingRequests.get(i);
+            int distance = distanceFromVisibleRange(request.position);
+            if (request.targets.isEmpty() && distance > 2 * Math.max(visibleCount, 1)) {
+                pendingRequests.remove(i);
+                activeRequests.remove(request.uri);
+                continue;
+            }
+            if (distance < bestDistance) {
+                best = request;
+                bestDistance = distance;
+            }
         }
+        if (best != null) {
+            pendingRequests.remove(best);
+        }
+        return best;
+    }
 
-        public BitmapWorkerTask getBitmapWorkerTask() {
-            return bitmapWorkerTaskReference.get();
+    void loadImages() {
+        while (true) {
+            Request request = null;
+            synchronized (lock) {
+                while (!shutdown && (request = takeNextRequest()) == null) {
+                    try {
+                        lock.wait();
+                    }
+                    catch (InterruptedException ignored) {}
+                }
+                if (shutdown) return;
+            }
+            Bitmap bitmap = null;
+            try {
+                bitmap = request.bitmapCache.getScaledBitmap(request.uri, request.width, request.height);
+            }
+            catch (Exception ignored) {}
+            final Request finishedRequest = request;
+            final Bitmap finishedBitmap = bitmap;
+            handler.post(new Runnable() {
+                @Override public void run() {
+                    requestFinished(finishedRequest, finishedBitmap);
+                }
+            });
         }
     }
 
-    /**
-     * Sets the bitmap of an ImageView, loading the bitmap using a background AsyncTask if needed.
-     * If the image URI is found in-memory in the ScaledBitmapCache, assigns it directly to the
-     * ImageView and returns. Otherwise, creates an AsyncTask in which the ScaledBitmapCache reads
-     * the bitmap from secondary storage and assigns it to the ImageView when loaded.
-     */
-    public void loadImageIntoViewAsync(final ScaledBitmapCache bitmapCache, Uri imageUri, ImageView imageView,
-            final int width, final int height, Resources resources) {
-        // check in-memory cache, if found no need for an AsyncTask
-        Bitmap bitmap = bitmapCache.getInMemoryScaledBitmap(imageUri, width, height);
-        if (bitmap!=null) {
-            imageView.setImageBitmap(bitmap);
-            return;
+    void requestFinished(Request request, Bitmap bitmap) {
+        List<ImageView> views;
+        synchronized (lock) {
+            if (activeRequests.get(request.uri) == request) {
+                activeRequests.remove(request.uri);
+            }
+            views = new ArrayList<ImageView>(request.targets);
+            request.targets.clear();
+            for (ImageView view : views) {
+                viewRequests.remove(view);
+            }
         }
-        // read from storage with AsyncTask
-        if (BitmapWorkerTask.cancelPotentialWork(imageUri, imageView)) {
-            BitmapWorkerTask task = new BitmapWorkerTask(imageView, bitmapCache, width, height);
-            AsyncDrawable asyncDrawable = new AsyncDrawable(resources, task);
-            imageView.setImageDrawable(asyncDrawable);
-            task.execute(imageUri);
+        if (bitmap != null) {
+            for (ImageView view : views) {
+                view.setImageBitmap(bitmap);
+            }
         }
     }
 
+    /** Stops the loader threads. Requests that haven't started are discarded. */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            pendingRequests.clear();
+            activeRequests.clear();
+            viewRequests.clear();
+            lock.notifyAll();
+        }
+    }
 }
@@ -1,8 +1,11 @@
 package com.dozingcatsoftware.util;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
 import android.os.Handler;
 import android.os.Looper;
-import android.os.MessageQueue;
 import android.util.Log;
 
 /**
@@ -13,13 +16,6 @@ public class AsyncProcessor<IN, OUT>  {
     private final static boolean DEBUG = false;
     private static final String TAG = "AsyncProcessor";
 
-    public enum Status {
-        NOT_STARTED,
-        IDLE,
-        BUSY,
-        STOPPED,
-    }
-
     public interface Producer<IN, OUT> {
         OUT processInput(IN input);
     }
@@ -30,47 +26,39 @@ public class AsyncProcessor<IN, OUT>  {
         void handleException(IN input, Exception exception);
     }
 
-    private volatile Status status;
     private Thread thread;
     private Handler handler;
     private Looper looper;
+    private volatile boolean stopped = false;
 
-    volatile boolean isBusy = false;
-
-    public AsyncProcessor() {
-        status = Status.NOT_STARTED;
-    }
-
-    public Status getStatus() {
-        return status;
-    }
-
+    /**
+     * Starts the processing thread, and waits until it's ready to accept inputs. Callers that
+     * only want to process the newest of several inputs should hold them in a FrameMailbox and
+     * track whether an input is in progress themselves.
+     */
     public void start() {
-        if (status != Status.NOT_STARTED) {
-            throw new IllegalStateException("Can't start AsyncProcessor, its status is " + status);
+        if (thread != null) {
+            throw new IllegalStateException("AsyncProcessor was already started");
         }
+        final CountDownLatch ready = new CountDownLatch(1);
         thread = new Thread() {
             @Override public void run() {
                 Looper.prepare();
                 looper = Looper.myLooper();
                 if (DEBUG) Log.i("AsyncProcessor", "Looper: " + looper);
                 handler = new Handler();
-                // FIXME: This never gets called, so status stays BUSY.
-                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
-                    @Override public boolean queueIdle() {
-                        if (DEBUG) Log.i(TAG, "AsyncProcessor got queueIdle notification, status=" + status);
-                        if (status == Status.BUSY) {
-                            status = Status.IDLE;
-                        }
-                        return true;
-                    }
-                });
+                ready.countDown();
                 Looper.loop();
                 if (DEBUG) Log.i("Looper", "Exiting looper thread");
             }
         };
         thread.start();
-        status = Status.IDLE;
+        try {
+            ready.await();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -82,43 +70,107 @@ public class AsyncProcessor<IN, OUT>  {
      * queued and executed first-in first-out.
      */
     public void processInputAsync(
-            final Producer<IN, OUT> producer, final IN input,
-            final SuccessCallback<IN, OUT> successCallback, final ErrorCallback<IN> errorCallback,
-            final Handler callbackHandler) {
-        if (status != Status.IDLE && status != Status.BUSY) {
-            throw new IllegalStateException("Can't process new message, status is " + status);
+            Producer<IN, OUT> producer, IN input,
+            SuccessCallback<IN, OUT> successCallback, ErrorCallback<IN> errorCallback,
+            Handler callbackHandler) {
+        if (handler == null || stopped) {
+            throw new IllegalStateException("Can't process new message, AsyncProcessor isn't running");
         }
-        status = Status.BUSY;
-        handler.post(new Runnable() {
-            @Override public void run() {
+        handler.post(obtainTask(producer, input, successCallback, errorCallback, callbackHandler));
+    }
+
+    // Runs the producer on this processor's thread, and then posts itself to the callback handler
+    // to run the callback. Tasks are reused so that processing an input doesn't allocate objects.
+    class Task implements Runnable {
+        Producer<IN, OUT> producer;
+        IN input;
+        SuccessCallback<IN, OUT> successCallback;
+        ErrorCallback<IN> errorCallback;
+        Handler callbackHandler;
+        boolean produced;
+        OUT result;
+        Exception exception;
+
+        @Override public void run() {
+            if (!produced) {
+                produce();
+            }
+            else {
                 try {
-                    if (DEBUG) Log.i(TAG, "Calling processInput on AsyncProcessor thread");
-                    final OUT result = producer.processInput(input);
-                    if (successCallback != null) {
-                        if (DEBUG) Log.i(TAG, "Produced output, calling success callback");
-                        callbackHandler.post(new Runnable() {
-                            @Override public void run() {
-                                successCallback.handleResult(input, result);
-                            }
-                        });
+                    if (exception == null) {
+                        successCallback.handleResult(input, result);
                     }
-                }
-                catch (final Exception ex) {
-                    Log.e(TAG, "Exception producing output", ex);
-                    if (errorCallback != null) {
-                        callbackHandler.post(new Runnable() {
-                            @Override public void run() {
-                                errorCallback.handleException(input, ex);
-                            }
-                        });
+                    else {
+                        errorCallback.handleException(input, exception);
                     }
                 }
+                finally {
+                    recycleTask(this);
+                }
+            }
+        }
+
+        void produce() {
+            try {
+                if (DEBUG) Log.i(TAG, "Calling processInput on AsyncProcessor thread");
+                result = producer.processInput(input);
+            }
+            catch (Exception ex) {
+                Log.e(TAG, "Exception producing output", ex);
+                exception = ex;
+            }
+            produced = true;
+            if ((exception == null) ? successCallback != null : errorCallback != null) {
+                if (DEBUG) Log.i(TAG, "Produced output, calling callback");
+                callbackHandler.post(this);
+            }
+            else {
+                recycleTask(this);
+            }
+        }
+    }
+
+    // Tasks that have finished and can be reused. Access is synchronized on the list.
+    final List<Task> freeTasks = new ArrayList<Task>();
+
+    Task obtainTask(Producer<IN, OUT> producer, IN input,
+            SuccessCallback<IN, OUT> successCallback, ErrorCallback<IN> errorCallback,
+            Handler callbackHandler) {
+        Task task = null;
+        synchronized (freeTasks) {
+            if (!freeTasks.isEmpty()) {
+                task = freeTasks.remove(freeTasks.size() - 1);
             }
-        });
+        }
+        if (task == null) {
+            task = new Task();
+        }
+        task.producer = producer;
+        task.input = input;
+        task.successCallback = successCallback;
+        task.errorCallback = errorCallback;
+        task.callbackHandler = callbackHandler;
+        task.produced = false;
+        return task;
+    }
+
+    void recycleTask(Task task) {
+        task.producer = null;
+        task.input = null;
+        task.successCallback = null;
+        task.errorCallback = null;
+        task.callbackHandler = null;
+        task.result = null;
+        task.exception = null;
+        synchronized (freeTasks) {
+            freeTasks.add(task);
+        }
     }
 
     public void stop() {
-        looper.quit();
-        status = Status.STOPPED;
+        stopped = true;
+        if (looper != null) {
+            looper.quit();
+        }
     }
 }
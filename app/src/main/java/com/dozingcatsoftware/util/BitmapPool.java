@@ -0,0 +1,126 @@
+package com.dozingcatsoftware.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Holds bitmaps that are no longer used so that their memory can be reused when decoding other
+ * images, with BitmapFactory.Options.inBitmap. Bitmaps are grouped in buckets by their size in
+ * bytes, rounded up to a power of 2. Starting with API 19 a bitmap can be reused for any image
+ * that fits in its allocation; on API 11 through 18 the image must have exactly the same width,
+ * height, and config. Before API 11 bitmaps can't be reused, and the pool is always empty.
+ */
+public class BitmapPool {
+
+    final int maxBytes;
+    int currentBytes = 0;
+    // Buckets are keyed by the log2 of the bitmap size, rounded up.
+    final Map<Integer, List<Bitmap>> buckets = new HashMap<Integer, List<Bitmap>>();
+    // All pooled bitmaps, oldest first, so the oldest can be dropped when the pool is full.
+    final LinkedList<Bitmap> bitmapsByAge = new LinkedList<Bitmap>();
+
+    public BitmapPool(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static boolean isReuseSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    static boolean isVariableSizeReuseSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    static int bitmapSize(Bitmap bitmap) {
+        return isVariableSizeReuseSupported() ? allocationByteCount(bitmap) : AndroidUtils.getBitmapByteCount(bitmap);
+    }
+
+    // Callers must check isVariableSizeReuseSupported, since getAllocationByteCount is API 19.
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    static int allocationByteCount(Bitmap bitmap) {
+        return bitmap.getAllocationByteCount();
+    }
+
+    static int bucketForSize(int bytes) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(bytes - 1, 0));
+    }
+
+    /** Adds a bitmap to the pool. The caller must no longer use or display the bitmap. */
+    public synchronized void put(Bitmap bitmap) {
+        if (!isReuseSupported() || bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) return;
+        int size = bitmapSize(bitmap);
+        if (size > maxBytes) return;
+        Integer bucket = bucketForSize(size);
+        List<Bitmap> bitmaps = buckets.get(bucket);
+        if (bitmaps == null) {
+            bitmaps = new ArrayList<Bitmap>();
+            buckets.put(bucket, bitmaps);
+        }
+        bitmaps.add(bitmap);
+        bitmapsByAge.add(bitmap);
+        currentBytes += size;
+        while (currentBytes > maxBytes) {
+            removeBitmap(bitmapsByAge.getFirst());
+        }
+    }
+
+    /**
+     * Removes and returns a bitmap that can be used as inBitmap to decode an image with the given
+     * width, height, and config, or null if there isn't one.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (!isReuseSupported()) return null;
+        int bytes = width * height * bytesPerPixel(config);
+        int bucket = bucketForSize(bytes);
+        // A bitmap in the next larger bucket always fits on API 19+, but may waste half its memory.
+        for (int b=bucket; b<=bucket+1; b++) {
+            List<Bitmap> bitmaps = buckets.get(b);
+            if (bitmaps == null) continue;
+            for (int i=bitmaps.size()-1; i>=0; i--) {
+                Bitmap bitmap = bitmaps.get(i);
+                if (canReuse(bitmap, width, height, config, bytes)) {
+                    removeBitmap(bitmap);
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    static boolean canReuse(Bitmap bitmap, int width, int height, Bitmap.Config config, int bytes) {
+        if (isVariableSizeReuseSupported()) {
+            return allocationByteCount(bitmap) >= bytes;
+        }
+        return bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config;
+    }
+
+    void removeBitmap(Bitmap bitmap) {
+        int size = bitmapSize(bitmap);
+        buckets.get(bucketForSize(size)).remove(bitmap);
+        bitmapsByAge.remove(bitmap);
+        currentBytes -= size;
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) return 1;
+        if (config == Bitmap.Config.RGB_565) return 2;
+        return 4;
+    }
+
+    public synchronized int getSizeInBytes() {
+        return currentBytes;
+    }
+
+    public synchronized void clear() {
+        buckets.clear();
+        bitmapsByAge.clear();
+        currentBytes = 0;
+    }
+}
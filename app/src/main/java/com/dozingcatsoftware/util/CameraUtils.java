@@ -63,6 +63,40 @@ public class CameraUtils {
         return bestSize;
     }
 
+    /** Returns the smallest camera preview size that provides at least samplesPerCell pixels for each cell of a grid
+     * with the given number of columns and rows, or the largest preview size if none are large enough. If aspectRatio
+     * is positive, sizes whose width/height ratio is within 5% of it are preferred, so that the grid doesn't change
+     * shape when the size changes. Returns null if the Android API does not support retrieving preview sizes.
+     */
+    public static Camera.Size bestCameraSizeForGrid(Camera.Parameters params, int columns, int rows, int samplesPerCell,
+            float aspectRatio) {
+        List<Camera.Size> previewSizes = previewSizesForCameraParameters(params);
+        if (previewSizes==null || previewSizes.size()==0) return null;
+
+        long minPixels = (long)samplesPerCell * columns * rows;
+        Camera.Size bestSize = null;
+        boolean bestMatchesRatio = false;
+        for(Camera.Size size : previewSizes) {
+            boolean matchesRatio = aspectRatio<=0 ||
+                    Math.abs(((float)size.width) / size.height - aspectRatio) <= 0.05f * aspectRatio;
+            if (bestSize!=null && bestMatchesRatio && !matchesRatio) continue;
+            long pixels = (long)size.width * size.height;
+            boolean largeEnough = pixels>=minPixels && size.width>=columns && size.height>=rows;
+            if (bestSize==null || (matchesRatio && !bestMatchesRatio)) {
+                bestSize = size;
+                bestMatchesRatio = matchesRatio;
+                continue;
+            }
+            long bestPixels = (long)bestSize.width * bestSize.height;
+            boolean bestLargeEnough = bestPixels>=minPixels && bestSize.width>=columns && bestSize.height>=rows;
+            // prefer sizes that are large enough, then the smallest of those or the largest of the rest
+            if (largeEnough ? (!bestLargeEnough || pixels<bestPixels) : (!bestLargeEnough && pixels>bestPixels)) {
+                bestSize = size;
+            }
+        }
+        return bestSize;
+    }
+
     /** Updates the Camera object's preview size to the nearest match for the given width and height.
      * Returns the preview size whether it was updated or not.
      */
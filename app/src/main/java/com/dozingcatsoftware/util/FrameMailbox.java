@@ -0,0 +1,71 @@
+package com.dozingcatsoftware.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the most recent frame from a source such as the camera until a consumer is ready for it.
+ * A new frame replaces one that hasn't been taken yet; the replaced frame is returned to the
+ * producer so that its buffer can be reused. The consumer always gets the newest frame. Both
+ * operations are a single atomic swap, so producers and consumers can be on any threads.
+ */
+public class FrameMailbox<T> {
+
+    private final AtomicReference<T> slot = new AtomicReference<T>();
+    private final AtomicLong offeredCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong takenCount = new AtomicLong();
+
+    /**
+     * Puts a frame in the mailbox. Returns the frame that it replaced, which will never be taken
+     * and should be released by the caller, or null if the mailbox was empty.
+     */
+    public T offer(T frame) {
+        offeredCount.incrementAndGet();
+        T replaced = slot.getAndSet(frame);
+        if (replaced != null) {
+            droppedCount.incrementAndGet();
+        }
+        return replaced;
+    }
+
+    /** Removes and returns the newest frame, or null if there isn't one. */
+    public T take() {
+        T frame = slot.getAndSet(null);
+        if (frame != null) {
+            takenCount.incrementAndGet();
+        }
+        return frame;
+    }
+
+    /**
+     * Removes and returns the frame in the mailbox without counting it as taken, for example
+     * when the consumer is stopping. The caller should release the frame if it's not null.
+     */
+    public T clear() {
+        T frame = slot.getAndSet(null);
+        if (frame != null) {
+            droppedCount.incrementAndGet();
+        }
+        return frame;
+    }
+
+    public boolean isEmpty() {
+        return slot.get() == null;
+    }
+
+    /** Returns the number of frames passed to offer. */
+    public long getOfferedCount() {
+        return offeredCount.get();
+    }
+
+    /** Returns the number of frames that were replaced by newer frames or cleared. */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /** Returns the number of frames returned by take. */
+    public long getTakenCount() {
+        return takenCount.get();
+    }
+}
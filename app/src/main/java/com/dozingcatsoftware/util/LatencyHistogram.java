@@ -0,0 +1,136 @@
+package com.dozingcatsoftware.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets, so that any number of threads can record values without locking
+ * or allocating. The buckets are log-linear like HdrHistogram's: durations under 32 microseconds
+ * have a bucket for each microsecond, and each longer range from 2^n to 2^(n+1) microseconds is
+ * divided into SUB_BUCKETS buckets of equal size. The last bucket also holds all durations of
+ * 2^MAX_EXPONENT microseconds or more. Percentiles are estimated as the upper limit of the bucket
+ * that contains them, so they're accurate to within 1/SUB_BUCKETS (about 6%), or 1 microsecond
+ * for short durations.
+ */
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 4;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Durations of 2^MAX_EXPONENT microseconds (about 67 seconds) or more are in the last bucket.
+    static final int MAX_EXPONENT = 26;
+    public static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /** Records a duration. Negative durations are counted as 0. */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets.incrementAndGet(bucketForNanos(nanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get())) {
+            if (maxNanos.compareAndSet(max, nanos)) break;
+        }
+    }
+
+    public void reset() {
+        for (int i=0; i<NUM_BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    static int bucketForNanos(long nanos) {
+        long micros = nanos / 1000;
+        if (micros < 2 * SUB_BUCKETS) return (int)micros;
+        // The bit below the highest set bit determines the range, and the next SUB_BUCKET_BITS
+        // bits the bucket within it.
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return Math.min(NUM_BUCKETS - 1, shift * SUB_BUCKETS + (int)(micros >> shift));
+    }
+
+    /** Returns the lower limit in nanoseconds of the durations counted in the given bucket. */
+    public static long bucketStartNanos(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) return bucket * 1000L;
+        int shift = bucket / SUB_BUCKETS - 1;
+        return ((long)(bucket % SUB_BUCKETS + SUB_BUCKETS) << shift) * 1000;
+    }
+
+    /** Returns the upper limit in nanoseconds of the durations counted in the given bucket. */
+    public static long bucketLimitNanos(int bucket) {
+        return (bucket < NUM_BUCKETS - 1) ? bucketStartNanos(bucket + 1) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns a copy of the current values. Values recorded while the copy is made may be
+     * partly included, so the total of the bucket counts can differ slightly from the count.
+     */
+    public Snapshot snapshot() {
+        long[] bucketCounts = new long[NUM_BUCKETS];
+        for (int i=0; i<NUM_BUCKETS; i++) {
+            bucketCounts[i] = buckets.get(i);
+        }
+        return new Snapshot(bucketCounts, count.get(), totalNanos.get(), maxNanos.get());
+    }
+
+    public static class Snapshot {
+        public final long[] bucketCounts;
+        public final long count;
+        public final long totalNanos;
+        public final long maxNanos;
+
+        Snapshot(long[] bucketCounts, long count, long totalNanos, long maxNanos) {
+            this.bucketCounts = bucketCounts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /**
+         * Returns the values recorded between an earlier snapshot of the same histogram and this
+         * one. The maximum for the interval is the upper limit of the highest bucket with values
+         * in the interval, or this snapshot's maximum if that's lower, so like the percentiles
+         * it's accurate to the bucket size.
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] intervalCounts = new long[bucketCounts.length];
+            int highestBucket = -1;
+            for (int i=0; i<bucketCounts.length; i++) {
+                intervalCounts[i] = Math.max(0, bucketCounts[i] - earlier.bucketCounts[i]);
+                if (intervalCounts[i] > 0) highestBucket = i;
+            }
+            long intervalMaxNanos = (highestBucket >= 0) ?
+                    Math.min(bucketLimitNanos(highestBucket), maxNanos) : 0;
+            return new Snapshot(intervalCounts, Math.max(0, count - earlier.count),
+                    Math.max(0, totalNanos - earlier.totalNanos), intervalMaxNanos);
+        }
+
+        public long meanNanos() {
+            return (count > 0) ? totalNanos / count : 0;
+        }
+
+        /** Returns the estimated duration in nanoseconds below which the given fraction of values fall. */
+        public long percentileNanos(double fraction) {
+            long bucketTotal = 0;
+            for (long c : bucketCounts) {
+                bucketTotal += c;
+            }
+            if (bucketTotal == 0) return 0;
+            long target = (long)Math.ceil(fraction * bucketTotal);
+            long cumulative = 0;
+            for (int i=0; i<bucketCounts.length; i++) {
+                cumulative += bucketCounts[i];
+                if (cumulative >= target) {
+                    return Math.min(bucketLimitNanos(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.dozingcatsoftware.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named latency histograms, counters, and gauges that are always recorded. Callers should look up
+ * histograms and counters once and keep references to them, since recording a value is then a few
+ * atomic operations with no locking or allocation. Gauges are read when a snapshot is taken. A
+ * snapshot can be written as CSV or JSON to compare builds and devices.
+ */
+public class MetricsRegistry {
+
+    /** A value that's read when a snapshot is taken, such as the size of a pool. */
+    public interface Gauge {
+        long getValue();
+    }
+
+    static final MetricsRegistry instance = new MetricsRegistry();
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    // Access to these maps is synchronized on this object. Entries are kept in the order they're
+    // created, which is the order they're written.
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+    private final Map<String, AtomicLong> counters = new LinkedHashMap<String, AtomicLong>();
+    private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+
+    /** Returns the histogram with the given name, creating it if needed. */
+    public synchronized LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /** Returns the counter with the given name, creating it if needed. */
+    public synchronized AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counter = new AtomicLong();
+            counters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Sets the gauge with the given name, replacing any previous gauge with that name. Gauges that
+     * reference an Activity should be removed when it's destroyed.
+     */
+    public synchronized void setGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public synchronized void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Removes the gauge with the given name if it's the given instance, so that an Activity being
+     * destroyed doesn't remove the gauges of a newer instance that replaced it.
+     */
+    public synchronized void removeGauge(String name, Gauge gauge) {
+        if (gauges.get(name) == gauge) {
+            gauges.remove(name);
+        }
+    }
+
+    /** Clears all histograms and counters. Gauges are unaffected. */
+    public synchronized void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        for (AtomicLong counter : counters.values()) {
+            counter.set(0);
+        }
+    }
+
+    public synchronized Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot(System.currentTimeMillis());
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            snapshot.histograms.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            snapshot.counters.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            snapshot.gauges.put(entry.getKey(), entry.getValue().getValue());
+        }
+        return snapshot;
+    }
+
+    /** Writes a snapshot to the given file, as CSV if its name ends with ".csv" and JSON otherwise. */
+    public void writeSnapshot(File file) throws IOException {
+        snapshot().writeToFile(file);
+    }
+
+    /** The values of all metrics at one time. Durations are written in milliseconds. */
+    public static class Snapshot {
+        public final long timestampMillis;
+        public final Map<String, LatencyHistogram.Snapshot> histograms = new LinkedHashMap<String, LatencyHistogram.Snapshot>();
+        public final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+        public final Map<String, Long> gauges = new LinkedHashMap<String, Long>();
+
+        Snapshot(long timestampMillis) {
+            this.timestampMillis = timestampMillis;
+        }
+
+        /** Writes this snapshot to the given file, as CSV if its name ends with ".csv" and JSON otherwise. */
+        public void writeToFile(File file) throws IOException {
+            String contents = file.getName().endsWith(".csv") ? toCsv() : toJson();
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                writer.write(contents);
+            }
+            finally {
+                writer.close();
+            }
+        }
+
+        /**
+         * Returns one line for each metric, with columns for the histogram statistics and the
+         * value of counters and gauges. Columns that don't apply to a metric are empty.
+         */
+        public String toCsv() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("type,name,count,mean_ms,p50_ms,p90_ms,p99_ms,max_ms,value\n");
+            for (Map.Entry<String, LatencyHistogram.Snapshot> entry : histograms.entrySet()) {
+                LatencyHistogram.Snapshot h = entry.getValue();
+                builder.append("histogram,").append(entry.getKey()).append(',').append(h.count);
+                for (long nanos : histogramValues(h)) {
+                    builder.append(',').append(millis(nanos));
+                }
+                builder.append(",\n");
+            }
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                builder.append("counter,").append(entry.getKey()).append(",,,,,,,").append(entry.getValue()).append('\n');
+            }
+            for (Map.Entry<String, Long> entry : gauges.entrySet()) {
+                builder.append("gauge,").append(entry.getKey()).append(",,,,,,,").append(entry.getValue()).append('\n');
+            }
+            return builder.toString();
+        }
+
+        public String toJson() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("{\"timestamp\":").append(timestampMillis).append(",\"histograms\":{");
+            boolean first = true;
+            for (Map.Entry<String, LatencyHistogram.Snapshot> entry : histograms.entrySet()) {
+                LatencyHistogram.Snapshot h = entry.getValue();
+                long[] values = histogramValues(h);
+                if (!first) builder.append(',');
+                first = false;
+                appendJsonString(builder, entry.getKey());
+                builder.append(":{\"count\":").append(h.count)
+                        .append(",\"mean_ms\":").append(millis(values[0]))
+                        .append(",\"p50_ms\":").append(millis(values[1]))
+                        .append(",\"p90_ms\":").append(millis(values[2]))
+                        .append(",\"p99_ms\":").append(millis(values[3]))
+                        .append(",\"max_ms\":").append(millis(values[4]))
+                        .append(",\"buckets\":[");
+                for (int i=0; i<h.bucketCounts.length; i++) {
+                    if (i > 0) builder.append(',');
+                    builder.append(h.bucketCounts[i]);
+                }
+                builder.append("]}");
+            }
+            builder.append("},\"counters\":");
+            appendJsonValues(builder, counters);
+            builder.append(",\"gauges\":");
+            appendJsonValues(builder, gauges);
+            builder.append("}\n");
+            return builder.toString();
+        }
+
+        // Returns the mean, 50th, 90th, and 99th percentile, and maximum.
+        static long[] histogramValues(LatencyHistogram.Snapshot h) {
+            return new long[] {h.meanNanos(), h.percentileNanos(0.5), h.percentileNanos(0.9),
+                    h.percentileNanos(0.99), h.maxNanos};
+        }
+
+        static String millis(long nanos) {
+            return String.format(Locale.US, "%.3f", nanos / 1e6);
+        }
+
+        static void appendJsonValues(StringBuilder builder, Map<String, Long> values) {
+            builder.append('{');
+            boolean first = true;
+            for (Map.Entry<String, Long> entry : values.entrySet()) {
+                if (!first) builder.append(',');
+                first = false;
+                appendJsonString(builder, entry.getKey());
+                builder.append(':').append(entry.getValue());
+            }
+            builder.append('}');
+        }
+
+        // Metric names are chosen by the app, so only quotes and backslashes need escaping.
+        static void appendJsonString(StringBuilder builder, String s) {
+            builder.append('"');
+            for (int i=0; i<s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') builder.append('\\');
+                builder.append(c);
+            }
+            builder.append('"');
+        }
+    }
+}
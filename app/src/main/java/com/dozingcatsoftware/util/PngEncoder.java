@@ -0,0 +1,218 @@
+package com.dozingcatsoftware.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes PNG images one row at a time, so the full image never needs to be in memory. Supports
+ * palette images with 1, 2, 4, or 8 bits per pixel, and 24-bit RGB images for when there are
+ * too many colors for a palette. Each row is filtered with whichever of the None, Sub, and Up
+ * filters gives the smallest sum of absolute byte values, the usual cheap heuristic for choosing
+ * a filter, and compressed with Deflater.BEST_SPEED.
+ */
+public class PngEncoder {
+
+    public interface RowSource {
+        /**
+         * Fills a row of the image. For palette images the buffer receives one palette index per
+         * pixel (which PngEncoder packs to the output bit depth), and for RGB images it receives
+         * 3 bytes (red, green, blue) per pixel.
+         */
+        void getRow(int y, byte[] rowBuffer);
+    }
+
+    static final byte[] SIGNATURE = {(byte)137, 'P', 'N', 'G', 13, 10, 26, 10};
+    static final int COLOR_TYPE_RGB = 2;
+    static final int COLOR_TYPE_PALETTE = 3;
+    static final int FILTER_NONE = 0;
+    static final int FILTER_SUB = 1;
+    static final int FILTER_UP = 2;
+    static final int IDAT_CHUNK_SIZE = 64 * 1024;
+
+    /** Returns the smallest PNG bit depth (1, 2, 4, or 8) that can hold the given number of colors. */
+    public static int bitDepthForColorCount(int numColors) {
+        if (numColors <= 2) return 1;
+        if (numColors <= 4) return 2;
+        if (numColors <= 16) return 4;
+        if (numColors <= 256) return 8;
+        throw new IllegalArgumentException("Too many colors for a palette: " + numColors);
+    }
+
+    /**
+     * Writes a palette image. The palette contains RGB colors in the low 24 bits of each int; only
+     * the first numColors entries are used.
+     */
+    public static void writePaletteImage(OutputStream stream, int width, int height,
+            int[] palette, int numColors, RowSource rowSource) throws IOException {
+        int bitDepth = bitDepthForColorCount(numColors);
+        PngEncoder encoder = new PngEncoder(stream, width, height, bitDepth, COLOR_TYPE_PALETTE);
+        encoder.writeHeader();
+        byte[] paletteBytes = new byte[3 * numColors];
+        for (int i=0; i<numColors; i++) {
+            paletteBytes[3*i] = (byte) (palette[i] >> 16);
+            paletteBytes[3*i+1] = (byte) (palette[i] >> 8);
+            paletteBytes[3*i+2] = (byte) palette[i];
+        }
+        encoder.writeChunk("PLTE", paletteBytes, paletteBytes.length);
+        encoder.writeImageData(rowSource, width);
+    }
+
+    /** Writes a 24-bit RGB image. */
+    public static void writeRgbImage(OutputStream stream, int width, int height, RowSource rowSource)
+            throws IOException {
+        PngEncoder encoder = new PngEncoder(stream, width, height, 8, COLOR_TYPE_RGB);
+        encoder.writeHeader();
+        encoder.writeImageData(rowSource, 3 * width);
+    }
+
+    DataOutputStream output;
+    int width;
+    int height;
+    int bitDepth;
+    int colorType;
+    CRC32 crc = new CRC32();
+
+    PngEncoder(OutputStream stream, int width, int height, int bitDepth, int colorType) {
+        this.output = new DataOutputStream(stream);
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.colorType = colorType;
+    }
+
+    void writeHeader() throws IOException {
+        output.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = (byte) bitDepth;
+        header[9] = (byte) colorType;
+        // compression, filter, and interlace methods are all 0
+        writeChunk("IHDR", header, header.length);
+    }
+
+    static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset+1] = (byte) (value >> 16);
+        buffer[offset+2] = (byte) (value >> 8);
+        buffer[offset+3] = (byte) value;
+    }
+
+    void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        output.writeInt(length);
+        output.write(typeBytes);
+        output.write(data, 0, length);
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        output.writeInt((int) crc.getValue());
+    }
+
+    // Packs one palette index per byte into bitDepth bits per pixel, high bits first.
+    void packRow(byte[] indexes, byte[] packed) {
+        if (bitDepth == 8) {
+            System.arraycopy(indexes, 0, packed, 0, width);
+            return;
+        }
+        int pixelsPerByte = 8 / bitDepth;
+        int outIndex = 0;
+        for (int x=0; x<width; x+=pixelsPerByte) {
+            int value = 0;
+            int end = Math.min(x + pixelsPerByte, width);
+            for (int i=x; i<end; i++) {
+                value = (value << bitDepth) | (indexes[i] & 0xff);
+            }
+            // Pad a partial last byte with zero bits.
+            value <<= bitDepth * (x + pixelsPerByte - end);
+            packed[outIndex++] = (byte) value;
+        }
+    }
+
+    void writeImageData(RowSource rowSource, int sourceRowBytes) throws IOException {
+        int bytesPerPixel = (colorType == COLOR_TYPE_RGB) ? 3 : 1;
+        int rowBytes = (colorType == COLOR_TYPE_RGB) ? 3 * width : (width * bitDepth + 7) / 8;
+        byte[] sourceRow = new byte[sourceRowBytes];
+        byte[] currentRow = new byte[rowBytes];
+        byte[] previousRow = new byte[rowBytes];
+        // One extra byte at the start of each filtered row for the filter type.
+        byte[] subRow = new byte[rowBytes + 1];
+        byte[] upRow = new byte[rowBytes + 1];
+        byte[] noneRow = new byte[rowBytes + 1];
+        byte[] chunkBuffer = new byte[IDAT_CHUNK_SIZE];
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            int chunkLength = 0;
+            for (int y=0; y<height; y++) {
+                rowSource.getRow(y, sourceRow);
+                if (colorType == COLOR_TYPE_RGB) {
+                    System.arraycopy(sourceRow, 0, currentRow, 0, rowBytes);
+                }
+                else {
+                    packRow(sourceRow, currentRow);
+                }
+                byte[] filtered = filterRow(currentRow, previousRow, bytesPerPixel, y==0, noneRow, subRow, upRow);
+
+                deflater.setInput(filtered, 0, filtered.length);
+                while (!deflater.needsInput()) {
+                    chunkLength = deflateIntoChunk(deflater, chunkBuffer, chunkLength);
+                }
+                byte[] tmp = previousRow;
+                previousRow = currentRow;
+                currentRow = tmp;
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                chunkLength = deflateIntoChunk(deflater, chunkBuffer, chunkLength);
+            }
+            if (chunkLength > 0) {
+                writeChunk("IDAT", chunkBuffer, chunkLength);
+            }
+        }
+        finally {
+            deflater.end();
+        }
+        writeChunk("IEND", new byte[0], 0);
+        output.flush();
+    }
+
+    // Compresses available data into the chunk buffer, writing an IDAT chunk when it's full.
+    // Returns the number of bytes now in the buffer.
+    int deflateIntoChunk(Deflater deflater, byte[] chunkBuffer, int chunkLength) throws IOException {
+        chunkLength += deflater.deflate(chunkBuffer, chunkLength, chunkBuffer.length - chunkLength);
+        if (chunkLength == chunkBuffer.length) {
+            writeChunk("IDAT", chunkBuffer, chunkLength);
+            chunkLength = 0;
+        }
+        return chunkLength;
+    }
+
+    // Applies the None, Sub, and Up filters and returns the one with the smallest sum of absolute
+    // values, treating bytes as signed. That's a rough measure of how well the row will compress.
+    static byte[] filterRow(byte[] row, byte[] previousRow, int bytesPerPixel, boolean firstRow,
+            byte[] noneRow, byte[] subRow, byte[] upRow) {
+        int n = row.length;
+        noneRow[0] = FILTER_NONE;
+        subRow[0] = FILTER_SUB;
+        upRow[0] = FILTER_UP;
+        long noneSum = 0, subSum = 0, upSum = 0;
+        for (int i=0; i<n; i++) {
+            byte value = row[i];
+            byte sub = (byte) (value - ((i >= bytesPerPixel) ? row[i - bytesPerPixel] : 0));
+            byte up = (byte) (value - (firstRow ? 0 : previousRow[i]));
+            noneRow[i+1] = value;
+            subRow[i+1] = sub;
+            upRow[i+1] = up;
+            noneSum += Math.abs(value);
+            subSum += Math.abs(sub);
+            upSum += Math.abs(up);
+        }
+        if (upSum < noneSum && upSum <= subSum) return upRow;
+        if (subSum < noneSum) return subRow;
+        return noneRow;
+    }
+}
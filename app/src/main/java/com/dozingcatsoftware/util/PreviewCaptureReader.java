@@ -0,0 +1,129 @@
+package com.dozingcatsoftware.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads preview frames from a file written by PreviewCaptureWriter. The file is memory mapped
+ * and its frames are indexed when it's opened, so frames can be read in any order.
+ */
+public class PreviewCaptureReader {
+
+    /** A frame's pixels and metadata. The data array is reused between reads when possible. */
+    public static class Frame {
+        public int width;
+        public int height;
+        public CameraUtils.CameraInfo cameraInfo = new CameraUtils.CameraInfo();
+        public long timestamp;
+        public byte[] data;
+        public int dataLength;
+    }
+
+    RandomAccessFile file;
+    MappedByteBuffer buffer;
+    int[] frameOffsets = new int[16];
+    int frameCount = 0;
+    int maxDataLength = 0;
+
+    public PreviewCaptureReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            file.close();
+            throw new IOException("Capture file is too large: " + length);
+        }
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            indexFrames();
+        }
+        catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    void indexFrames() throws IOException {
+        byte[] magic = new byte[PreviewCaptureWriter.MAGIC.length];
+        if (buffer.remaining() < magic.length) {
+            throw new IOException("Not a preview capture file");
+        }
+        buffer.get(magic);
+        int version = magic[magic.length - 1];
+        magic[magic.length - 1] = PreviewCaptureWriter.MAGIC[magic.length - 1];
+        if (!Arrays.equals(magic, PreviewCaptureWriter.MAGIC)) {
+            throw new IOException("Not a preview capture file");
+        }
+        if (version != PreviewCaptureWriter.MAGIC[magic.length - 1]) {
+            throw new IOException("Unsupported preview capture file version: " + version);
+        }
+        if (buffer.limit() < PreviewCaptureWriter.FILE_HEADER_SIZE) {
+            throw new IOException("Not a preview capture file");
+        }
+        // Only frames recorded in the header are complete. The rest of the file may be a partly
+        // written frame or zeros, if the app was killed before the writer was closed.
+        int maxFrames = buffer.getInt(magic.length);
+        long committedLength = buffer.getLong(magic.length + 4);
+        int limit = (int)Math.max(0, Math.min(buffer.limit(), committedLength));
+        int offset = PreviewCaptureWriter.FILE_HEADER_SIZE;
+        while (frameCount < maxFrames && offset + PreviewCaptureWriter.FRAME_HEADER_SIZE <= limit) {
+            int width = buffer.getInt(offset);
+            int height = buffer.getInt(offset + 4);
+            int dataLength = buffer.getInt(offset + PreviewCaptureWriter.FRAME_HEADER_SIZE - 4);
+            if (width <= 0 || height <= 0 || dataLength <= 0 ||
+                    (long)offset + PreviewCaptureWriter.FRAME_HEADER_SIZE + dataLength > limit) {
+                // A truncated or unwritten frame, for example if the app was killed while capturing.
+                break;
+            }
+            if (frameCount == frameOffsets.length) {
+                frameOffsets = Arrays.copyOf(frameOffsets, 2 * frameCount);
+            }
+            frameOffsets[frameCount++] = offset;
+            maxDataLength = Math.max(maxDataLength, dataLength);
+            offset += PreviewCaptureWriter.FRAME_HEADER_SIZE + dataLength;
+        }
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /** Returns the size of the largest frame, which callers can use to allocate buffers. */
+    public int getMaxDataLength() {
+        return maxDataLength;
+    }
+
+    /**
+     * Reads the frame at the given index into frame, allocating a new data array only if the
+     * existing one is too small. This method is threadsafe.
+     */
+    public void readFrame(int index, Frame frame) {
+        if (index < 0 || index >= frameCount) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+        }
+        // Use a duplicate so that concurrent reads don't share a position.
+        ByteBuffer input = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        input.position(frameOffsets[index]);
+        frame.width = input.getInt();
+        frame.height = input.getInt();
+        frame.cameraInfo.facing = input.getInt();
+        frame.cameraInfo.orientation = input.getInt();
+        frame.timestamp = input.getLong();
+        frame.dataLength = input.getInt();
+        if (frame.data == null || frame.data.length < frame.dataLength) {
+            frame.data = new byte[frame.dataLength];
+        }
+        input.get(frame.data, 0, frame.dataLength);
+    }
+
+    public void close() throws IOException {
+        buffer = null;
+        file.close();
+    }
+}
@@ -0,0 +1,124 @@
+package com.dozingcatsoftware.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes raw camera preview frames (normally NV21) and their metadata to a capture file, so that
+ * exactly the same frames can later be fed through the image pipeline with PreviewReplaySource.
+ * The file is written through memory mapped regions, so writing a frame is a single copy into
+ * the page cache and doesn't block on disk I/O in the preview callback.
+ *
+ * The file starts with a 16 byte header: "PVW" and a version byte, the number of complete frames
+ * (int), and the length of the file up to the end of the last complete frame (long). The header
+ * is updated after each frame is written, so if the app is killed while capturing, the reader
+ * ignores the partly written frame and the unused space at the end of the last mapped region.
+ * The header is followed by frames:
+ *   width (int), height (int), camera facing (int), camera orientation (int),
+ *   timestamp (long, millis), data length (int), data bytes
+ * All values are little endian. See PreviewCaptureReader.
+ *
+ * Methods are not threadsafe, but may be called from any single thread, so that copying frames
+ * can be done off the preview callback thread.
+ */
+public class PreviewCaptureWriter {
+
+    static final byte[] MAGIC = {'P', 'V', 'W', 2};
+    static final int FILE_HEADER_SIZE = 4 + 4 + 8;
+    static final int FRAME_HEADER_SIZE = 4 * 4 + 8 + 4;
+    // Size of each mapped region of the file. A 640x480 NV21 frame is 450KB.
+    static final int MAP_REGION_SIZE = 32 * 1024 * 1024;
+
+    RandomAccessFile file;
+    FileChannel channel;
+    // Maps the file header, which is updated after every frame.
+    MappedByteBuffer headerRegion;
+    MappedByteBuffer region;
+    long regionStart;
+    long maxBytes;
+    int framesWritten = 0;
+
+    /**
+     * Creates a capture file, replacing any existing file. Frames that would make the file larger
+     * than maxBytes are not written, so a forgotten capture can't fill the device's storage.
+     */
+    public PreviewCaptureWriter(File path, long maxBytes) throws IOException {
+        this.maxBytes = maxBytes;
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        headerRegion = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE);
+        headerRegion.order(ByteOrder.LITTLE_ENDIAN);
+        headerRegion.put(MAGIC);
+        commitFrames();
+        mapRegion(FILE_HEADER_SIZE, 0);
+    }
+
+    // Records the frames written so far as complete in the file header.
+    void commitFrames() {
+        headerRegion.putInt(MAGIC.length, framesWritten);
+        headerRegion.putLong(MAGIC.length + 4, position());
+    }
+
+    // Maps a new region of the file starting at the given position, large enough for at least
+    // minSize bytes.
+    void mapRegion(long position, int minSize) throws IOException {
+        regionStart = position;
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(minSize, MAP_REGION_SIZE));
+        region.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    long position() {
+        return (region != null) ? regionStart + region.position() : FILE_HEADER_SIZE;
+    }
+
+    public boolean isClosed() {
+        return file == null;
+    }
+
+    public int getFramesWritten() {
+        return framesWritten;
+    }
+
+    /**
+     * Appends a frame, copying the first dataLength bytes of data. Returns false if the frame
+     * wasn't written because the file would exceed its maximum size.
+     */
+    public boolean writeFrame(byte[] data, int dataLength, int width, int height,
+            CameraUtils.CameraInfo cameraInfo, long timestamp) throws IOException {
+        int frameSize = FRAME_HEADER_SIZE + dataLength;
+        if (position() + frameSize > maxBytes) {
+            return false;
+        }
+        if (region.remaining() < frameSize) {
+            mapRegion(position(), frameSize);
+        }
+        region.putInt(width);
+        region.putInt(height);
+        region.putInt(cameraInfo.facing);
+        region.putInt(cameraInfo.orientation);
+        region.putLong(timestamp);
+        region.putInt(dataLength);
+        region.put(data, 0, dataLength);
+        framesWritten++;
+        commitFrames();
+        return true;
+    }
+
+    /** Writes any frames still in memory to the file and closes it. */
+    public void close() throws IOException {
+        long length = position();
+        region.force();
+        headerRegion.force();
+        region = null;
+        headerRegion = null;
+        // Mapping extends the file to the end of the last region, so remove the unused space.
+        channel.truncate(length);
+        file.close();
+        file = null;
+    }
+}
@@ -0,0 +1,107 @@
+package com.dozingcatsoftware.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Plays back frames from a PreviewCaptureReader in place of a camera, so the preview pipeline
+ * can be run repeatably without camera hardware. Like the camera's preview callback buffers,
+ * there's a fixed number of frame buffers; each frame passed to the listener must be returned
+ * with releaseBuffer before it can be reused. Unlike the camera, frames are never dropped: the
+ * replay thread waits for a free buffer, so every run processes exactly the same frames in the
+ * same order.
+ *
+ * This class doesn't use any Android APIs, so it can also drive the pipeline on a desktop JVM.
+ */
+public class PreviewReplaySource {
+
+    public interface Listener {
+        /**
+         * Called on the replay thread with each frame. The data array must be passed to
+         * releaseBuffer when it's no longer needed.
+         */
+        void onReplayFrame(byte[] data, int width, int height, CameraUtils.CameraInfo cameraInfo, long timestamp);
+        /** Called on the replay thread after the last frame, or after stop() is called. */
+        void onReplayFinished(int framesPlayed, long elapsedMillis);
+    }
+
+    final PreviewCaptureReader reader;
+    final long frameIntervalMillis;
+    final int loopCount;
+    final BlockingQueue<byte[]> freeBuffers;
+    volatile boolean stopped = false;
+    Thread thread;
+
+    /**
+     * Creates a replay source for the frames read by reader. If frameIntervalMillis is positive,
+     * frames are delivered at that fixed rate (or as fast as buffers are released, if that's
+     * slower). If it's 0, frames are delivered as fast as they're processed. loopCount is the
+     * number of times to play all the frames.
+     */
+    public PreviewReplaySource(PreviewCaptureReader reader, long frameIntervalMillis, int loopCount, int numBuffers) {
+        this.reader = reader;
+        this.frameIntervalMillis = frameIntervalMillis;
+        this.loopCount = Math.max(loopCount, 1);
+        this.freeBuffers = new ArrayBlockingQueue<byte[]>(numBuffers);
+        for (int i=0; i<numBuffers; i++) {
+            freeBuffers.add(new byte[reader.getMaxDataLength()]);
+        }
+    }
+
+    public void start(final Listener listener) {
+        thread = new Thread() {
+            @Override public void run() {
+                replayFrames(listener);
+            }
+        };
+        thread.start();
+    }
+
+    /** Stops delivering frames. The listener's onReplayFinished method will still be called. */
+    public void stop() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /** Makes a buffer passed to onReplayFrame available for another frame. */
+    public void releaseBuffer(byte[] buffer) {
+        freeBuffers.offer(buffer);
+    }
+
+    void replayFrames(Listener listener) {
+        PreviewCaptureReader.Frame frame = new PreviewCaptureReader.Frame();
+        int numFrames = reader.getFrameCount();
+        int framesPlayed = 0;
+        long startMillis = System.currentTimeMillis();
+        long nextFrameMillis = startMillis;
+        try {
+            for (int loop=0; loop<loopCount && !stopped; loop++) {
+                for (int i=0; i<numFrames && !stopped; i++) {
+                    frame.data = freeBuffers.take();
+                    reader.readFrame(i, frame);
+                    if (frameIntervalMillis > 0) {
+                        long delay = nextFrameMillis - System.currentTimeMillis();
+                        if (delay > 0) {
+                            Thread.sleep(delay);
+                        }
+                        // If processing fell behind, don't try to catch up by sending frames faster.
+                        nextFrameMillis = Math.max(nextFrameMillis, System.currentTimeMillis()) + frameIntervalMillis;
+                    }
+                    // Each frame gets the current time, as with camera frames, so that the
+                    // pipeline's latency measurements are meaningful.
+                    listener.onReplayFrame(frame.data, frame.width, frame.height, frame.cameraInfo,
+                            System.currentTimeMillis());
+                    framesPlayed++;
+                    // The listener may hold this frame's CameraInfo, so use a new one for the next frame.
+                    frame.cameraInfo = new CameraUtils.CameraInfo();
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            // stop() was called.
+        }
+        listener.onReplayFinished(framesPlayed, System.currentTimeMillis() - startMillis);
+    }
+}
@@ -2,10 +2,12 @@
 
 package com.dozingcatsoftware.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
-
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -17,98 +19,347 @@ import android.support.v4.util.LruCache;
  * which uses an LruCache so that the Bitmaps will be freed when necessary. The second
  * level is a location directory on the SD card, where smaller versions of the images
  * will be saved for faster retrieval. The exact location is determined by the ThumbnailLocator
- * implementation passed to the constructor.
+ * implementation passed to the constructor. Alternatively, setThumbnailPack can be called to
+ * store the smaller images in a single ThumbnailPack file, which is faster to read when there
+ * are many images.
+ *
+ * Smaller versions of an image are stored in fixed size buckets (see BUCKET_SIZES), where the
+ * longer side of the bucket's bitmap is the bucket size (or the size of the original image, if
+ * that's smaller). A request is served from the smallest bucket whose bitmap is at least the
+ * requested size. A missing bucket is created by scaling down a larger bucket if one is
+ * available, or the thumbnail file from the ThumbnailLocator if it's large enough, and
+ * otherwise by reading the original image. Requests larger than the largest bucket are always
+ * read from the original image.
+ *
+ * The in-memory level is sized from the device's memory class. Bitmaps returned by the cache may
+ * be displayed by any number of views (for example the library grid and ViewImageActivity), so
+ * they're never reused after being evicted; they're freed normally once no view references them.
+ * Only intermediate bitmaps that the cache never returns, such as a larger image that was scaled
+ * down to create a bucket, are added to a BitmapPool and reused to decode other images.
  */
 
 public class ScaledBitmapCache {
-    
+
+    // Minimum size of the in-memory cache, and the size used if the memory class isn't available.
     static int MEMORY_CACHE_SIZE = 2*1024*1024;
-	
+    // The in-memory cache can use this fraction of the application's memory class.
+    static int MEMORY_CLASS_DIVISOR = 8;
+    // The bitmap pool can use this fraction of the in-memory cache size.
+    static int BITMAP_POOL_DIVISOR = 4;
+
+    /** Sizes of the longer side of cached bitmaps, in increasing order. */
+    public static final int[] BUCKET_SIZES = {128, 512, 1024};
+    // Bucket for bitmaps read from the original image because they're larger than any bucket.
+    static final int ORIGINAL_BUCKET = 0;
+
 	public static interface ThumbnailLocator {
 		File thumbnailFileForUri(Uri imageUri);
 	}
-	
+
 	// Simple ThumbnailLocator for putting thumbnails into a single directory using the image URI's filename.
 	public static ThumbnailLocator createFixedDirectoryLocator(final String thumbnailDirectory) {
 	    return new ThumbnailLocator() {
 	        public File thumbnailFileForUri(Uri imageUri) {
 	            String filename = imageUri.getLastPathSegment();
 	            return new File(thumbnailDirectory + File.separator + filename);
-	        }   
+	        }
 	    };
 	}
 
+	static class Key {
+		final Uri uri;
+		final int bucket;
+
+		Key(Uri uri, int bucket) {
+			this.uri = uri;
+			this.bucket = bucket;
+		}
+
+		@Override public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key)obj;
+			return bucket==other.bucket && uri.equals(other.uri);
+		}
+
+		@Override public int hashCode() {
+			return 31*uri.hashCode() + bucket;
+		}
+	}
+
 	Context context;
 	ThumbnailLocator thumbnailLocator;
-	
-	LruCache<Uri, Bitmap> scaledBitmapCache = new LruCache<Uri, Bitmap>(MEMORY_CACHE_SIZE) {
-	    @Override protected int sizeOf(Uri uri, Bitmap bitmap) {
-	        int size = AndroidUtils.getBitmapByteCount(bitmap);
-	        return size;
-	    }
-	};
-	
+
+	LruCache<Key, Bitmap> scaledBitmapCache;
+	BitmapPool bitmapPool;
+	volatile ThumbnailPack thumbnailPack;
+
+	AtomicInteger hitCount = new AtomicInteger();
+	AtomicInteger missCount = new AtomicInteger();
+	AtomicInteger evictionCount = new AtomicInteger();
+
 	public ScaledBitmapCache(Context context, ThumbnailLocator thumbnailLocator) {
 		this.context = context;
 		this.thumbnailLocator = thumbnailLocator;
+
+		int cacheSize = Math.max(MEMORY_CACHE_SIZE, AndroidUtils.getMemoryClass(context) * 1024 * 1024 / MEMORY_CLASS_DIVISOR);
+		bitmapPool = new BitmapPool(cacheSize / BITMAP_POOL_DIVISOR);
+		scaledBitmapCache = new LruCache<Key, Bitmap>(cacheSize) {
+		    @Override protected int sizeOf(Key key, Bitmap bitmap) {
+		        int size = AndroidUtils.getBitmapByteCount(bitmap);
+		        return size;
+		    }
+
+		    @Override protected void entryRemoved(boolean evicted, Key key, Bitmap oldValue, Bitmap newValue) {
+		        // Evicted bitmaps aren't added to bitmapPool, because a view may still display them.
+		        if (evicted) {
+		            evictionCount.incrementAndGet();
+		        }
+		    }
+		};
 	}
-	
+
 	public ScaledBitmapCache(Context context, String imageDirectory) {
 		this(context, createFixedDirectoryLocator(imageDirectory));
 	}
-	
+
+	/** Stores bucket bitmaps in the given pack instead of separate files. The caller is
+	 * responsible for closing the pack when the cache is no longer used.
+	 */
+	public void setThumbnailPack(ThumbnailPack pack) {
+		this.thumbnailPack = pack;
+	}
+
+	static boolean isAtLeastSize(Bitmap bitmap, int minWidth, int minHeight) {
+		return bitmap.getWidth()>=minWidth && bitmap.getHeight()>=minHeight;
+	}
+
 	public Bitmap getInMemoryScaledBitmap(Uri imageUri, int minWidth, int minHeight) {
-        Bitmap bitmap = scaledBitmapCache.get(imageUri);
-        if (bitmap!=null && bitmap.getWidth()>=minWidth && bitmap.getHeight()>=minHeight) {
-            return bitmap;
-        }
-        return null;
+		int minSize = Math.max(minWidth, minHeight);
+		// Buckets smaller than the requested size can't have a large enough bitmap.
+		for (int bucket : BUCKET_SIZES) {
+			if (bucket < minSize) continue;
+			Bitmap bitmap = scaledBitmapCache.get(new Key(imageUri, bucket));
+			if (bitmap!=null && isAtLeastSize(bitmap, minWidth, minHeight)) {
+				hitCount.incrementAndGet();
+				return bitmap;
+			}
+		}
+		Bitmap bitmap = scaledBitmapCache.get(new Key(imageUri, ORIGINAL_BUCKET));
+		if (bitmap!=null && isAtLeastSize(bitmap, minWidth, minHeight)) {
+			hitCount.incrementAndGet();
+			return bitmap;
+		}
+		missCount.incrementAndGet();
+		return null;
 	}
-	
+
 	public Bitmap getScaledBitmap(Uri imageUri, int minWidth, int minHeight) {
 		Bitmap bitmap = getInMemoryScaledBitmap(imageUri, minWidth, minHeight);
 		if (bitmap!=null) return bitmap;
-		
-		// check thumbnail directory
-		File thumbfile = thumbnailLocator.thumbnailFileForUri(imageUri);
-		if (thumbfile!=null && thumbfile.isFile()) {
-			try {
-				bitmap = AndroidUtils.scaledBitmapFromURIWithMinimumSize(context, 
-						Uri.fromFile(thumbfile), minWidth, minHeight);
-				if (bitmap!=null && bitmap.getWidth()>=minWidth && bitmap.getHeight()>=minHeight) {
-					scaledBitmapCache.put(imageUri, bitmap);
-					return bitmap;
-				}
+
+		int minSize = Math.max(minWidth, minHeight);
+		Bitmap bestBitmap = null;
+		for (int i=0; i<BUCKET_SIZES.length; i++) {
+			if (BUCKET_SIZES[i] < minSize) continue;
+			bitmap = getBucketBitmap(imageUri, i);
+			if (bitmap==null) return null;
+			scaledBitmapCache.put(new Key(imageUri, BUCKET_SIZES[i]), bitmap);
+			// If the original image is smaller than the bucket, larger buckets won't be any bigger.
+			if (isAtLeastSize(bitmap, minWidth, minHeight) ||
+					Math.max(bitmap.getWidth(), bitmap.getHeight()) < BUCKET_SIZES[i]) {
+				return bitmap;
 			}
-			catch(Exception ignored) {}
+			bestBitmap = bitmap;
 		}
-		
+
 		// read full-size image
 		try {
-			bitmap = AndroidUtils.scaledBitmapFromURIWithMinimumSize(context, imageUri, minWidth, minHeight);
+			bitmap = AndroidUtils.scaledBitmapFromURIWithMinimumSize(context, imageUri, minWidth, minHeight, bitmapPool);
 		}
 		catch(Exception ex) {
 			bitmap = null;
 		}
 		if (bitmap!=null) {
-			// write to in-memory map and save thumbnail image
-			scaledBitmapCache.put(imageUri, bitmap);
+			scaledBitmapCache.put(new Key(imageUri, ORIGINAL_BUCKET), bitmap);
+			return bitmap;
+		}
+		return bestBitmap;
+	}
+
+	// Returns the bitmap for a bucket, reading it from storage or creating and storing it if needed.
+	Bitmap getBucketBitmap(Uri imageUri, int bucketIndex) {
+		int bucket = BUCKET_SIZES[bucketIndex];
+		Bitmap bitmap = readBucketBitmap(imageUri, bucket);
+		if (bitmap!=null) return bitmap;
+
+		// Scale from the smallest available larger bucket. If it was read from storage rather than
+		// the in-memory cache, its memory can be reused once the smaller bitmap is created.
+		Bitmap source = null;
+		boolean reuseSource = true;
+		for (int i=bucketIndex+1; i<BUCKET_SIZES.length && source==null; i++) {
+			source = scaledBitmapCache.get(new Key(imageUri, BUCKET_SIZES[i]));
+			if (source!=null) {
+				reuseSource = false;
+			}
+			else {
+				source = readBucketBitmap(imageUri, BUCKET_SIZES[i]);
+			}
+		}
+		// The thumbnail file created when the picture was saved may be large enough.
+		if (source==null) {
+			File thumbfile = thumbnailLocator.thumbnailFileForUri(imageUri);
+			if (thumbfile!=null && thumbfile.isFile()) {
+				try {
+					source = AndroidUtils.scaledBitmapFromURIWithMinimumSize(context,
+							Uri.fromFile(thumbfile), bucket, bucket, bitmapPool);
+				}
+				catch(Exception ignored) {}
+				if (source!=null && Math.max(source.getWidth(), source.getHeight()) < bucket) {
+					bitmapPool.put(source);
+					source = null;
+				}
+			}
+		}
+		if (source==null) {
 			try {
-				// create thumbnail directory if it doesn't exist
-				thumbfile.getParentFile().mkdirs();
-				OutputStream thumbnailOutputStream = new FileOutputStream(thumbfile);
-				bitmap.compress(CompressFormat.JPEG, 90, thumbnailOutputStream);
-				thumbnailOutputStream.close();
-				// create .noindex file so thumbnail pictures won't be indexed and show up in the gallery app
-				(new File(thumbfile.getParentFile().getPath() + File.separator + ".nomedia")).createNewFile();
+				source = AndroidUtils.scaledBitmapFromURIWithMinimumSize(context, imageUri, bucket, bucket, bitmapPool);
 			}
 			catch(Exception ignored) {}
 		}
+		if (source==null) return null;
+
+		bitmap = scaleToBucket(source, bucket);
+		// If the image is smaller than both buckets, the same bitmap is cached under both keys.
+		// That's safe because cached bitmaps are never reused.
+		if (bitmap!=source && reuseSource) {
+			bitmapPool.put(source);
+		}
+		writeBucketBitmap(imageUri, bucket, bitmap);
 		return bitmap;
 	}
-	
+
+	// Returns a bitmap whose longer side is the bucket size, or the original bitmap if it's not larger.
+	static Bitmap scaleToBucket(Bitmap bitmap, int bucket) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int longerSide = Math.max(width, height);
+		if (longerSide <= bucket) return bitmap;
+		int scaledWidth = Math.max(1, Math.round(1.0f * width * bucket / longerSide));
+		int scaledHeight = Math.max(1, Math.round(1.0f * height * bucket / longerSide));
+		return Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true);
+	}
+
+	static String packKey(Uri imageUri, int bucket) {
+		return imageUri.toString() + "@" + bucket;
+	}
+
+	File bucketFile(Uri imageUri, int bucket) {
+		File thumbfile = thumbnailLocator.thumbnailFileForUri(imageUri);
+		return (thumbfile!=null) ? new File(thumbfile.getPath() + "-" + bucket + ".jpg") : null;
+	}
+
+	Bitmap readBucketBitmap(Uri imageUri, int bucket) {
+		// Bucket bitmaps are never larger than the bucket size, so requesting that size never subsamples.
+		ThumbnailPack pack = thumbnailPack;
+		if (pack!=null) {
+			byte[] data = pack.get(packKey(imageUri, bucket));
+			return (data!=null) ?
+					AndroidUtils.scaledBitmapFromBytesWithMinimumSize(data, 0, data.length, bucket, bucket, bitmapPool) : null;
+		}
+		File file = bucketFile(imageUri, bucket);
+		if (file!=null && file.isFile()) {
+			try {
+				return AndroidUtils.scaledBitmapFromURIWithMinimumSize(context, Uri.fromFile(file), bucket, bucket, bitmapPool);
+			}
+			catch(Exception ignored) {}
+		}
+		return null;
+	}
+
+	void writeBucketBitmap(Uri imageUri, int bucket, Bitmap bitmap) {
+		ThumbnailPack pack = thumbnailPack;
+		if (pack!=null) {
+			ByteArrayOutputStream thumbnailBytes = new ByteArrayOutputStream();
+			bitmap.compress(CompressFormat.JPEG, 90, thumbnailBytes);
+			pack.put(packKey(imageUri, bucket), thumbnailBytes.toByteArray(), thumbnailBytes.size());
+			return;
+		}
+		File thumbfile = bucketFile(imageUri, bucket);
+		if (thumbfile==null) return;
+		try {
+			// create thumbnail directory if it doesn't exist
+			thumbfile.getParentFile().mkdirs();
+			OutputStream thumbnailOutputStream = new FileOutputStream(thumbfile);
+			bitmap.compress(CompressFormat.JPEG, 90, thumbnailOutputStream);
+			thumbnailOutputStream.close();
+			// create .noindex file so thumbnail pictures won't be indexed and show up in the gallery app
+			(new File(thumbfile.getParentFile().getPath() + File.separator + ".nomedia")).createNewFile();
+		}
+		catch(Exception ignored) {}
+	}
+
 	public void removeUri(Uri imageUri) {
-		scaledBitmapCache.remove(imageUri);
-		thumbnailLocator.thumbnailFileForUri(imageUri).delete();
+		scaledBitmapCache.remove(new Key(imageUri, ORIGINAL_BUCKET));
+		ThumbnailPack pack = thumbnailPack;
+		for (int bucket : BUCKET_SIZES) {
+			scaledBitmapCache.remove(new Key(imageUri, bucket));
+			if (pack!=null) {
+				pack.remove(packKey(imageUri, bucket));
+			}
+		}
+		File thumbfile = thumbnailLocator.thumbnailFileForUri(imageUri);
+		if (thumbfile!=null) {
+			deleteThumbnailFiles(thumbfile);
+		}
+	}
+
+	/** Deletes a thumbnail file and the bucket files stored next to it. */
+	public static void deleteThumbnailFiles(File thumbfile) {
+		for (int bucket : BUCKET_SIZES) {
+			(new File(thumbfile.getPath() + "-" + bucket + ".jpg")).delete();
+		}
+		thumbfile.delete();
+	}
+
+	/**
+	 * Removes the thumbnail pack's bitmaps for images whose URI strings aren't in the given set,
+	 * such as images that were deleted while the pack wasn't open.
+	 */
+	public void retainPackedUris(Set<String> uriStrings) {
+		ThumbnailPack pack = thumbnailPack;
+		if (pack==null) return;
+		for (String key : pack.getKeys()) {
+			int separator = key.lastIndexOf('@');
+			if (separator>=0 && !uriStrings.contains(key.substring(0, separator))) {
+				pack.remove(key);
+			}
+		}
+	}
+
+	/** Returns the number of lookups that were satisfied by the in-memory cache. */
+	public int getHitCount() {
+		return hitCount.get();
+	}
+
+	/** Returns the number of lookups that weren't satisfied by the in-memory cache. */
+	public int getMissCount() {
+		return missCount.get();
+	}
+
+	/** Returns the number of bitmaps removed from the in-memory cache to make space for others. */
+	public int getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public int getMemoryCacheSize() {
+		return scaledBitmapCache.size();
+	}
+
+	public int getMemoryCacheMaxSize() {
+		return scaledBitmapCache.maxSize();
+	}
+
+	public BitmapPool getBitmapPool() {
+		return bitmapPool;
 	}
 }
@@ -0,0 +1,342 @@
+package com.dozingcatsoftware.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Stores encoded thumbnail images in a single append-only file, so that showing a library of
+ * pictures reads one file instead of opening a separate file for each thumbnail. The pack file
+ * is a sequence of records, each of which either stores the data for a key or deletes a key.
+ * Replacing or deleting a thumbnail appends a record, and the space used by the old record is
+ * reclaimed by compact(), which close() calls once enough space is unused.
+ *
+ * The offset of each key's data is kept in a separate index file, written by close(). If the
+ * index is missing or doesn't match the pack file (for example if the app was killed before
+ * closing the pack), it's rebuilt by reading the pack's records. Data is read through a memory
+ * mapping of the pack file.
+ *
+ * All methods are threadsafe. After close() is called, reads return null and writes are ignored.
+ */
+public class ThumbnailPack {
+
+    static final String TAG = "ThumbnailPack";
+    static final int PACK_MAGIC = ('A' << 24) | ('T' << 16) | ('P' << 8) | 1;
+    static final int INDEX_MAGIC = ('A' << 24) | ('T' << 16) | ('I' << 8) | 1;
+    static final byte RECORD_DATA = 1;
+    static final byte RECORD_DELETE = 2;
+
+    // Compact when at least this many bytes are unused, and they're more than the bytes in use.
+    static int MIN_COMPACT_BYTES = 256 * 1024;
+
+    static class Entry {
+        final long dataOffset;
+        final int dataLength;
+        final int recordLength;
+
+        Entry(long dataOffset, int dataLength, int recordLength) {
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.recordLength = recordLength;
+        }
+    }
+
+    final File packFile;
+    final File indexFile;
+    RandomAccessFile file;
+    MappedByteBuffer mappedBuffer;
+    long packLength;
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+    long liveBytes;
+    boolean indexChanged = false;
+
+    public ThumbnailPack(File packFile) throws IOException {
+        this.packFile = packFile;
+        this.indexFile = new File(packFile.getPath() + ".idx");
+        packFile.getParentFile().mkdirs();
+        open();
+    }
+
+    void open() throws IOException {
+        file = new RandomAccessFile(packFile, "rw");
+        packLength = file.length();
+        if (packLength < 4 || file.readInt() != PACK_MAGIC) {
+            file.setLength(0);
+            file.writeInt(PACK_MAGIC);
+            packLength = 4;
+            indexFile.delete();
+        }
+        else if (!readIndex()) {
+            scanRecords();
+            indexChanged = true;
+        }
+        mappedBuffer = null;
+    }
+
+    // Reads the index file, returning false if it doesn't exist or doesn't match the pack file.
+    boolean readIndex() {
+        if (!indexFile.isFile()) return false;
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (input.readInt() != INDEX_MAGIC || input.readLong() != packLength) {
+                    return false;
+                }
+                int count = input.readInt();
+                Map<String, Entry> indexEntries = new HashMap<String, Entry>(count * 2);
+                long indexLiveBytes = 0;
+                for (int i=0; i<count; i++) {
+                    String key = input.readUTF();
+                    Entry entry = new Entry(input.readLong(), input.readInt(), input.readInt());
+                    indexEntries.put(key, entry);
+                    indexLiveBytes += entry.recordLength;
+                }
+                entries = indexEntries;
+                liveBytes = indexLiveBytes;
+                return true;
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch (IOException ex) {
+            Log.w(TAG, "Error reading thumbnail index", ex);
+            return false;
+        }
+    }
+
+    // Rebuilds the index by reading every record in the pack file. A truncated last record is
+    // removed.
+    void scanRecords() throws IOException {
+        entries = new HashMap<String, Entry>();
+        liveBytes = 0;
+        long offset = 4;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(packFile)));
+        try {
+            input.skipBytes(4);
+            while (offset < packLength) {
+                try {
+                    byte type = input.readByte();
+                    String key = input.readUTF();
+                    int dataLength = input.readInt();
+                    long dataOffset = offset + 1 + 2 + utfLength(key) + 4;
+                    if (dataLength < 0 || dataOffset + dataLength > packLength) break;
+                    input.skipBytes(dataLength);
+                    int recordLength = (int) (dataOffset + dataLength - offset);
+                    Entry previous = (type == RECORD_DATA) ?
+                            entries.put(key, new Entry(dataOffset, dataLength, recordLength)) : entries.remove(key);
+                    if (previous != null) {
+                        liveBytes -= previous.recordLength;
+                    }
+                    if (type == RECORD_DATA) {
+                        liveBytes += recordLength;
+                    }
+                    offset += recordLength;
+                }
+                catch (IOException ex) {
+                    break;
+                }
+            }
+        }
+        finally {
+            input.close();
+        }
+        if (offset < packLength) {
+            Log.w(TAG, "Truncating thumbnail pack from " + packLength + " to " + offset);
+            file.setLength(offset);
+            packLength = offset;
+        }
+    }
+
+    static int utfLength(String s) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        (new DataOutputStream(bytes)).writeUTF(s);
+        return bytes.size() - 2;
+    }
+
+    /** Returns the data stored for the key, or null if there is none. */
+    public byte[] get(String key) {
+        ByteBuffer buffer;
+        Entry entry;
+        synchronized (this) {
+            if (file == null) return null;
+            entry = entries.get(key);
+            if (entry == null) return null;
+            try {
+                if (mappedBuffer == null || entry.dataOffset + entry.dataLength > mappedBuffer.capacity()) {
+                    // Map everything written so far, so that remapping isn't needed for every append.
+                    mappedBuffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, packLength);
+                }
+            }
+            catch (IOException ex) {
+                Log.w(TAG, "Error mapping thumbnail pack", ex);
+                return null;
+            }
+            buffer = mappedBuffer.duplicate();
+        }
+        byte[] data = new byte[entry.dataLength];
+        buffer.position((int) entry.dataOffset);
+        buffer.get(data);
+        return data;
+    }
+
+    public synchronized boolean contains(String key) {
+        return file != null && entries.containsKey(key);
+    }
+
+    /** Returns the keys that have data, in no particular order. */
+    public synchronized List<String> getKeys() {
+        return new ArrayList<String>(entries.keySet());
+    }
+
+    /** Stores data for the key, replacing any existing data. */
+    public synchronized void put(String key, byte[] data, int length) {
+        appendRecord(RECORD_DATA, key, data, length);
+    }
+
+    /** Removes the data for the key, if any. */
+    public synchronized void remove(String key) {
+        if (entries.containsKey(key)) {
+            appendRecord(RECORD_DELETE, key, null, 0);
+        }
+    }
+
+    void appendRecord(byte type, String key, byte[] data, int length) {
+        if (file == null) return;
+        try {
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(length + key.length() + 16);
+            DataOutputStream record = new DataOutputStream(recordBytes);
+            record.writeByte(type);
+            record.writeUTF(key);
+            record.writeInt(length);
+            int headerLength = record.size();
+            if (length > 0) {
+                record.write(data, 0, length);
+            }
+            file.seek(packLength);
+            file.write(recordBytes.toByteArray());
+            Entry previous = (type == RECORD_DATA) ?
+                    entries.put(key, new Entry(packLength + headerLength, length, recordBytes.size())) : entries.remove(key);
+            if (previous != null) {
+                liveBytes -= previous.recordLength;
+            }
+            if (type == RECORD_DATA) {
+                liveBytes += recordBytes.size();
+            }
+            packLength += recordBytes.size();
+            indexChanged = true;
+        }
+        catch (IOException ex) {
+            Log.w(TAG, "Error writing thumbnail pack", ex);
+        }
+    }
+
+    /** Returns the number of bytes in the pack file that are used by replaced or deleted data. */
+    public synchronized long getUnusedBytes() {
+        return packLength - 4 - liveBytes;
+    }
+
+    public synchronized boolean shouldCompact() {
+        long unusedBytes = getUnusedBytes();
+        return unusedBytes >= MIN_COMPACT_BYTES && unusedBytes > liveBytes;
+    }
+
+    /** Rewrites the pack file with only the current data for each key. */
+    public synchronized void compact() throws IOException {
+        if (file == null) return;
+        File tmpFile = new File(packFile.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            output.writeInt(PACK_MAGIC);
+            byte[] buffer = new byte[0];
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                if (buffer.length < entry.dataLength) {
+                    buffer = new byte[entry.dataLength];
+                }
+                file.seek(entry.dataOffset);
+                file.readFully(buffer, 0, entry.dataLength);
+                output.writeByte(RECORD_DATA);
+                output.writeUTF(mapEntry.getKey());
+                output.writeInt(entry.dataLength);
+                output.write(buffer, 0, entry.dataLength);
+            }
+        }
+        finally {
+            output.close();
+        }
+        file.close();
+        file = null;
+        mappedBuffer = null;
+        indexFile.delete();
+        if (!tmpFile.renameTo(packFile)) {
+            tmpFile.delete();
+            open();
+            throw new IOException("Unable to rename " + tmpFile);
+        }
+        open();
+    }
+
+    void writeIndex() throws IOException {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            output.writeInt(INDEX_MAGIC);
+            output.writeLong(packLength);
+            output.writeInt(entries.size());
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                output.writeUTF(mapEntry.getKey());
+                output.writeLong(entry.dataOffset);
+                output.writeInt(entry.dataLength);
+                output.writeInt(entry.recordLength);
+            }
+        }
+        finally {
+            output.close();
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            tmpFile.delete();
+            throw new IOException("Unable to rename " + tmpFile);
+        }
+        indexChanged = false;
+    }
+
+    /** Compacts the pack file if needed, writes the index, and closes the pack. */
+    public synchronized void close() {
+        if (file == null) return;
+        try {
+            if (shouldCompact()) {
+                compact();
+            }
+            if (indexChanged) {
+                writeIndex();
+            }
+        }
+        catch (IOException ex) {
+            Log.w(TAG, "Error closing thumbnail pack", ex);
+        }
+        try {
+            file.close();
+        }
+        catch (IOException ignored) {}
+        file = null;
+        mappedBuffer = null;
+    }
+}
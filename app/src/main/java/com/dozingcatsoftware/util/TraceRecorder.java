@@ -0,0 +1,227 @@
+package com.dozingcatsoftware.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records timed spans from any thread into a preallocated ring buffer, and writes them in the
+ * Chrome trace event format so they can be viewed on a timeline in chrome://tracing or Perfetto.
+ * Unlike the averages in MetricsRegistry, this shows individual slow frames and how the work on
+ * different threads overlaps.
+ *
+ * Tracing is off by default, in which case begin() and end() only read a volatile field. When it's
+ * on, recording a span takes one atomic increment and a few array writes, with no locking or
+ * allocation. Span names should be constants, since only the reference is stored. When the buffer
+ * is full the oldest spans are overwritten, so it holds the last few seconds of activity.
+ *
+ * Typical use:
+ * <pre>
+ * long start = TraceRecorder.begin();
+ * doWork();
+ * TraceRecorder.end("work", start);
+ * </pre>
+ */
+public class TraceRecorder {
+
+    static final TraceRecorder instance = new TraceRecorder();
+
+    public static TraceRecorder getInstance() {
+        return instance;
+    }
+
+    private volatile boolean enabled = false;
+    private final AtomicLong nextSpan = new AtomicLong();
+
+    // One entry per span, indexed by the span number modulo the capacity.
+    private String[] names = new String[0];
+    private long[] startNanos = new long[0];
+    private long[] durationNanos = new long[0];
+    private long[] threadIds = new long[0];
+    private String[] threadNames = new String[0];
+
+    /**
+     * Clears any recorded spans and starts recording, keeping at most the given number of spans.
+     * The buffers are allocated here so that recording doesn't allocate.
+     */
+    public synchronized void start(int capacity) {
+        enabled = false;
+        if (names.length != capacity) {
+            names = new String[capacity];
+            startNanos = new long[capacity];
+            durationNanos = new long[capacity];
+            threadIds = new long[capacity];
+            threadNames = new String[capacity];
+        }
+        nextSpan.set(0);
+        enabled = capacity > 0;
+    }
+
+    /** Stops recording. Spans already recorded are kept until the next call to start. */
+    public synchronized void stop() {
+        enabled = false;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Returns the start time to pass to end(), or 0 if tracing is off. */
+    public static long begin() {
+        return instance.enabled ? System.nanoTime() : 0;
+    }
+
+    /** Records a span on the current thread from the given start time until now. */
+    public static void end(String name, long startNanos) {
+        if (startNanos == 0) return;
+        instance.record(name, startNanos, System.nanoTime());
+    }
+
+    /**
+     * Records a span on the current thread with explicit start and end times, for example the
+     * time a frame waited before the current thread started processing it.
+     */
+    public void record(String name, long spanStartNanos, long spanEndNanos) {
+        if (!enabled) return;
+        String[] spanNames = names;
+        int capacity = spanNames.length;
+        if (capacity == 0) return;
+        int index = (int)(nextSpan.getAndIncrement() % capacity);
+        Thread thread = Thread.currentThread();
+        spanNames[index] = name;
+        startNanos[index] = spanStartNanos;
+        durationNanos[index] = spanEndNanos - spanStartNanos;
+        threadIds[index] = thread.getId();
+        threadNames[index] = thread.getName();
+    }
+
+    /**
+     * Writes the recorded spans to the given file as a JSON trace. Recording should be stopped
+     * first; spans recorded while the file is written may be incomplete.
+     */
+    public void writeChromeTrace(File file) throws IOException {
+        snapshot().writeChromeTrace(file);
+    }
+
+    /**
+     * Returns a copy of the recorded spans, oldest first, which can be written on another thread
+     * while recording continues or restarts. Recording should be stopped first, as for
+     * writeChromeTrace.
+     */
+    public synchronized Snapshot snapshot() {
+        int capacity = names.length;
+        long total = nextSpan.get();
+        int count = (int)Math.min(total, capacity);
+        int first = (total > capacity) ? (int)(total % capacity) : 0;
+        Snapshot snapshot = new Snapshot(count);
+        for (int i=0; i<count; i++) {
+            int index = (first + i) % capacity;
+            snapshot.names[i] = names[index];
+            snapshot.startNanos[i] = startNanos[index];
+            snapshot.durationNanos[i] = durationNanos[index];
+            snapshot.threadIds[i] = threadIds[index];
+            snapshot.threadNames[i] = threadNames[index];
+        }
+        return snapshot;
+    }
+
+    /** Spans copied from the ring buffer by snapshot(). */
+    public static class Snapshot {
+        final String[] names;
+        final long[] startNanos;
+        final long[] durationNanos;
+        final long[] threadIds;
+        final String[] threadNames;
+
+        Snapshot(int count) {
+            names = new String[count];
+            startNanos = new long[count];
+            durationNanos = new long[count];
+            threadIds = new long[count];
+            threadNames = new String[count];
+        }
+
+        public int getSpanCount() {
+            return names.length;
+        }
+
+        /** Writes the spans to the given file as a JSON trace. */
+        public void writeChromeTrace(File file) throws IOException {
+            int count = names.length;
+            long baseNanos = Long.MAX_VALUE;
+            for (int i=0; i<count; i++) {
+                baseNanos = Math.min(baseNanos, startNanos[i]);
+            }
+            int pid = android.os.Process.myPid();
+
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            try {
+                writer.write("{\"traceEvents\":[\n");
+                Map<Long, String> threads = new HashMap<Long, String>();
+                StringBuilder builder = new StringBuilder();
+                for (int i=0; i<count; i++) {
+                    if (names[i] == null) continue;
+                    threads.put(threadIds[i], threadNames[i]);
+                    builder.setLength(0);
+                    builder.append("{\"name\":");
+                    appendJsonString(builder, names[i]);
+                    builder.append(",\"ph\":\"X\",\"ts\":");
+                    appendMicros(builder, startNanos[i] - baseNanos);
+                    builder.append(",\"dur\":");
+                    appendMicros(builder, durationNanos[i]);
+                    builder.append(",\"pid\":").append(pid).append(",\"tid\":").append(threadIds[i]);
+                    builder.append("},\n");
+                    writer.write(builder.toString());
+                }
+                // Names for the threads, shown on the timeline instead of the IDs.
+                boolean firstThread = true;
+                for (Map.Entry<Long, String> entry : threads.entrySet()) {
+                    builder.setLength(0);
+                    if (!firstThread) builder.append(",\n");
+                    firstThread = false;
+                    builder.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(pid)
+                            .append(",\"tid\":").append(entry.getKey()).append(",\"args\":{\"name\":");
+                    appendJsonString(builder, String.valueOf(entry.getValue()));
+                    builder.append("}}");
+                    writer.write(builder.toString());
+                }
+                writer.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+            }
+            finally {
+                writer.close();
+            }
+        }
+    }
+
+    // Trace timestamps are in microseconds, with fractions allowed.
+    static void appendMicros(StringBuilder builder, long nanos) {
+        builder.append(nanos / 1000).append('.');
+        long fraction = nanos % 1000;
+        if (fraction < 100) builder.append('0');
+        if (fraction < 10) builder.append('0');
+        builder.append(fraction);
+    }
+
+    static void appendJsonString(StringBuilder builder, String s) {
+        builder.append('"');
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int)c));
+            }
+            else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+}
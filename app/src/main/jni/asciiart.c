@@ -124,13 +124,13 @@ void Java_com_dozingcatsoftware_asciicam_AsciiConverter_getAsciiValuesWithColorN
  * asciiValues: indexes of ASCII characters in the row.
  * colorValues: color values of characters in the row.
  * charsBitmap: array of pixels (grayscale) from a bitmap of each possible character.
- *     Width is (numValues * charWidth) and height is charHeight.
+ *     Width is templateStride and height is charHeight.
  */
 void Java_com_dozingcatsoftware_asciicam_AsciiRenderer_fillPixelsInRowNative(
 		JNIEnv* env, jobject thiz,
 		jintArray jrowPixels, jint numRowPixels,
 		jintArray jasciiValues, jintArray jcolorValues, jint numValues,
-		jbyteArray jcharsBitmap, jint backgroundColor,
+		jbyteArray jcharsBitmap, jint templateStride, jint backgroundColor,
 		jint charWidth, jint charHeight, jint numChars) {
 	jint *rowPixels = (*env)->GetIntArrayElements(env, jrowPixels, 0);
 	jint *asciiValues = (*env)->GetIntArrayElements(env, jasciiValues, 0);
@@ -138,7 +138,6 @@ void Java_com_dozingcatsoftware_asciicam_AsciiRenderer_fillPixelsInRowNative(
 	jbyte *charsBitmap = (*env)->GetByteArrayElements(env, jcharsBitmap, 0);
 
 	int offset = 0;
-	int pixelsPerRow = numValues * charWidth;
 	// For each row of pixels:
 	for (int y=0; y<charHeight; y++) {
 		// For each character to draw:
@@ -147,7 +146,7 @@ void Java_com_dozingcatsoftware_asciicam_AsciiRenderer_fillPixelsInRowNative(
 			jint charColor = colorValues[charPosition];
 			// Index into the chars bitmap, going "down" the number of rows,
 			// and "across" the amount of character widths given by the index.
-			int charBitmapOffset = y*pixelsPerRow + charValue*charWidth;
+			int charBitmapOffset = y*templateStride + charValue*charWidth;
 			// And now just copy charWidth pixels to the output, using the
 			// specified color if the brightness is >0, otherwise black.
 			for (int i=0; i<charWidth; i++) {
@@ -0,0 +1,205 @@
+package com.dozingcatsoftware.asciicam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.dozingcatsoftware.util.ARManager;
+import com.dozingcatsoftware.util.FrameMailbox;
+
+/**
+ * Runs preview frames through PreviewFramePool, FrameMailbox and AsciiConverter the way
+ * AsciiCamActivity does, and checks that once the first frames have been processed no more
+ * objects are allocated: each camera buffer is returned exactly once per frame, CameraPreviewData
+ * objects come from the pool, and the converter reuses the arrays of its result.
+ */
+public class PreviewFrameReuseTest {
+
+    static final int WIDTH = 64;
+    static final int HEIGHT = 48;
+    static final int ROWS = 12;
+    static final int COLUMNS = 16;
+    static final int NUM_BUFFERS = 3;
+    static final int WARMUP_FRAMES = 5;
+    static final int FRAMES = 200;
+
+    AsciiConverter converter = new AsciiConverter();
+
+    // Buffers that the "camera" can fill, and the number of times each has been returned.
+    List<byte[]> freeBuffers = new ArrayList<byte[]>();
+    Map<byte[], Integer> releaseCounts = new IdentityHashMap<byte[], Integer>();
+
+    PreviewFramePool pool = new PreviewFramePool(new PreviewFramePool.BufferReleaser() {
+        @Override public void releaseBuffer(CameraPreviewData previewData) {
+            byte[] buffer = previewData.pixelData;
+            assertTrue(releaseCounts.containsKey(buffer));
+            assertTrue(!freeBuffers.contains(buffer));
+            releaseCounts.put(buffer, releaseCounts.get(buffer) + 1);
+            freeBuffers.add(buffer);
+        }
+    });
+
+    @After public void tearDown() {
+        converter.destroyThreadPool();
+    }
+
+    static byte[] createFrame(int seed) {
+        byte[] data = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int i=0; i<data.length; i++) {
+            data[i] = (byte)(i * 31 + seed);
+        }
+        return data;
+    }
+
+    void createBuffers() {
+        for (int i=0; i<NUM_BUFFERS; i++) {
+            byte[] buffer = createFrame(i);
+            freeBuffers.add(buffer);
+            releaseCounts.put(buffer, 0);
+        }
+    }
+
+    CameraPreviewData receiveFrame(long timestamp) {
+        return pool.obtain(null, null, freeBuffers.remove(freeBuffers.size() - 1),
+                WIDTH, HEIGHT, timestamp);
+    }
+
+    void checkSteadyStateReuse(AsciiConverter.ColorType colorType) {
+        converter.initThreadPool(2);
+        createBuffers();
+        FrameMailbox<CameraPreviewData> mailbox = new FrameMailbox<CameraPreviewData>();
+        AsciiConverter.Result result = new AsciiConverter.Result();
+        Set<CameraPreviewData> warmFrames =
+                Collections.newSetFromMap(new IdentityHashMap<CameraPreviewData, Boolean>());
+
+        int framesReceived = 0;
+        int warmCreatedCount = 0;
+        int[] warmIndexes = null;
+        int[] warmColors = null;
+        String[] warmChars = null;
+        for (int frame=0; frame<FRAMES; frame++) {
+            // Deliver two frames for every one processed, so that the mailbox drops frames. Every
+            // fourth frame is also "captured", which holds a second reference until it's written.
+            CameraPreviewData captured = null;
+            for (int i=0; i<2 && !freeBuffers.isEmpty(); i++) {
+                CameraPreviewData previewData = receiveFrame(framesReceived++);
+                if (framesReceived % 4 == 0) {
+                    pool.retain(previewData);
+                    captured = previewData;
+                }
+                CameraPreviewData replaced = mailbox.offer(previewData);
+                if (replaced != null) {
+                    pool.release(replaced);
+                }
+            }
+            CameraPreviewData previewData = mailbox.take();
+            assertNotNull(previewData);
+            assertTrue(releaseCounts.containsKey(previewData.pixelData));
+            converter.computeResultForCameraData(previewData.pixelData, previewData.width,
+                    previewData.height, ROWS, COLUMNS, colorType, "",
+                    AsciiConverter.Orientation.NORMAL, result);
+            pool.release(previewData);
+            if (captured != null) {
+                pool.release(captured);
+            }
+
+            if (frame == WARMUP_FRAMES) {
+                warmCreatedCount = pool.getCreatedCount();
+                warmIndexes = result.asciiIndexes;
+                warmColors = result.asciiColors;
+                warmChars = result.pixelChars;
+                warmFrames.addAll(pool.freeFrames);
+            }
+            else if (frame > WARMUP_FRAMES) {
+                assertEquals(warmCreatedCount, pool.getCreatedCount());
+                assertTrue(warmFrames.contains(previewData));
+                assertSame(warmIndexes, result.asciiIndexes);
+                assertSame(warmColors, result.asciiColors);
+                assertSame(warmChars, result.pixelChars);
+            }
+        }
+        // Every frame's buffer was returned once, and none were lost or added.
+        CameraPreviewData waiting = mailbox.clear();
+        if (waiting != null) {
+            pool.release(waiting);
+        }
+        assertEquals(NUM_BUFFERS, freeBuffers.size());
+        int totalReleases = 0;
+        for (int count : releaseCounts.values()) {
+            totalReleases += count;
+        }
+        assertEquals(framesReceived, totalReleases);
+        assertEquals(pool.getCreatedCount(), pool.getFreeCount());
+        assertTrue(pool.getCreatedCount() <= NUM_BUFFERS);
+        assertTrue(mailbox.getDroppedCount() > 0);
+        assertEquals(ROWS, result.rows);
+        assertEquals(COLUMNS, result.columns);
+    }
+
+    @Test public void testColorFramesReuseBuffers() {
+        checkSteadyStateReuse(AsciiConverter.ColorType.ANSI_COLOR);
+    }
+
+    @Test public void testMonochromeFramesReuseBuffers() {
+        checkSteadyStateReuse(AsciiConverter.ColorType.WHITE_ON_BLACK);
+    }
+
+    @Test public void testBufferIsReturnedAfterLastReference() {
+        createBuffers();
+        CameraPreviewData previewData = receiveFrame(42);
+        byte[] buffer = previewData.pixelData;
+        pool.retain(previewData);
+        pool.release(previewData);
+        assertEquals(0, (int) releaseCounts.get(buffer));
+        assertEquals(0, pool.getFreeCount());
+
+        pool.release(previewData);
+        assertEquals(1, (int) releaseCounts.get(buffer));
+        assertEquals(1, pool.getFreeCount());
+        assertNull(previewData.pixelData);
+        assertEquals(0, previewData.timestamp);
+
+        assertSame(previewData, receiveFrame(43));
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(43, previewData.timestamp);
+        assertEquals(1, previewData.references);
+    }
+
+    @Test public void testReleasingTwiceThrows() {
+        createBuffers();
+        CameraPreviewData previewData = receiveFrame(0);
+        pool.release(previewData);
+        try {
+            pool.release(previewData);
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException expected) {
+        }
+        assertEquals(1, pool.getFreeCount());
+    }
+
+    // onPreviewFrame reads the preview size and camera info from ARManager for every frame. Those
+    // must be cached values, not Camera.getParameters or system service calls, so they work
+    // without a camera or activity.
+    @Test public void testPerFrameCameraStateIsCached() {
+        ARManager arManager = new ARManager(null, null, null);
+        assertEquals(0, arManager.getPreviewWidth());
+        assertEquals(0, arManager.getPreviewHeight());
+        assertEquals(0, arManager.getPreviewBufferSize());
+        assertNull(arManager.getCameraInfo());
+        assertTrue(!arManager.addPreviewCallbackBuffer(null, new byte[0]));
+    }
+}
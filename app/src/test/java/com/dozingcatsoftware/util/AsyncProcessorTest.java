@@ -0,0 +1,79 @@
+package com.dozingcatsoftware.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that AsyncProcessor reuses its tasks, so that processing an input doesn't allocate. The
+ * tasks are run directly rather than on the processor's thread.
+ */
+public class AsyncProcessorTest {
+
+    AsyncProcessor<Integer, Integer> processor = new AsyncProcessor<Integer, Integer>();
+    int lastInput = -1;
+    int lastOutput = -1;
+
+    AsyncProcessor.Producer<Integer, Integer> doubler = new AsyncProcessor.Producer<Integer, Integer>() {
+        @Override public Integer processInput(Integer input) {
+            return input * 2;
+        }
+    };
+
+    AsyncProcessor.SuccessCallback<Integer, Integer> recorder =
+            new AsyncProcessor.SuccessCallback<Integer, Integer>() {
+        @Override public void handleResult(Integer input, Integer output) {
+            lastInput = input;
+            lastOutput = output;
+        }
+    };
+
+    @Test public void testTaskWithoutCallbackIsReused() {
+        AsyncProcessor<Integer, Integer>.Task first = processor.obtainTask(doubler, 1, null, null, null);
+        first.run();
+        assertEquals(1, processor.freeTasks.size());
+        for (int i=0; i<100; i++) {
+            AsyncProcessor<Integer, Integer>.Task task = processor.obtainTask(doubler, i, null, null, null);
+            assertSame(first, task);
+            assertEquals(0, processor.freeTasks.size());
+            task.run();
+            assertEquals(1, processor.freeTasks.size());
+            assertNull(task.input);
+            assertNull(task.result);
+            assertNull(task.producer);
+        }
+    }
+
+    @Test public void testTaskIsReusedAfterCallback() {
+        AsyncProcessor<Integer, Integer>.Task first = null;
+        for (int i=0; i<100; i++) {
+            AsyncProcessor<Integer, Integer>.Task task = processor.obtainTask(doubler, i, recorder, null, null);
+            if (first == null) {
+                first = task;
+            }
+            assertSame(first, task);
+            // What run() does on the processor's thread, before it posts the task to the
+            // callback handler.
+            task.result = task.producer.processInput(task.input);
+            task.produced = true;
+            task.run();
+            assertEquals(i, lastInput);
+            assertEquals(i * 2, lastOutput);
+            assertEquals(1, processor.freeTasks.size());
+            assertNull(task.successCallback);
+            assertNull(task.result);
+        }
+    }
+
+    @Test public void testOutstandingTasksAreDistinct() {
+        AsyncProcessor<Integer, Integer>.Task a = processor.obtainTask(doubler, 1, null, null, null);
+        AsyncProcessor<Integer, Integer>.Task b = processor.obtainTask(doubler, 2, null, null, null);
+        assertTrue(a != b);
+        a.run();
+        b.run();
+        assertEquals(2, processor.freeTasks.size());
+    }
+}